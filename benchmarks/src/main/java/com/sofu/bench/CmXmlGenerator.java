@@ -0,0 +1,147 @@
+package com.sofu.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes synthetic 3GPP bulk CM exports (bulkCmConfigDataFile / SubNetwork /
+ * MeContext / ManagedElement / ENodeBFunction / EUtranCellFDD) of a given size
+ * and MeContext count. Cells are added to every MeContext until the file
+ * reaches its share of the target size, so size and record count can be varied
+ * independently.
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.sofu.bench.CmXmlGenerator out.xml 1GB 20000
+ * </pre>
+ */
+public final class CmXmlGenerator {
+	private static final int ME_CONTEXTS_PER_SUBNETWORK = 5000;
+
+	private CmXmlGenerator() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("usage: CmXmlGenerator <file> <size, e.g. 10MB or 5GB> <MeContext count>");
+			System.exit(2);
+		}
+		generate(new File(args[0]), parseSize(args[1]), Integer.parseInt(args[2]));
+	}
+
+	/**
+	 * Returns a generated file in java.io.tmpdir, reusing one from an earlier run
+	 * with the same parameters.
+	 */
+	public static File cached(String size, int meContexts) throws IOException {
+		long bytes = parseSize(size);
+		File file = new File(System.getProperty("java.io.tmpdir"), "vtdemulate-cm-" + bytes + "-" + meContexts + ".xml");
+		if (!file.isFile()) {
+			File tmp = new File(file.getPath() + ".tmp");
+			generate(tmp, bytes, meContexts);
+			if (!tmp.renameTo(file))
+				throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+		return file;
+	}
+
+	/**
+	 * Parses sizes such as 512KB, 10MB or 5GB (binary units); a plain number is
+	 * bytes.
+	 */
+	public static long parseSize(String size) {
+		String s = size.trim().toUpperCase();
+		long unit = 1;
+		if (s.endsWith("KB")) {
+			unit = 1L << 10;
+		} else if (s.endsWith("MB")) {
+			unit = 1L << 20;
+		} else if (s.endsWith("GB")) {
+			unit = 1L << 30;
+		}
+		if (unit > 1)
+			s = s.substring(0, s.length() - 2).trim();
+		return Long.parseLong(s) * unit;
+	}
+
+	public static void generate(File file, long targetBytes, int meContexts) throws IOException {
+		if (meContexts < 1)
+			throw new IllegalArgumentException("At least one MeContext is needed: " + meContexts);
+		try (CountingWriter w = new CountingWriter(new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII), 1 << 20))) {
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			w.write("<bulkCmConfigDataFile xmlns=\"configData.xsd\" xmlns:xn=\"genericNrm.xsd\""
+					+ " xmlns:en=\"EUtranNrm.xsd\" xmlns:es=\"EricssonSpecificAttributes.xsd\">\n");
+			w.write(" <fileHeader fileFormatVersion=\"32.615 V4.5\" vendorName=\"Synthetic\"/>\n");
+			w.write(" <configData dnPrefix=\"Undefined\">\n");
+			for (int me = 0; me < meContexts; me++) {
+				if (me % ME_CONTEXTS_PER_SUBNETWORK == 0) {
+					if (me > 0)
+						w.write("  </xn:SubNetwork>\n");
+					w.write("  <xn:SubNetwork id=\"SN" + me / ME_CONTEXTS_PER_SUBNETWORK + "\">\n");
+				}
+				long share = targetBytes * (me + 1) / meContexts;
+				writeMeContext(w, me, share);
+			}
+			w.write("  </xn:SubNetwork>\n </configData>\n");
+			w.write(" <fileFooter dateTime=\"2022-09-16T08:41:16+09:00\"/>\n</bulkCmConfigDataFile>\n");
+		}
+	}
+
+	private static void writeMeContext(CountingWriter w, int me, long until) throws IOException {
+		w.write("   <xn:MeContext id=\"ME" + me + "\">\n");
+		w.write("    <xn:VsDataContainer id=\"ME" + me + "\"><xn:attributes><xn:vsDataType>vsDataMeContext"
+				+ "</xn:vsDataType><es:vsDataMeContext><es:neType>ERBS</es:neType></es:vsDataMeContext>"
+				+ "</xn:attributes></xn:VsDataContainer>\n");
+		w.write("    <xn:ManagedElement id=\"1\">\n     <xn:attributes><xn:userLabel>ME" + me
+				+ "</xn:userLabel><xn:swVersion>L22.Q3</xn:swVersion></xn:attributes>\n");
+		w.write("     <en:ENodeBFunction id=\"1\">\n      <en:attributes><en:eNBId>" + me
+				+ "</en:eNBId></en:attributes>\n");
+		// closing tags still to come for this MeContext
+		long tail = 60;
+		int cell = 0;
+		do {
+			w.write("      <en:EUtranCellFDD id=\"ME" + me + "-" + cell + "\">\n       <en:attributes><en:cellLocalId>"
+					+ cell + "</en:cellLocalId><en:earfdnDl>" + (1800 + cell % 7) + "</en:earfdnDl>"
+					+ "<en:tac>" + (me % 65536) + "</en:tac><en:userLabel>Cell " + me + "/" + cell
+					+ "</en:userLabel></en:attributes>\n      </en:EUtranCellFDD>\n");
+			cell++;
+		} while (w.count + tail < until);
+		w.write("     </en:ENodeBFunction>\n    </xn:ManagedElement>\n   </xn:MeContext>\n");
+	}
+
+	private static final class CountingWriter extends Writer {
+		private final Writer out;
+		private long count;
+
+		CountingWriter(Writer out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			out.write(cbuf, off, len);
+			count += len; // ASCII only: one byte per char
+		}
+
+		@Override
+		public void write(String str) throws IOException {
+			out.write(str);
+			count += str.length();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.sofu.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.MemoryBufferInputStream;
+
+/**
+ * Raw stream throughput of MemoryBufferInputStream: the whole file read through
+ * the chunk cache, without parsing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MemoryBufferInputStreamBenchmark {
+	@Param({ "10MB" })
+	public String size;
+
+	@Param({ "1000" })
+	public int meContexts;
+
+	@Param({ "HEAP", "MAPPED" })
+	public MemoryBufferConfig.Backend backend;
+
+	@Param({ "3145728" })
+	public int chunkSize;
+
+	private File file;
+
+	@Setup
+	public void generate() throws IOException {
+		file = CmXmlGenerator.cached(size, meContexts);
+	}
+
+	@Benchmark
+	public long readAll() throws IOException {
+		byte[] buffer = new byte[64 << 10];
+		long total = 0;
+		try (MemoryBufferInputStream in = new MemoryBufferInputStream(file.getPath(),
+				new MemoryBufferConfig(chunkSize, MemoryBufferInputStream.COUNT_OF_CHUNK_IN_BLOCK, backend))) {
+			int n;
+			while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+				total += n;
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,108 @@
+package com.sofu.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDNav;
+
+/**
+ * VTDNav lookups over a completely parsed document (nothing evicted):
+ * toElement(String) searches for every cell of every MeContext, and getAttrVal
+ * on every MeContext and ManagedElement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NavigateBenchmark {
+	@Param({ "10MB" })
+	public String size;
+
+	@Param({ "1000" })
+	public int meContexts;
+
+	@Param({ "false", "true" })
+	public boolean compact;
+
+	@Param({ "false", "true" })
+	public boolean lazyValues;
+
+	@Param({ "false", "true" })
+	public boolean tagIndex;
+
+	private StaxXmlAdapter adapter;
+
+	@Setup
+	public void parse() throws IOException, XMLStreamException {
+		File file = CmXmlGenerator.cached(size, meContexts);
+		adapter = new StaxXmlAdapter(file.getPath());
+		adapter.setCompactMode(compact);
+		adapter.setLazyValues(lazyValues);
+		adapter.setTagIndex(tagIndex);
+		adapter.setEvictionPolicy(EvictionPolicy.NONE);
+		adapter.parseXml(false);
+	}
+
+	@TearDown
+	public void close() throws IOException {
+		adapter.getMemoryBuffer().close();
+	}
+
+	@Benchmark
+	public int toElement() {
+		VTDNav nav = new VTDNav(adapter);
+		int cells = 0;
+		while (nav.toElement("SubNetwork")) {
+			nav.push();
+			if (nav.toElement("MeContext")) {
+				do {
+					nav.push();
+					while (nav.toElement("EUtranCellFDD")) {
+						cells++;
+					}
+					nav.pop();
+				} while (nav.toElement(VTDNav.NEXT_SIBLING));
+			}
+			nav.pop();
+			if (!nav.toElement(VTDNav.NEXT_SIBLING))
+				break;
+		}
+		return cells;
+	}
+
+	@Benchmark
+	public void getAttrVal(Blackhole bh) {
+		VTDNav nav = new VTDNav(adapter);
+		if (!nav.toElement("MeContext"))
+			return;
+		do {
+			bh.consume(nav.getAttrVal("id"));
+			nav.push();
+			if (nav.toElement("ManagedElement")) {
+				bh.consume(nav.getAttrVal("id"));
+			}
+			nav.pop();
+		} while (nav.toElement(VTDNav.NEXT_SIBLING));
+	}
+}
@@ -0,0 +1,77 @@
+package com.sofu.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+
+/**
+ * Scaling of StaxXmlAdapter.setParallelism: a full parse of the same file with
+ * 1 to 8 threads in the compact models. Nothing is evicted, as in a parallel
+ * parse, so every run builds the same NodeTable. Compare the scores against
+ * parallelism=1 on a machine with at least as many cores; regionSize trades
+ * the split overhead against load balance.
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar ParallelParseBenchmark -p size=1GB -p meContexts=20000
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelParseBenchmark {
+	@Param({ "100MB" })
+	public String size;
+
+	@Param({ "5000" })
+	public int meContexts;
+
+	@Param({ "compact", "lazy" })
+	public String model;
+
+	@Param({ "1", "2", "4", "8" })
+	public int parallelism;
+
+	@Param({ "8MB" })
+	public String regionSize;
+
+	private File file;
+
+	@Setup
+	public void generate() throws IOException {
+		file = CmXmlGenerator.cached(size, meContexts);
+	}
+
+	@Benchmark
+	public long parse() throws IOException, XMLStreamException {
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath());
+		adapter.setCompactMode(true);
+		adapter.setEvictionPolicy(EvictionPolicy.NONE);
+		adapter.setLazyValues(model.equals("lazy"));
+		adapter.setParallelism(parallelism);
+		adapter.setParallelRegionSize(CmXmlGenerator.parseSize(regionSize));
+		adapter.parseXml(false);
+		long result = adapter.getNodeTable().size();
+		adapter.getMemoryBuffer().close();
+		return result;
+	}
+}
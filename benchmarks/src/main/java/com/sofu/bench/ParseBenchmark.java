@@ -0,0 +1,64 @@
+package com.sofu.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sofu.vtdemulate.StaxXmlAdapter;
+
+/**
+ * Full StaxXmlAdapter.parseXml pass over a generated file, in each element
+ * model. Object mode uses the default MeContext eviction, as in production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+	@Param({ "10MB" })
+	public String size;
+
+	@Param({ "1000" })
+	public int meContexts;
+
+	@Param({ "object", "compact", "lazy" })
+	public String model;
+
+	@Param({ "1" })
+	public int parallelism;
+
+	private File file;
+
+	@Setup
+	public void generate() throws IOException {
+		file = CmXmlGenerator.cached(size, meContexts);
+	}
+
+	@Benchmark
+	public long parse() throws IOException, XMLStreamException {
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath());
+		adapter.setCompactMode(!model.equals("object"));
+		adapter.setLazyValues(model.equals("lazy"));
+		adapter.setParallelism(parallelism);
+		adapter.parseXml(false);
+		long result = adapter.isCompactMode() ? adapter.getNodeTable().size() : adapter.getRootElements().size();
+		adapter.getMemoryBuffer().close();
+		return result;
+	}
+}
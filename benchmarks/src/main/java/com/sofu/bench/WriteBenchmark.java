@@ -0,0 +1,81 @@
+package com.sofu.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.MutableXmlElement;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+
+/**
+ * XmlElement.write round trip: the whole parsed tree written back from the
+ * buffer to a counting sink.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriteBenchmark {
+	@Param({ "10MB" })
+	public String size;
+
+	@Param({ "1000" })
+	public int meContexts;
+
+	private StaxXmlAdapter adapter;
+
+	@Setup
+	public void parse() throws IOException, XMLStreamException {
+		File file = CmXmlGenerator.cached(size, meContexts);
+		adapter = new StaxXmlAdapter(file.getPath());
+		adapter.setEvictionPolicy(EvictionPolicy.NONE);
+		adapter.parseXml(false);
+	}
+
+	@TearDown
+	public void close() throws IOException {
+		adapter.getMemoryBuffer().close();
+	}
+
+	@Benchmark
+	public long write() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		for (MutableXmlElement root : adapter.getRootElements()) {
+			root.write(out, adapter.getMemoryBuffer());
+		}
+		return out.count;
+	}
+
+	private static final class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.sofu.vtdemulate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Chunk backend over an in-memory byte array. Chunks are zero-copy views of the
+ * array.
+ */
+class ArrayChunkSource implements ChunkSource {
+	private final byte[] input;
+	private final int chunkSize;
+
+	ArrayChunkSource(byte[] input, int chunkSize) {
+		this.input = input;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public ByteBuffer readChunk(int chunkIndex) {
+		long startPos = (long) chunkIndex * chunkSize;
+		if (chunkIndex < 0 || startPos >= input.length)
+			return null;
+		int len = (int) Math.min(chunkSize, input.length - startPos);
+		return ByteBuffer.wrap(input, (int) startPos, len).slice();
+	}
+
+	@Override
+	public long size() {
+		return input.length;
+	}
+
+	@Override
+	public int chunkSize() {
+		return chunkSize;
+	}
+
+	@Override
+	public boolean supportsConcurrentReads() {
+		return true;
+	}
+
+	@Override
+	public ByteBuffer readRange(long position, int length) {
+		return ByteBuffer.wrap(input, (int) position, length).slice();
+	}
+
+	@Override
+	public void close() {
+	}
+}
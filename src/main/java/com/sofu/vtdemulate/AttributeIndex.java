@@ -0,0 +1,262 @@
+package com.sofu.vtdemulate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Declarative attribute value index, e.g. (MeContext, id) to the offset range
+ * of each MeContext with that id. Keys are declared with index(tag, attribute)
+ * before parsing; StaxXmlAdapter.setAttributeIndex fills the index during the
+ * parse pass and saves it next to the file (see {@link #SUFFIX}). A later run
+ * can load() the saved index and read an element with read() without parsing.
+ *
+ * Ranges are {start, endExclusive} byte offsets. The index is only saved for
+ * documents whose parser offsets are byte offsets (see
+ * StaxXmlAdapter.isByteOffsets), i.e. not for UTF-16 input.
+ */
+public class AttributeIndex {
+	public static final String SUFFIX = ".attridx";
+
+	private static final int MAGIC = 0x41545849; // "ATXI"
+	private static final int VERSION = 2; // 2: byte offsets for UTF-8 input
+
+	// "tag@attribute" -> value -> {start, end, start, end, ...}
+	private final Map<String, Map<String, long[]>> keys = new LinkedHashMap<>();
+	// tag -> attribute names indexed for it
+	private final Map<String, String[]> attributesByTag = new ConcurrentHashMap<>();
+
+	// parse state: indexed elements that are still open
+	private int[] pendingDepth = new int[16];
+	private String[] pendingKey = new String[16];
+	private String[] pendingValue = new String[16];
+	private long[] pendingStart = new long[16];
+	private int pendingSize = 0;
+
+	/**
+	 * Declares a (tag, attribute) key to index. Names are local names.
+	 */
+	public AttributeIndex index(String tagName, String attributeName) {
+		String key = key(tagName, attributeName);
+		if (!keys.containsKey(key)) {
+			keys.put(key, new ConcurrentHashMap<>());
+			String[] attributes = attributesByTag.getOrDefault(tagName, new String[0]);
+			attributes = Arrays.copyOf(attributes, attributes.length + 1);
+			attributes[attributes.length - 1] = attributeName;
+			attributesByTag.put(tagName, attributes);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the range of the first element with the given attribute value, or
+	 * null if there is none (or the key is not indexed).
+	 */
+	public long[] find(String tagName, String attributeName, String value) {
+		long[] ranges = ranges(tagName, attributeName, value);
+		return ranges == null ? null : new long[] { ranges[0], ranges[1] };
+	}
+
+	/**
+	 * Returns the ranges of all elements with the given attribute value, in
+	 * document order.
+	 */
+	public List<long[]> findAll(String tagName, String attributeName, String value) {
+		long[] ranges = ranges(tagName, attributeName, value);
+		if (ranges == null)
+			return Collections.emptyList();
+		List<long[]> result = new ArrayList<>(ranges.length / 2);
+		for (int i = 0; i < ranges.length; i += 2) {
+			result.add(new long[] { ranges[i], ranges[i + 1] });
+		}
+		return result;
+	}
+
+	/**
+	 * Number of distinct values indexed for the key.
+	 */
+	public int size(String tagName, String attributeName) {
+		Map<String, long[]> values = keys.get(key(tagName, attributeName));
+		return values == null ? 0 : values.size();
+	}
+
+	private long[] ranges(String tagName, String attributeName, String value) {
+		Map<String, long[]> values = keys.get(key(tagName, attributeName));
+		return values == null ? null : values.get(value);
+	}
+
+	private static String key(String tagName, String attributeName) {
+		return tagName + "@" + attributeName;
+	}
+
+	// ---------------------------------------------------------------- building
+
+	/**
+	 * Clears the values before a new parse; the declared keys are kept.
+	 */
+	void clear() {
+		for (Map<String, long[]> values : keys.values()) {
+			values.clear();
+		}
+		pendingSize = 0;
+	}
+
+	/**
+	 * Returns the attributes indexed for the tag, or null.
+	 */
+	String[] indexedAttributes(String tagName) {
+		return attributesByTag.get(tagName);
+	}
+
+	/**
+	 * Remembers an indexed element until its end offset is known.
+	 */
+	void startElement(int depth, String tagName, String attributeName, String value, long start) {
+		if (pendingSize == pendingDepth.length) {
+			int n = pendingSize * 2;
+			pendingDepth = Arrays.copyOf(pendingDepth, n);
+			pendingKey = Arrays.copyOf(pendingKey, n);
+			pendingValue = Arrays.copyOf(pendingValue, n);
+			pendingStart = Arrays.copyOf(pendingStart, n);
+		}
+		pendingDepth[pendingSize] = depth;
+		pendingKey[pendingSize] = key(tagName, attributeName);
+		pendingValue[pendingSize] = value;
+		pendingStart[pendingSize] = start;
+		pendingSize++;
+	}
+
+	/**
+	 * Adds the pending entries of the element ending at this depth.
+	 */
+	void endElement(int depth, long end) {
+		while (pendingSize > 0 && pendingDepth[pendingSize - 1] == depth) {
+			pendingSize--;
+			add(pendingKey[pendingSize], pendingValue[pendingSize], pendingStart[pendingSize], end);
+			pendingKey[pendingSize] = null;
+			pendingValue[pendingSize] = null;
+		}
+	}
+
+	private void add(String key, String value, long start, long end) {
+		keys.get(key).merge(value, new long[] { start, end }, (old, range) -> {
+			long[] merged = Arrays.copyOf(old, old.length + 2);
+			merged[old.length] = range[0];
+			merged[old.length + 1] = range[1];
+			return merged;
+		});
+	}
+
+	// ---------------------------------------------------------------- persistence
+
+	/**
+	 * Returns the index file that belongs to the XML file.
+	 */
+	public static File indexFile(File xmlFile) {
+		return new File(xmlFile.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Writes the index next to the XML file, stamped with the file's size and
+	 * modification time.
+	 */
+	public void save(File xmlFile) throws IOException {
+		File target = indexFile(xmlFile);
+		File tmp = new File(target.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(xmlFile.length());
+			out.writeLong(xmlFile.lastModified());
+			out.writeInt(keys.size());
+			for (Map.Entry<String, Map<String, long[]>> key : keys.entrySet()) {
+				out.writeUTF(key.getKey());
+				out.writeInt(key.getValue().size());
+				for (Map.Entry<String, long[]> value : key.getValue().entrySet()) {
+					out.writeUTF(value.getKey());
+					long[] ranges = value.getValue();
+					out.writeInt(ranges.length);
+					for (long offset : ranges) {
+						out.writeLong(offset);
+					}
+				}
+			}
+		}
+		if (!tmp.renameTo(target)) {
+			target.delete();
+			if (!tmp.renameTo(target))
+				throw new IOException("Cannot replace " + target);
+		}
+	}
+
+	/**
+	 * Loads the index saved next to the XML file. Returns null if there is none
+	 * or it was written for a different version of the file.
+	 */
+	public static AttributeIndex load(File xmlFile) throws IOException {
+		File source = indexFile(xmlFile);
+		if (!source.isFile())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			if (in.readLong() != xmlFile.length() || in.readLong() != xmlFile.lastModified())
+				return null;
+			AttributeIndex index = new AttributeIndex();
+			int keyCount = in.readInt();
+			for (int k = 0; k < keyCount; k++) {
+				String key = in.readUTF();
+				int at = key.lastIndexOf('@');
+				index.index(key.substring(0, at), key.substring(at + 1));
+				Map<String, long[]> values = index.keys.get(key);
+				int valueCount = in.readInt();
+				for (int v = 0; v < valueCount; v++) {
+					String value = in.readUTF();
+					long[] ranges = new long[in.readInt()];
+					for (int i = 0; i < ranges.length; i++) {
+						ranges[i] = in.readLong();
+					}
+					values.put(value, ranges);
+				}
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Reads the bytes of an indexed element straight from the file, decoding
+	 * compressed files up to the element.
+	 */
+	public static byte[] read(File xmlFile, long[] range) throws IOException {
+		long length = range[1] - range[0];
+		if (length < 0 || length > Integer.MAX_VALUE)
+			throw new IOException("Invalid offset range " + range[0] + ".." + range[1]);
+		if (length > 0 && CompressedChunkSource.detect(xmlFile.getPath()) != MemoryBufferConfig.Compression.NONE) {
+			MemoryBufferInputStream in = new MemoryBufferInputStream(xmlFile.getPath());
+			try {
+				return in.getByte(range[0], range[1] - 1);
+			} finally {
+				in.close();
+			}
+		}
+		byte[] bytes = new byte[(int) length];
+		try (RandomAccessFile file = new RandomAccessFile(xmlFile, "r")) {
+			file.seek(range[0]);
+			file.readFully(bytes);
+		}
+		return bytes;
+	}
+}
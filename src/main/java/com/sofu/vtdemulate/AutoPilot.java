@@ -1,13 +1,48 @@
 package com.sofu.vtdemulate;
 
+import java.util.Arrays;
+
+import com.sofu.vtdemulate.CompiledXPath.Axis;
+import com.sofu.vtdemulate.CompiledXPath.Step;
+import com.sofu.vtdemulate.CompiledXPath.Terminal;
+
+import lombok.extern.slf4j.Slf4j;
+
 /**
  * Emulation for VTD-XML's AutoPilot class.
- * This class is designed to handle XPath queries, though full XPath evaluation
- * is beyond the scope of this emulation and will be placeholder methods.
+ * selectXPath compiles an expression of the supported XPath subset (see
+ * CompiledXPath) once; evalXPath then walks the VTDNav step by step and stops
+ * at each match, so no node-set is built:
+ *
+ * <pre>
+ * ap.selectXPath("//MeContext[@id='x']/ManagedElement");
+ * int i;
+ * while ((i = ap.evalXPath()) != -1) {
+ *     // vn is positioned at the match
+ * }
+ * </pre>
+ *
+ * Element names are matched on local names. The returned value is
+ * VTDNav.getCurrentIndex() of the match.
+ *
+ * Matches come in document order, except after a descendant step whose
+ * matches nest: //a/b returns the children of each a in turn, so for
+ * {@code <a><a><b/></a><b/></a>} the outer a's b comes before the inner a's.
+ * Sorting them would mean buffering the matches, which the streaming
+ * evaluation avoids.
  */
+@Slf4j
 public class AutoPilot {
     private VTDNav vtdNav;
     private String currentXPathExpr;
+    private CompiledXPath xpath;
+
+    // Evaluation state, kept between evalXPath calls
+    private Frame[] frames;
+    private int step;
+    private boolean started;
+    private boolean finished;
+    private final PredicateContext context = new PredicateContext();
 
     public AutoPilot() {}
 
@@ -15,29 +50,354 @@ public class AutoPilot {
         this.vtdNav = vtdNav;
     }
 
+    /**
+     * Attaches the navigator to evaluate against and resets the evaluation.
+     */
+    public void bind(VTDNav vtdNav) {
+        resetXPath();
+        this.vtdNav = vtdNav;
+    }
+
     /**
      * Selects an XPath expression to be evaluated.
      * @param xpathExpr The XPath expression string.
+     * @throws XPathParseException if the expression is malformed or not supported
      */
     public void selectXPath(String xpathExpr) {
+        CompiledXPath compiled = CompiledXPath.compile(xpathExpr);
+        resetXPath();
         this.currentXPathExpr = xpathExpr;
-        System.out.println("AutoPilot: XPath expression selected: " + xpathExpr + " (Emulation placeholder)");
+        this.xpath = compiled;
+        this.frames = new Frame[compiled.steps.length];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame(compiled.steps[i].predicates.length);
+        }
     }
 
     /**
-     * Evaluates the currently selected XPath expression.
-     * In a full implementation, this would navigate the VTDNav based on the XPath.
-     * For this emulation, it's a placeholder.
-     * @return A dummy integer representing the result of the evaluation, or -1 if no XPath is selected.
+     * Moves the VTDNav to the next match of the selected expression, in
+     * document order except for nested descendant matches (see the class doc).
+     * The position the VTDNav had before the first call is restored when the
+     * matches are exhausted, or on resetXPath.
+     * @return the index of the matching element, or -1 when there are no more matches
      */
     public int evalXPath() {
-        if (currentXPathExpr == null || currentXPathExpr.isEmpty()) {
-            System.err.println("Error: No XPath expression selected. Use selectXPath() first.");
+        if (xpath == null) {
+            log.error("No XPath expression selected. Use selectXPath() first.");
+            return -1;
+        }
+        if (vtdNav == null || finished) {
             return -1;
         }
-        System.out.println("AutoPilot: Evaluating XPath for: " + currentXPathExpr + " (Emulation placeholder)");
-        // In a real implementation, this would use the VTDNav to find elements
-        // For now, return a dummy value.
-        return 0; // Dummy return value
+        Step[] steps = xpath.steps;
+        if (!started) {
+            started = true;
+            vtdNav.push();
+            if (steps.length == 0) {
+                // "/", "." or a bare text()/@name: the context element itself
+                if (xpath.absolute) {
+                    toRoot();
+                }
+                if (vtdNav.getCurrentTagName() != null && terminalMatches()) {
+                    return vtdNav.getCurrentIndex();
+                }
+                return finish();
+            }
+            step = 0;
+            frames[0].started = false;
+        } else if (steps.length == 0) {
+            return finish();
+        }
+        while (true) {
+            if (!next(step)) {
+                if (step == 0) {
+                    return finish();
+                }
+                step--;
+                continue;
+            }
+            if (step == steps.length - 1) {
+                if (terminalMatches()) {
+                    return vtdNav.getCurrentIndex();
+                }
+                continue;
+            }
+            frames[step].skipSubtree = steps[step].axis == Axis.DESCENDANT && steps[step + 1].axis == Axis.DESCENDANT;
+            step++;
+            frames[step].started = false;
+        }
+    }
+
+    /**
+     * Evaluates count(...) expressions, or the first match of a path as a number.
+     * Resets the evaluation afterwards.
+     */
+    public double evalXPathToNumber() {
+        if (xpath != null && xpath.count) {
+            resetXPath();
+            int count = 0;
+            while (evalXPath() != -1) {
+                count++;
+            }
+            resetXPath();
+            return count;
+        }
+        return CompiledXPath.toNumber(evalXPathToString());
+    }
+
+    /**
+     * Returns the string value of the first match: the text of text() and
+     * element matches, the attribute value of @name matches. Returns null if
+     * nothing matches, and resets the evaluation afterwards.
+     */
+    public String evalXPathToString() {
+        if (xpath != null && xpath.count) {
+            return CompiledXPath.format(evalXPathToNumber());
+        }
+        resetXPath();
+        String value = null;
+        if (evalXPath() != -1) {
+            value = xpath.terminal == Terminal.ATTRIBUTE ? vtdNav.getAttrVal(xpath.terminalName) : vtdNav.getText();
+        }
+        resetXPath();
+        return value;
+    }
+
+    /**
+     * Abandons the current evaluation, restoring the VTDNav position it started
+     * from; the next evalXPath starts over.
+     */
+    public void resetXPath() {
+        if (started && !finished && vtdNav != null) {
+            vtdNav.pop();
+        }
+        started = false;
+        finished = false;
+    }
+
+    public String getXPathString() {
+        return currentXPathExpr;
+    }
+
+    private int finish() {
+        finished = true;
+        vtdNav.pop();
+        return -1;
+    }
+
+    private boolean terminalMatches() {
+        switch (xpath.terminal) {
+        case TEXT:
+            return !vtdNav.getText().isEmpty();
+        case ATTRIBUTE:
+            return vtdNav.getAttrVal(xpath.terminalName) != null;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Moves to the next candidate of step k that passes its name test and
+     * predicates. Returns false, with the VTDNav back on the step's context
+     * element, when there are none left.
+     */
+    private boolean next(int k) {
+        Step s = xpath.steps[k];
+        Frame f = frames[k];
+        while (true) {
+            boolean moved;
+            if (!f.started) {
+                f.started = true;
+                f.depth = 0;
+                f.skipSubtree = false;
+                moved = down(k, f);
+            } else if (s.axis == Axis.CHILD) {
+                moved = nextChild(k, f, s);
+            } else {
+                moved = nextDescendant(k, f);
+            }
+            if (!moved) {
+                return false;
+            }
+            if (nameMatches(s) && accept(s, f)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean nextChild(int k, Frame f, Step s) {
+        // [n] as the first predicate: nothing after the n-th name match can be selected
+        if ((s.maxPosition == 0 || f.counters[1][0] < s.maxPosition) && sibling(k, f)) {
+            return true;
+        }
+        up(k, f);
+        return false;
+    }
+
+    private boolean nextDescendant(int k, Frame f) {
+        boolean skip = f.skipSubtree;
+        f.skipSubtree = false;
+        if (!skip && down(k, f)) {
+            return true;
+        }
+        while (!sibling(k, f)) {
+            up(k, f);
+            if (f.depth == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Steps of an absolute path start at the document node, whose only child
+     * is the root element.
+     */
+
+    private boolean down(int k, Frame f) {
+        boolean moved;
+        if (k == 0 && xpath.absolute && f.depth == 0) {
+            toRoot();
+            moved = vtdNav.getCurrentTagName() != null;
+        } else {
+            moved = vtdNav.toElement(VTDNav.FIRST_CHILD);
+        }
+        if (moved) {
+            f.enterLevel(++f.depth);
+        }
+        return moved;
+    }
+
+    private boolean sibling(int k, Frame f) {
+        if (k == 0 && xpath.absolute && f.depth == 1) {
+            return false;
+        }
+        return vtdNav.toElement(VTDNav.NEXT_SIBLING);
+    }
+
+    private void up(int k, Frame f) {
+        if (!(k == 0 && xpath.absolute && f.depth == 1)) {
+            vtdNav.toElement(VTDNav.PARENT);
+        }
+        f.depth--;
+    }
+
+    private void toRoot() {
+        while (vtdNav.toElement(VTDNav.PARENT)) {
+        }
+    }
+
+    private boolean nameMatches(Step s) {
+        // Parsed names are canonical instances, so equals mostly ends at the identity check
+        return s.name == null || s.name.equals(vtdNav.getCurrentTagName());
+    }
+
+    /**
+     * Evaluates the predicates in order; the position seen by each predicate
+     * counts the siblings that passed the ones before it.
+     */
+    private boolean accept(Step s, Frame f) {
+        int[] counters = f.counters[f.depth];
+        for (int p = 0; p < s.predicates.length; p++) {
+            context.set(s, f, p, ++counters[p]);
+            if (!s.predicates[p].test(context)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Per-step walk state: the depth below the step's context element (always 1
+     * on the child axis) and, for each depth, the position counters of each
+     * predicate and the memoized last() values.
+     */
+    private static final class Frame {
+        boolean started;
+        boolean skipSubtree;
+        int depth;
+        int[][] counters;
+        int[][] last;
+        private final int predicates;
+
+        Frame(int predicates) {
+            this.predicates = predicates;
+            this.counters = new int[8][predicates];
+            this.last = new int[8][predicates];
+        }
+
+        void enterLevel(int level) {
+            if (level >= counters.length) {
+                counters = Arrays.copyOf(counters, level * 2);
+                last = Arrays.copyOf(last, level * 2);
+                for (int i = level; i < counters.length; i++) {
+                    counters[i] = new int[predicates];
+                    last[i] = new int[predicates];
+                }
+            }
+            Arrays.fill(counters[level], 0);
+            Arrays.fill(last[level], -1);
+        }
+    }
+
+    private final class PredicateContext implements CompiledXPath.Context {
+        private Step step;
+        private Frame frame;
+        private int predicate;
+        private int position;
+
+        void set(Step step, Frame frame, int predicate, int position) {
+            this.step = step;
+            this.frame = frame;
+            this.predicate = predicate;
+            this.position = position;
+        }
+
+        @Override
+        public String attribute(String name) {
+            return vtdNav.getAttrVal(name);
+        }
+
+        @Override
+        public String text() {
+            return vtdNav.getText();
+        }
+
+        @Override
+        public int position() {
+            return position;
+        }
+
+        /**
+         * Counts the following siblings that pass the name test and the earlier
+         * (non-positional, checked at compile time) predicates, once per level.
+         */
+        @Override
+        public int last() {
+            int[] memo = frame.last[frame.depth];
+            if (memo[predicate] < 0) {
+                int count = position;
+                if (!(step == xpath.steps[0] && xpath.absolute && frame.depth == 1)) {
+                    vtdNav.push();
+                    while (vtdNav.toElement(VTDNav.NEXT_SIBLING)) {
+                        if (nameMatches(step) && passesBefore(predicate)) {
+                            count++;
+                        }
+                    }
+                    vtdNav.pop();
+                }
+                memo[predicate] = count;
+            }
+            return memo[predicate];
+        }
+
+        private boolean passesBefore(int end) {
+            for (int p = 0; p < end; p++) {
+                if (!step.predicates[p].test(this)) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
-} 
\ No newline at end of file
+}
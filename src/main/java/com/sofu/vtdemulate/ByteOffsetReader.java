@@ -0,0 +1,241 @@
+package com.sofu.vtdemulate;
+
+import java.io.ByteArrayInputStream;
+import java.io.CharConversionException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * UTF-8 decoder between the byte input and Woodstox that maps the character
+ * offsets Woodstox reports back to byte offsets. Element offsets index the
+ * raw bytes (VTDNav fragments, lazy values, XMLModifier edits), so a single
+ * multibyte character would otherwise shift every later offset.
+ *
+ * Only multibyte characters are recorded, as the character position from
+ * which the accumulated extra bytes apply, so ASCII input costs no memory.
+ * Offsets must be translated in non-decreasing order (document order of the
+ * events), which lets entries behind the last translated offset be dropped.
+ */
+final class ByteOffsetReader extends Reader {
+	private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([A-Za-z0-9._-]+)[\"']");
+	private static final int HEAD_SIZE = 256;
+
+	private final InputStream in;
+	private final byte[] bytes = new byte[8192];
+	private int pos;
+	private int limit;
+	private boolean eof;
+	private long charCount; // characters returned so far
+	private int pendingLow = -1; // low surrogate not yet returned
+
+	// from charPositions[i] on, byte offset = char offset + extras[i]
+	private long[] charPositions = new long[64];
+	private long[] extras = new long[64];
+	private int head;
+	private int count;
+	private long extra; // extra bytes of the characters decoded so far
+	private long appliedExtra; // extra bytes before the last translated offset
+
+	ByteOffsetReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the start of the input and returns its encoding (see
+	 * detectEncoding). Nothing is consumed; a UTF-8 byte order mark is skipped.
+	 */
+	String sniffEncoding() throws IOException {
+		while (limit < HEAD_SIZE && fill(HEAD_SIZE - limit)) {
+		}
+		String encoding = detectEncoding(bytes, limit);
+		if (limit >= 3 && (bytes[0] & 0xff) == 0xEF && (bytes[1] & 0xff) == 0xBB && (bytes[2] & 0xff) == 0xBF) {
+			pos = 3;
+			addEntry(0, 3);
+		}
+		return encoding;
+	}
+
+	/**
+	 * Returns the input as bytes, including what sniffEncoding buffered, for
+	 * encodings this reader does not decode. The reader must not be used
+	 * afterwards.
+	 */
+	InputStream remainingBytes() {
+		return new SequenceInputStream(new ByteArrayInputStream(bytes, 0, limit), in);
+	}
+
+	/**
+	 * Returns the byte offset of a character offset reported by the parser.
+	 */
+	long byteOffset(long charOffset) {
+		while (head < count && charPositions[head] <= charOffset) {
+			appliedExtra = extras[head++];
+		}
+		if (head > 1024 && head * 2 > count) {
+			System.arraycopy(charPositions, head, charPositions, 0, count - head);
+			System.arraycopy(extras, head, extras, 0, count - head);
+			count -= head;
+			head = 0;
+		}
+		return charOffset + appliedExtra;
+	}
+
+	private void addEntry(long charPosition, int bytesMoreThanChars) {
+		extra += bytesMoreThanChars;
+		if (count == charPositions.length) {
+			charPositions = Arrays.copyOf(charPositions, count * 2);
+			extras = Arrays.copyOf(extras, count * 2);
+		}
+		charPositions[count] = charPosition;
+		extras[count] = extra;
+		count++;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		int n = 0;
+		if (pendingLow >= 0) {
+			cbuf[off + n++] = (char) pendingLow;
+			pendingLow = -1;
+		}
+		while (n < len) {
+			if (pos >= limit && (n > 0 || !fill(len)))
+				break;
+			int b = bytes[pos];
+			if (b >= 0) {
+				cbuf[off + n++] = (char) b;
+				pos++;
+				continue;
+			}
+			int lead = b & 0xff;
+			int length = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 2;
+			if (limit - pos < length) {
+				if (n > 0)
+					break; // decode it on the next call, after the buffer is refilled
+				while (limit - pos < length) {
+					if (!fill(length))
+						throw new CharConversionException("Truncated UTF-8 sequence at the end of the input");
+				}
+			}
+			int c = decode(lead, length);
+			pos += length;
+			if (c >= 0x10000) {
+				cbuf[off + n++] = Character.highSurrogate(c);
+				if (n < len)
+					cbuf[off + n++] = Character.lowSurrogate(c);
+				else
+					pendingLow = Character.lowSurrogate(c);
+				addEntry(charCount + n + (pendingLow >= 0 ? 1 : 0), length - 2);
+			} else {
+				cbuf[off + n++] = (char) c;
+				addEntry(charCount + n, length - 1);
+			}
+		}
+		if (n == 0)
+			return -1;
+		charCount += n;
+		return n;
+	}
+
+	private int decode(int lead, int length) throws CharConversionException {
+		if (lead < 0xC2 || lead > 0xF4)
+			throw invalid();
+		int c = lead & (0xFF >> (length + 1));
+		for (int i = 1; i < length; i++) {
+			int b = bytes[pos + i] & 0xff;
+			if ((b & 0xC0) != 0x80)
+				throw invalid();
+			c = c << 6 | b & 0x3F;
+		}
+		return c;
+	}
+
+	private CharConversionException invalid() {
+		return new CharConversionException("Invalid UTF-8 byte 0x" + Integer.toHexString(bytes[pos] & 0xff)
+				+ " after character " + charCount);
+	}
+
+	/**
+	 * Moves the unread bytes to the front and reads up to want more bytes, so
+	 * the input is not read further ahead than the parser asks for (the
+	 * adapter pauses and evicts by the input position). Returns false at the
+	 * end of the input.
+	 */
+	private boolean fill(int want) throws IOException {
+		if (eof)
+			return false;
+		if (pos > 0) {
+			System.arraycopy(bytes, pos, bytes, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		int read = in.read(bytes, limit, Math.min(bytes.length - limit, Math.max(want, 4)));
+		if (read < 0) {
+			eof = true;
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	/**
+	 * The input stays open: the parser's buffer is read again for random
+	 * access after the parse.
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Returns the encoding of a document from its first bytes: a byte order
+	 * mark, the XML declaration, or UTF-8 by default.
+	 */
+	static String detectEncoding(byte[] head, int length) {
+		if (length >= 2) {
+			int b0 = head[0] & 0xff;
+			int b1 = head[1] & 0xff;
+			if (b0 == 0xFE && b1 == 0xFF || b0 == 0x00 && b1 == 0x3C)
+				return "UTF-16BE";
+			if (b0 == 0xFF && b1 == 0xFE || b0 == 0x3C && b1 == 0x00)
+				return "UTF-16LE";
+		}
+		if (length >= 3 && (head[0] & 0xff) == 0xEF && (head[1] & 0xff) == 0xBB && (head[2] & 0xff) == 0xBF)
+			return "UTF-8";
+		String declaration = new String(head, 0, length, StandardCharsets.ISO_8859_1);
+		if (!declaration.startsWith("<?xml"))
+			return "UTF-8";
+		int end = declaration.indexOf("?>");
+		Matcher m = ENCODING.matcher(end < 0 ? declaration : declaration.substring(0, end));
+		return m.find() ? m.group(1) : "UTF-8";
+	}
+
+	/**
+	 * Returns true for UTF-8 and its ASCII subset, which this reader decodes.
+	 */
+	static boolean isUtf8(String encoding) {
+		String e = encoding.toUpperCase(Locale.ROOT);
+		return e.equals("UTF-8") || e.equals("UTF8") || e.equals("US-ASCII") || e.equals("ASCII");
+	}
+
+	/**
+	 * Returns true if every character of the encoding is one byte, so character
+	 * offsets already are byte offsets.
+	 */
+	static boolean isSingleByte(String encoding) {
+		try {
+			return Charset.forName(encoding).newEncoder().maxBytesPerChar() == 1.0f;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+}
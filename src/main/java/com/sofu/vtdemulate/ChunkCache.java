@@ -0,0 +1,173 @@
+package com.sofu.vtdemulate;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chunk cache with a memory budget and CLOCK (second chance) eviction. The
+ * sequential parse stream and random-access readers share one cache: neither
+ * invalidates the other, chunks simply age out when the budget is exhausted.
+ * Lookup, insert and eviction are O(1) amortized.
+ * <p>
+ * A pinned chunk is never evicted. When every slot is pinned, {@link #put}
+ * refuses the new chunk and the caller uses it uncached.
+ */
+class ChunkCache {
+	private static final class Slot {
+		int chunkIndex = -1;
+		ByteBuffer data;
+		int pins;
+		boolean referenced;
+	}
+
+	private final Slot[] slots;
+	private final Map<Integer, Slot> index = new HashMap<>();
+	private final long budgetBytes;
+	private int hand = 0;
+	private long residentBytes = 0;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param budgetBytes maximum number of resident chunk bytes
+	 * @param chunkSize   size of a full chunk; budgetBytes / chunkSize slots are
+	 *                    available (at least two, so a pinned stream chunk never
+	 *                    starves random access)
+	 */
+	ChunkCache(long budgetBytes, int chunkSize) {
+		if (budgetBytes <= 0)
+			throw new IllegalArgumentException("budgetBytes must be positive: " + budgetBytes);
+		int capacity = (int) Math.max(2, Math.min(Integer.MAX_VALUE - 8, budgetBytes / chunkSize));
+		this.budgetBytes = budgetBytes;
+		this.slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new Slot();
+		}
+	}
+
+	int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns the resident data of the chunk, or null if it is not resident.
+	 * Counts a hit or a miss.
+	 */
+	ByteBuffer get(int chunkIndex) {
+		Slot slot = index.get(chunkIndex);
+		if (slot == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		slot.referenced = true;
+		return slot.data;
+	}
+
+	/**
+	 * Residency check that does not touch the statistics or the reference bits.
+	 */
+	boolean contains(int chunkIndex) {
+		return index.containsKey(chunkIndex);
+	}
+
+	/**
+	 * Stores the chunk, evicting unpinned chunks as needed. Returns false (and
+	 * stores nothing) if no slot can be freed because all of them are pinned.
+	 * 
+	 * @param hot false for chunks that are only scanned once (the sequential
+	 *            parse stream): they enter without a reference bit, so a long
+	 *            scan does not push out chunks that random access keeps hitting
+	 */
+	boolean put(int chunkIndex, ByteBuffer data, boolean hot) {
+		Slot slot = index.get(chunkIndex);
+		if (slot != null) {
+			residentBytes += data.limit() - slot.data.limit();
+			slot.data = data;
+			slot.referenced |= hot;
+			return true;
+		}
+		slot = findVictim();
+		if (slot == null)
+			return false;
+		if (slot.chunkIndex >= 0) {
+			index.remove(slot.chunkIndex);
+			residentBytes -= slot.data.limit();
+			evictions++;
+		}
+		slot.chunkIndex = chunkIndex;
+		slot.data = data;
+		slot.pins = 0;
+		slot.referenced = hot;
+		index.put(chunkIndex, slot);
+		residentBytes += data.limit();
+		return true;
+	}
+
+	/**
+	 * CLOCK sweep: free slots first, then the first unpinned slot whose reference
+	 * bit is clear (bits are cleared as the hand passes).
+	 */
+	private Slot findVictim() {
+		for (int step = 0; step < slots.length * 2; step++) {
+			Slot slot = slots[hand];
+			hand = (hand + 1) % slots.length;
+			if (slot.chunkIndex < 0)
+				return slot;
+			if (slot.pins > 0)
+				continue;
+			if (slot.referenced) {
+				slot.referenced = false;
+				continue;
+			}
+			return slot;
+		}
+		return null;
+	}
+
+	/**
+	 * Pins a resident chunk so it cannot be evicted. Pins are counted.
+	 * 
+	 * @throws ChunkException if the chunk is not resident
+	 */
+	void pin(int chunkIndex) {
+		Slot slot = index.get(chunkIndex);
+		if (slot == null)
+			throw new ChunkException("Cannot pin chunk " + chunkIndex + ": not resident");
+		slot.pins++;
+	}
+
+	void unpin(int chunkIndex) {
+		Slot slot = index.get(chunkIndex);
+		if (slot != null && slot.pins > 0)
+			slot.pins--;
+	}
+
+	boolean isPinned(int chunkIndex) {
+		Slot slot = index.get(chunkIndex);
+		return slot != null && slot.pins > 0;
+	}
+
+	long getBudgetBytes() {
+		return budgetBytes;
+	}
+
+	long getResidentBytes() {
+		return residentBytes;
+	}
+
+	long getHits() {
+		return hits;
+	}
+
+	long getMisses() {
+		return misses;
+	}
+
+	long getEvictions() {
+		return evictions;
+	}
+}
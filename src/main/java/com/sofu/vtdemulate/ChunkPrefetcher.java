@@ -0,0 +1,223 @@
+package com.sofu.vtdemulate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Background read-ahead for the sequential parse stream. A task reads chunks in
+ * order into a bounded queue of {@code depth} entries, so the parser only
+ * blocks on disk I/O when it overtakes the prefetcher. Mapped chunks are
+ * faulted in (MappedByteBuffer.load) before they are handed over.
+ *
+ * The task runs on the executor if one is set (see
+ * StaxXmlAdapter.setExecutor), otherwise on a daemon thread. It ends at the
+ * end of the document and is started again by a seek. Both sides block on
+ * conditions of one lock, so a blocked task does not hold a carrier thread
+ * on virtual threads.
+ */
+class ChunkPrefetcher implements Runnable {
+	private static final class Entry {
+		final int chunkIndex;
+		final ByteBuffer data; // null at end of document
+		final IOException error;
+
+		Entry(int chunkIndex, ByteBuffer data, IOException error) {
+			this.chunkIndex = chunkIndex;
+			this.data = data;
+			this.error = error;
+		}
+	}
+
+	private final ChunkSource source;
+	private final int depth;
+	private final Lock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private volatile Executor executor;
+
+	// guarded by lock
+	private final ArrayDeque<Entry> queue;
+	private int nextChunk = 0;
+	private int generation = 0;
+	private boolean atEnd = false;
+	private boolean running = false;
+	private boolean closed = false;
+
+	// consumer-side statistics (accessed under the stream's lock)
+	private long stallCount;
+	private long stallNanos;
+	private long takenCount;
+
+	ChunkPrefetcher(ChunkSource source, int depth) {
+		this.source = source;
+		this.depth = depth;
+		this.queue = new ArrayDeque<>(depth);
+	}
+
+	/**
+	 * Runs the read-ahead on the given executor instead of a daemon thread
+	 * (null restores the default). Applies from the next start of the task.
+	 */
+	void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Starts the task unless it is running, closed or done. Called under lock.
+	 */
+	private void startIfNeeded() {
+		if (running || closed || atEnd)
+			return;
+		running = true;
+		try {
+			Executor exec = executor;
+			if (exec != null) {
+				exec.execute(this);
+			} else {
+				Thread thread = new Thread(this, "MemoryBufferInputStream-Prefetcher");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (RuntimeException e) {
+			running = false;
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the data of chunk {@code chunkIndex} (null past the end), blocking
+	 * until the prefetcher has read it. Blocking time is recorded as stall time.
+	 */
+	ByteBuffer take(int chunkIndex) throws IOException {
+		while (true) {
+			Entry entry;
+			lock.lock();
+			try {
+				startIfNeeded();
+				entry = queue.poll();
+				if (entry == null) {
+					long start = System.nanoTime();
+					try {
+						while ((entry = queue.poll()) == null) {
+							if (closed)
+								throw new IOException("Prefetcher closed");
+							notEmpty.await();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for chunk " + chunkIndex, e);
+					} finally {
+						stallCount++;
+						stallNanos += System.nanoTime() - start;
+					}
+				}
+				notFull.signal();
+			} finally {
+				lock.unlock();
+			}
+			if (entry.chunkIndex == chunkIndex) {
+				if (entry.error != null)
+					throw entry.error;
+				takenCount++;
+				return entry.data;
+			}
+			if (entry.chunkIndex > chunkIndex) {
+				// the reader went backwards or skipped: restart read-ahead there
+				seek(chunkIndex);
+			}
+			// older entries belong to chunks the reader already has: discard
+		}
+	}
+
+	/**
+	 * Restarts read-ahead at the given chunk, dropping everything queued.
+	 */
+	void seek(int chunkIndex) {
+		lock.lock();
+		try {
+			generation++;
+			nextChunk = chunkIndex;
+			atEnd = false;
+			queue.clear();
+			notFull.signalAll();
+			startIfNeeded();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			int idx;
+			int gen;
+			lock.lock();
+			try {
+				if (closed || atEnd) {
+					running = false;
+					return;
+				}
+				idx = nextChunk;
+				gen = generation;
+			} finally {
+				lock.unlock();
+			}
+
+			Entry entry;
+			try {
+				ByteBuffer data = source.readChunk(idx);
+				if (data instanceof MappedByteBuffer) {
+					((MappedByteBuffer) data).load();
+				}
+				entry = new Entry(idx, data, null);
+			} catch (IOException e) {
+				entry = new Entry(idx, null, e);
+			}
+
+			lock.lock();
+			try {
+				while (!closed && gen == generation && queue.size() >= depth) {
+					notFull.awaitUninterruptibly();
+				}
+				// a seek in the meantime made the entry stale
+				if (!closed && gen == generation) {
+					queue.addLast(entry);
+					nextChunk = idx + 1;
+					atEnd = entry.data == null || entry.error != null;
+					notEmpty.signal();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getStallCount() {
+		return stallCount;
+	}
+
+	long getStallNanos() {
+		return stallNanos;
+	}
+
+	long getTakenCount() {
+		return takenCount;
+	}
+}
@@ -0,0 +1,52 @@
+package com.sofu.vtdemulate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Supplies fixed-size chunks of the underlying document to
+ * MemoryBufferInputStream. Every returned buffer starts at position 0 and
+ * covers exactly the bytes of the requested chunk (the last chunk may be
+ * shorter).
+ */
+interface ChunkSource extends Closeable {
+	/**
+	 * Returns the data of chunk {@code chunkIndex}, or null if the chunk lies
+	 * beyond the end of the document.
+	 */
+	ByteBuffer readChunk(int chunkIndex) throws IOException;
+
+	/**
+	 * Returns the document size, or -1 while it is unknown (compressed input
+	 * that has not been decoded to its end).
+	 */
+	long size();
+
+	int chunkSize();
+
+	/**
+	 * Returns the channel of the file the chunks are plain ranges of, for
+	 * zero-copy transfers, or null if the document is not stored as is (byte
+	 * arrays, compressed input).
+	 */
+	default FileChannel fileChannel() {
+		return null;
+	}
+
+	/**
+	 * Returns true if readRange may be called by any number of threads at once.
+	 */
+	default boolean supportsConcurrentReads() {
+		return false;
+	}
+
+	/**
+	 * Returns length bytes at position (position 0, limit length) without
+	 * touching shared mutable state. Only called if supportsConcurrentReads.
+	 */
+	default ByteBuffer readRange(long position, int length) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+}
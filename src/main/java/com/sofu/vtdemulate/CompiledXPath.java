@@ -0,0 +1,700 @@
+package com.sofu.vtdemulate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An XPath 1.0 subset expression compiled once into a list of location steps
+ * with predicate trees, evaluated by AutoPilot.
+ *
+ * Supported:
+ * <ul>
+ * <li>absolute and relative location paths with the child ({@code /}) and
+ * descendant ({@code //}) axes, name tests (prefixes are ignored, as element
+ * names are local names) and {@code *}</li>
+ * <li>a final {@code text()} or {@code @name} step</li>
+ * <li>predicates with {@code @name}, {@code text()}, string and number
+ * literals, {@code position()}, {@code last()}, {@code = != < <= > >=},
+ * {@code and}, {@code or}, {@code not()}, {@code contains()},
+ * {@code starts-with()} and plain numbers as positions</li>
+ * <li>{@code count(path)} as the whole expression</li>
+ * </ul>
+ */
+final class CompiledXPath {
+	enum Axis {
+		CHILD, DESCENDANT
+	}
+
+	enum Terminal {
+		ELEMENT, TEXT, ATTRIBUTE
+	}
+
+	/**
+	 * Values available to a predicate for the element being tested.
+	 */
+	interface Context {
+		String attribute(String name);
+
+		String text();
+
+		int position();
+
+		int last();
+	}
+
+	static final class Step {
+		final Axis axis;
+		final String name; // null for *
+		final Expr[] predicates;
+		/**
+		 * If the first predicate is a constant position n, the child axis can stop
+		 * after the n-th match; 0 otherwise.
+		 */
+		final int maxPosition;
+
+		Step(Axis axis, String name, Expr[] predicates) {
+			this.axis = axis;
+			this.name = name;
+			this.predicates = predicates;
+			double first = predicates.length > 0 && predicates[0] instanceof NumberLiteral
+					? ((NumberLiteral) predicates[0]).value
+					: 0;
+			this.maxPosition = first >= 1 && first == Math.rint(first) ? (int) first : 0;
+		}
+	}
+
+	final String source;
+	final boolean absolute;
+	final boolean count;
+	final Step[] steps;
+	final Terminal terminal;
+	final String terminalName;
+
+	private CompiledXPath(String source, boolean absolute, boolean count, Step[] steps, Terminal terminal,
+			String terminalName) {
+		this.source = source;
+		this.absolute = absolute;
+		this.count = count;
+		this.steps = steps;
+		this.terminal = terminal;
+		this.terminalName = terminalName;
+	}
+
+	// ---------------------------------------------------------------- parsing
+
+	static CompiledXPath compile(String xpath) {
+		if (xpath == null || xpath.trim().isEmpty())
+			throw new XPathParseException("Empty XPath expression");
+		return new Parser(xpath).parse();
+	}
+
+	/**
+	 * Compiles an expression for StreamingXPathMatcher, which sees each element
+	 * once: paths must be absolute, last() is unknown until the parent closes,
+	 * and text() is only complete for the final step.
+	 */
+	static CompiledXPath compileStreaming(String xpath) {
+		CompiledXPath compiled = compile(xpath);
+		if (!compiled.absolute || compiled.count || compiled.steps.length == 0)
+			throw new XPathParseException("Streaming expressions must be absolute location paths: " + xpath);
+		if (compiled.steps.length >= Long.SIZE)
+			throw new XPathParseException("Too many steps for streaming evaluation: " + xpath);
+		for (int k = 0; k < compiled.steps.length; k++) {
+			for (Expr predicate : compiled.steps[k].predicates) {
+				if (predicate.usesLast())
+					throw new XPathParseException("last() is not supported in streaming expressions: " + xpath);
+				if (predicate.usesText() && k < compiled.steps.length - 1)
+					throw new XPathParseException(
+							"text() predicates are only supported on the last step when streaming: " + xpath);
+			}
+		}
+		return compiled;
+	}
+
+	private static final class Parser {
+		private final String src;
+		private int pos;
+
+		Parser(String src) {
+			this.src = src;
+		}
+
+		CompiledXPath parse() {
+			skipSpace();
+			boolean count = false;
+			if (lookingAtFunction("count")) {
+				pos += "count".length();
+				expect('(');
+				count = true;
+			}
+			skipSpace();
+			boolean absolute = peek() == '/';
+			List<Step> steps = new ArrayList<>();
+			Terminal terminal = Terminal.ELEMENT;
+			String terminalName = null;
+			Axis axis = Axis.CHILD;
+			if (absolute) {
+				axis = consumeSlashes();
+			}
+			while (true) {
+				skipSpace();
+				if (peek() == '@') {
+					pos++;
+					terminal = Terminal.ATTRIBUTE;
+					terminalName = localName(readName());
+					break;
+				}
+				if (lookingAtFunction("text")) {
+					pos += "text".length();
+					expect('(');
+					expect(')');
+					terminal = Terminal.TEXT;
+					break;
+				}
+				if (peek() == '.' && peekAt(1) != '.') {
+					pos++; // self step
+				} else {
+					String name;
+					if (peek() == '*') {
+						pos++;
+						name = null;
+					} else {
+						name = localName(readName());
+					}
+					List<Expr> predicates = new ArrayList<>();
+					skipSpace();
+					while (peek() == '[') {
+						pos++;
+						predicates.add(parseOr());
+						expect(']');
+						skipSpace();
+					}
+					steps.add(new Step(axis, name, predicates.toArray(new Expr[0])));
+				}
+				skipSpace();
+				if (peek() != '/')
+					break;
+				axis = consumeSlashes();
+			}
+			if (terminal != Terminal.ELEMENT && axis == Axis.DESCENDANT)
+				throw error("text() and @name must follow a child step");
+			if (count) {
+				expect(')');
+			}
+			skipSpace();
+			if (pos < src.length())
+				throw error("Unexpected '" + src.charAt(pos) + "'");
+			for (Step step : steps) {
+				for (int p = 1; p < step.predicates.length; p++) {
+					if (step.predicates[p].usesLast() && isPositional(step.predicates, p))
+						throw error("last() after a positional predicate is not supported");
+				}
+			}
+			return new CompiledXPath(src, absolute, count, steps.toArray(new Step[0]), terminal, terminalName);
+		}
+
+		private boolean isPositional(Expr[] predicates, int before) {
+			for (int p = 0; p < before; p++) {
+				if (predicates[p].usesPosition())
+					return true;
+			}
+			return false;
+		}
+
+		private Axis consumeSlashes() {
+			expect('/');
+			if (peek() == '/') {
+				pos++;
+				return Axis.DESCENDANT;
+			}
+			return Axis.CHILD;
+		}
+
+		Expr parseOr() {
+			Expr left = parseAnd();
+			while (lookingAtKeyword("or")) {
+				pos += 2;
+				left = new Logical(false, left, parseAnd());
+			}
+			return left;
+		}
+
+		Expr parseAnd() {
+			Expr left = parseComparison();
+			while (lookingAtKeyword("and")) {
+				pos += 3;
+				left = new Logical(true, left, parseComparison());
+			}
+			return left;
+		}
+
+		Expr parseComparison() {
+			Expr left = parsePrimary();
+			skipSpace();
+			String op = null;
+			if (src.startsWith("!=", pos) || src.startsWith("<=", pos) || src.startsWith(">=", pos)) {
+				op = src.substring(pos, pos + 2);
+			} else if (peek() == '=' || peek() == '<' || peek() == '>') {
+				op = String.valueOf(peek());
+			}
+			if (op == null)
+				return left;
+			pos += op.length();
+			return new Comparison(op, left, parsePrimary());
+		}
+
+		Expr parsePrimary() {
+			skipSpace();
+			char c = peek();
+			if (c == '(') {
+				pos++;
+				Expr e = parseOr();
+				expect(')');
+				return e;
+			}
+			if (c == '@') {
+				pos++;
+				return new AttributeRef(localName(readName()));
+			}
+			if (c == '\'' || c == '"') {
+				int end = src.indexOf(c, pos + 1);
+				if (end < 0)
+					throw error("Unterminated string literal");
+				String value = src.substring(pos + 1, end);
+				pos = end + 1;
+				return new StringLiteral(value);
+			}
+			if (Character.isDigit(c) || (c == '.' && Character.isDigit(peekAt(1)))) {
+				int start = pos;
+				while (Character.isDigit(peek()) || peek() == '.')
+					pos++;
+				return new NumberLiteral(Double.parseDouble(src.substring(start, pos)));
+			}
+			String name = readName();
+			skipSpace();
+			if (peek() != '(')
+				throw error("Child element tests in predicates are not supported: " + name);
+			pos++;
+			List<Expr> args = new ArrayList<>();
+			skipSpace();
+			if (peek() != ')') {
+				args.add(parseOr());
+				skipSpace();
+				while (peek() == ',') {
+					pos++;
+					args.add(parseOr());
+					skipSpace();
+				}
+			}
+			expect(')');
+			return function(name, args);
+		}
+
+		private Expr function(String name, List<Expr> args) {
+			switch (name) {
+			case "text":
+				arity(name, args, 0);
+				return new TextRef();
+			case "position":
+				arity(name, args, 0);
+				return new Position();
+			case "last":
+				arity(name, args, 0);
+				return new Last();
+			case "not":
+				arity(name, args, 1);
+				return new Not(args.get(0));
+			case "contains":
+				arity(name, args, 2);
+				return new StringTest(true, args.get(0), args.get(1));
+			case "starts-with":
+				arity(name, args, 2);
+				return new StringTest(false, args.get(0), args.get(1));
+			default:
+				throw error("Unsupported function " + name + "()");
+			}
+		}
+
+		private void arity(String name, List<Expr> args, int n) {
+			if (args.size() != n)
+				throw error(name + "() takes " + n + " argument(s)");
+		}
+
+		private String readName() {
+			skipSpace();
+			int start = pos;
+			while (pos < src.length()) {
+				char c = src.charAt(pos);
+				if (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':')
+					pos++;
+				else
+					break;
+			}
+			if (start == pos)
+				throw error("Name expected");
+			return src.substring(start, pos);
+		}
+
+		private String localName(String name) {
+			if (name.contains("::"))
+				throw error("Only the child and descendant axes are supported: " + name);
+			int colon = name.indexOf(':');
+			return colon < 0 ? name : name.substring(colon + 1);
+		}
+
+		private boolean lookingAtFunction(String name) {
+			if (!src.startsWith(name, pos))
+				return false;
+			int p = pos + name.length();
+			while (p < src.length() && src.charAt(p) == ' ')
+				p++;
+			return p < src.length() && src.charAt(p) == '(';
+		}
+
+		private boolean lookingAtKeyword(String keyword) {
+			skipSpace();
+			if (!src.startsWith(keyword, pos))
+				return false;
+			int p = pos + keyword.length();
+			return p < src.length() && (src.charAt(p) == ' ' || src.charAt(p) == '(' || src.charAt(p) == '@');
+		}
+
+		private void expect(char c) {
+			skipSpace();
+			if (peek() != c)
+				throw error("'" + c + "' expected");
+			pos++;
+		}
+
+		private char peek() {
+			return peekAt(0);
+		}
+
+		private char peekAt(int offset) {
+			return pos + offset < src.length() ? src.charAt(pos + offset) : '\0';
+		}
+
+		private void skipSpace() {
+			while (pos < src.length() && Character.isWhitespace(src.charAt(pos)))
+				pos++;
+		}
+
+		private XPathParseException error(String message) {
+			return new XPathParseException(message + " at position " + pos + " in \"" + src + "\"");
+		}
+	}
+
+	// ---------------------------------------------------------------- expressions
+
+	/**
+	 * Predicate expression. Values are strings (null for an empty node-set),
+	 * numbers or booleans, following XPath 1.0 comparison rules for the types
+	 * that occur here.
+	 */
+	abstract static class Expr {
+		enum Type {
+			STRING, NUMBER, BOOLEAN
+		}
+
+		abstract Type type();
+
+		String string(Context ctx) {
+			return type() == Type.NUMBER ? format(number(ctx)) : String.valueOf(test(ctx));
+		}
+
+		double number(Context ctx) {
+			return toNumber(string(ctx));
+		}
+
+		/**
+		 * Predicate value: a number selects by position, a string is true if non-empty.
+		 */
+		boolean test(Context ctx) {
+			if (type() == Type.NUMBER)
+				return number(ctx) == ctx.position();
+			String s = string(ctx);
+			return s != null && !s.isEmpty();
+		}
+
+		boolean usesLast() {
+			return false;
+		}
+
+		boolean usesPosition() {
+			return type() == Type.NUMBER;
+		}
+
+		boolean usesText() {
+			return false;
+		}
+	}
+
+	static final class StringLiteral extends Expr {
+		final String value;
+
+		StringLiteral(String value) {
+			this.value = value;
+		}
+
+		Type type() {
+			return Type.STRING;
+		}
+
+		String string(Context ctx) {
+			return value;
+		}
+	}
+
+	static final class NumberLiteral extends Expr {
+		final double value;
+
+		NumberLiteral(double value) {
+			this.value = value;
+		}
+
+		Type type() {
+			return Type.NUMBER;
+		}
+
+		double number(Context ctx) {
+			return value;
+		}
+	}
+
+	static final class AttributeRef extends Expr {
+		final String name;
+
+		AttributeRef(String name) {
+			this.name = name;
+		}
+
+		Type type() {
+			return Type.STRING;
+		}
+
+		String string(Context ctx) {
+			return ctx.attribute(name);
+		}
+
+		boolean test(Context ctx) {
+			return ctx.attribute(name) != null;
+		}
+
+		boolean usesPosition() {
+			return false;
+		}
+	}
+
+	static final class TextRef extends Expr {
+		Type type() {
+			return Type.STRING;
+		}
+
+		String string(Context ctx) {
+			String text = ctx.text();
+			return text == null || text.isEmpty() ? null : text;
+		}
+
+		boolean usesPosition() {
+			return false;
+		}
+
+		boolean usesText() {
+			return true;
+		}
+	}
+
+	static final class Position extends Expr {
+		Type type() {
+			return Type.NUMBER;
+		}
+
+		double number(Context ctx) {
+			return ctx.position();
+		}
+	}
+
+	static final class Last extends Expr {
+		Type type() {
+			return Type.NUMBER;
+		}
+
+		double number(Context ctx) {
+			return ctx.last();
+		}
+
+		boolean usesLast() {
+			return true;
+		}
+	}
+
+	static final class Not extends Expr {
+		final Expr operand;
+
+		Not(Expr operand) {
+			this.operand = operand;
+		}
+
+		Type type() {
+			return Type.BOOLEAN;
+		}
+
+		boolean test(Context ctx) {
+			return !operand.test(ctx);
+		}
+
+		boolean usesLast() {
+			return operand.usesLast();
+		}
+
+		boolean usesPosition() {
+			return operand.usesPosition();
+		}
+
+		boolean usesText() {
+			return operand.usesText();
+		}
+	}
+
+	static final class Logical extends Expr {
+		final boolean and;
+		final Expr left;
+		final Expr right;
+
+		Logical(boolean and, Expr left, Expr right) {
+			this.and = and;
+			this.left = left;
+			this.right = right;
+		}
+
+		Type type() {
+			return Type.BOOLEAN;
+		}
+
+		boolean test(Context ctx) {
+			return and ? left.test(ctx) && right.test(ctx) : left.test(ctx) || right.test(ctx);
+		}
+
+		boolean usesLast() {
+			return left.usesLast() || right.usesLast();
+		}
+
+		boolean usesPosition() {
+			return left.usesPosition() || right.usesPosition();
+		}
+
+		boolean usesText() {
+			return left.usesText() || right.usesText();
+		}
+	}
+
+	static final class StringTest extends Expr {
+		final boolean contains;
+		final Expr haystack;
+		final Expr needle;
+
+		StringTest(boolean contains, Expr haystack, Expr needle) {
+			this.contains = contains;
+			this.haystack = haystack;
+			this.needle = needle;
+		}
+
+		Type type() {
+			return Type.BOOLEAN;
+		}
+
+		boolean test(Context ctx) {
+			String h = haystack.string(ctx);
+			String n = needle.string(ctx);
+			h = h == null ? "" : h;
+			n = n == null ? "" : n;
+			return contains ? h.contains(n) : h.startsWith(n);
+		}
+
+		boolean usesLast() {
+			return haystack.usesLast() || needle.usesLast();
+		}
+
+		boolean usesText() {
+			return haystack.usesText() || needle.usesText();
+		}
+
+		boolean usesPosition() {
+			return false;
+		}
+	}
+
+	static final class Comparison extends Expr {
+		final String op;
+		final Expr left;
+		final Expr right;
+
+		Comparison(String op, Expr left, Expr right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		Type type() {
+			return Type.BOOLEAN;
+		}
+
+		boolean test(Context ctx) {
+			boolean equality = op.equals("=") || op.equals("!=");
+			if (equality && left.type() != Type.NUMBER && right.type() != Type.NUMBER) {
+				if (left.type() == Type.BOOLEAN || right.type() == Type.BOOLEAN)
+					return (left.test(ctx) == right.test(ctx)) == op.equals("=");
+				String l = left.string(ctx);
+				String r = right.string(ctx);
+				if (l == null || r == null)
+					return false; // comparisons with an empty node-set are false
+				return l.equals(r) == op.equals("=");
+			}
+			if (left.type() == Type.STRING && left.string(ctx) == null
+					|| right.type() == Type.STRING && right.string(ctx) == null)
+				return false;
+			double l = left.number(ctx);
+			double r = right.number(ctx);
+			switch (op) {
+			case "=":
+				return l == r;
+			case "!=":
+				return l != r;
+			case "<":
+				return l < r;
+			case "<=":
+				return l <= r;
+			case ">":
+				return l > r;
+			default:
+				return l >= r;
+			}
+		}
+
+		boolean usesLast() {
+			return left.usesLast() || right.usesLast();
+		}
+
+		boolean usesPosition() {
+			return left.usesPosition() || right.usesPosition();
+		}
+
+		boolean usesText() {
+			return left.usesText() || right.usesText();
+		}
+	}
+
+	static double toNumber(String s) {
+		if (s == null)
+			return Double.NaN;
+		try {
+			return Double.parseDouble(s.trim());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	static String format(double d) {
+		return d == Math.rint(d) && !Double.isInfinite(d) ? String.valueOf((long) d) : String.valueOf(d);
+	}
+}
@@ -0,0 +1,455 @@
+package com.sofu.vtdemulate;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Chunk backend over a gzip or zstd compressed file: chunks are ranges of the
+ * decompressed document, decoded on demand and never written to disk.
+ *
+ * Decoding can only move forward, so the source keeps a few decoders at
+ * different positions. A chunk at or after a decoder's position is read by
+ * skipping forward from it; the parse stream and ascending random access (e.g.
+ * writing the document back) each keep their own decoder. A chunk behind every
+ * decoder restarts one from the closest checkpoint. Checkpoints are the starts
+ * of gzip members, found while decoding: files written by bgzip, pigz -i or
+ * concatenated gzip exports have many, a single-member file only has offset 0.
+ * zstd input restarts from offset 0.
+ *
+ * The decompressed size is unknown until a decoder has reached the end; size()
+ * returns -1 until then.
+ */
+class CompressedChunkSource implements ChunkSource {
+	private static final int MAX_DECODERS = 3;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MemoryBufferConfig.Compression compression;
+	private final int chunkSize;
+	private final Decoder[] decoders = new Decoder[MAX_DECODERS];
+	private final ReentrantLock lock = new ReentrantLock(); // guards the decoders
+	private long useCounter;
+	private volatile long size = -1;
+
+	// checkpoints in increasing order: compressed and decompressed offsets
+	private long[] checkpointIn = new long[] { 0 };
+	private long[] checkpointOut = new long[] { 0 };
+	private int checkpointCount = 1;
+
+	CompressedChunkSource(String filePath, MemoryBufferConfig.Compression compression, int chunkSize)
+			throws IOException {
+		this.raf = new RandomAccessFile(filePath, "r");
+		this.channel = raf.getChannel();
+		this.compression = compression;
+		this.chunkSize = chunkSize;
+		if (compression == MemoryBufferConfig.Compression.ZSTD) {
+			try {
+				ZstdDecoder.checkAvailable();
+			} catch (LinkageError e) {
+				raf.close();
+				throw new IOException("zstd input needs com.github.luben:zstd-jni on the classpath", e);
+			}
+		}
+	}
+
+	/**
+	 * Detects the compression of a file from its magic bytes.
+	 */
+	static MemoryBufferConfig.Compression detect(String filePath) throws IOException {
+		byte[] magic = new byte[4];
+		int n;
+		try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+			n = file.read(magic);
+		}
+		if (n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b)
+			return MemoryBufferConfig.Compression.GZIP;
+		if (n == 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5 && (magic[2] & 0xff) == 0x2f
+				&& (magic[3] & 0xff) == 0xfd)
+			return MemoryBufferConfig.Compression.ZSTD;
+		return MemoryBufferConfig.Compression.NONE;
+	}
+
+	@Override
+	public ByteBuffer readChunk(int chunkIndex) throws IOException {
+		lock.lock();
+		try {
+			long start = (long) chunkIndex * chunkSize;
+			if (chunkIndex < 0 || size >= 0 && start >= size)
+				return null;
+			Decoder decoder = decoderFor(start);
+			decoder.skipTo(start);
+			byte[] data = new byte[chunkSize];
+			int len = 0;
+			while (len < chunkSize) {
+				int n = decoder.read(data, len, chunkSize - len);
+				if (n < 0) {
+					size = decoder.position;
+					break;
+				}
+				len += n;
+			}
+			decoder.lastUse = ++useCounter;
+			if (len == 0)
+				return null;
+			return ByteBuffer.wrap(data, 0, len).slice();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the decoder closest before the offset, replacing the least recently
+	 * used one with a decoder from the closest checkpoint if that is closer.
+	 */
+	private Decoder decoderFor(long offset) throws IOException {
+		int checkpoint = upperBound(checkpointOut, checkpointCount, offset) - 1;
+		Decoder best = null;
+		int free = -1;
+		for (int i = 0; i < decoders.length; i++) {
+			Decoder d = decoders[i];
+			if (d == null) {
+				free = free < 0 ? i : free;
+				continue;
+			}
+			if (d.position <= offset && (best == null || d.position > best.position))
+				best = d;
+			if (free < 0 || decoders[free] != null && d.lastUse < decoders[free].lastUse)
+				free = i;
+		}
+		if (best != null && best.position >= checkpointOut[checkpoint])
+			return best;
+		if (decoders[free] != null)
+			decoders[free].close();
+		decoders[free] = open(checkpointIn[checkpoint], checkpointOut[checkpoint]);
+		return decoders[free];
+	}
+
+	private Decoder open(long compressedOffset, long position) throws IOException {
+		if (compression == MemoryBufferConfig.Compression.ZSTD)
+			return new ZstdDecoder(channel);
+		return new GzipDecoder(channel, compressedOffset, position);
+	}
+
+	/**
+	 * Records the start of a gzip member found while decoding.
+	 */
+	private void addCheckpoint(long compressedOffset, long position) {
+		if (position <= checkpointOut[checkpointCount - 1])
+			return;
+		if (checkpointCount == checkpointOut.length) {
+			checkpointIn = Arrays.copyOf(checkpointIn, checkpointCount * 2);
+			checkpointOut = Arrays.copyOf(checkpointOut, checkpointCount * 2);
+		}
+		checkpointIn[checkpointCount] = compressedOffset;
+		checkpointOut[checkpointCount] = position;
+		checkpointCount++;
+	}
+
+	/**
+	 * Number of checkpoints found so far (at least 1, the start of the file).
+	 */
+	int getCheckpointCount() {
+		lock.lock();
+		try {
+			return checkpointCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static int upperBound(long[] a, int size, long key) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] <= key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public int chunkSize() {
+		return chunkSize;
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			for (Decoder d : decoders) {
+				if (d != null)
+					d.close();
+			}
+			raf.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forward-only decoder that tracks its position in the decompressed
+	 * document.
+	 */
+	private abstract static class Decoder extends InputStream {
+		long position;
+		long lastUse;
+
+		void skipTo(long offset) throws IOException {
+			byte[] scratch = null;
+			while (position < offset) {
+				if (scratch == null)
+					scratch = new byte[(int) Math.min(64 << 10, offset - position)];
+				if (read(scratch, 0, (int) Math.min(scratch.length, offset - position)) < 0)
+					return;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+	}
+
+	/**
+	 * gzip decoder on java.util.zip.Inflater that reads member headers itself so
+	 * it can report where each member starts.
+	 */
+	private final class GzipDecoder extends Decoder {
+		private static final int FHCRC = 2;
+		private static final int FEXTRA = 4;
+		private static final int FNAME = 8;
+		private static final int FCOMMENT = 16;
+
+		private final FileChannel channel;
+		private final Inflater inflater = new Inflater(true);
+		private final CRC32 crc = new CRC32();
+		private final ByteBuffer in = ByteBuffer.allocate(64 << 10);
+		private long inOffset; // file offset of in[0]
+		private int inPos;
+		private long memberSize;
+		private boolean inMember;
+		private boolean firstMember = true;
+		private boolean eof;
+
+		GzipDecoder(FileChannel channel, long compressedOffset, long position) {
+			this.channel = channel;
+			this.inOffset = compressedOffset;
+			this.position = position;
+			((Buffer) in).limit(0);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (!eof) {
+				if (!inMember && !startMember())
+					break;
+				try {
+					int n = inflater.inflate(b, off, len);
+					if (n > 0) {
+						crc.update(b, off, n);
+						memberSize += n;
+						position += n;
+						return n;
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupt gzip data at " + (inOffset + inPos), e);
+				}
+				if (inflater.finished()) {
+					inPos = in.limit() - inflater.getRemaining();
+					endMember();
+				} else if (inflater.needsDictionary()) {
+					throw new IOException("gzip data needs a preset dictionary");
+				} else if (inflater.needsInput()) {
+					if (!fill())
+						throw new EOFException("Unexpected end of gzip data");
+					inflater.setInput(in.array(), inPos, in.limit() - inPos);
+					inPos = in.limit();
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Reads a member header. Returns false at the end of the file, or at data
+		 * that is not a gzip member after the first one (ignored, like
+		 * GZIPInputStream does).
+		 */
+		private boolean startMember() throws IOException {
+			long memberStart = inOffset + inPos;
+			int id1 = readByte();
+			if (id1 < 0 && !firstMember) {
+				eof = true;
+				return false;
+			}
+			int id2 = readByte();
+			if (id1 != 0x1f || id2 != 0x8b) {
+				if (firstMember)
+					throw new IOException("Not in gzip format");
+				eof = true;
+				return false;
+			}
+			if (readByte() != 8)
+				throw new IOException("Unsupported gzip compression method");
+			int flags = readByte();
+			skipBytes(6); // mtime, xfl, os
+			if ((flags & FEXTRA) != 0)
+				skipBytes(readByte() | readByte() << 8);
+			if ((flags & FNAME) != 0)
+				skipString();
+			if ((flags & FCOMMENT) != 0)
+				skipString();
+			if ((flags & FHCRC) != 0)
+				skipBytes(2);
+			addCheckpoint(memberStart, position);
+			inflater.reset();
+			crc.reset();
+			memberSize = 0;
+			inMember = true;
+			firstMember = false;
+			if (inPos < in.limit()) {
+				inflater.setInput(in.array(), inPos, in.limit() - inPos);
+				inPos = in.limit();
+			}
+			return true;
+		}
+
+		private void endMember() throws IOException {
+			long expectedCrc = readInt();
+			long expectedSize = readInt();
+			if (expectedCrc != crc.getValue() || expectedSize != (memberSize & 0xffffffffL))
+				throw new IOException("Corrupt gzip trailer at " + (inOffset + inPos));
+			inMember = false;
+		}
+
+		private long readInt() throws IOException {
+			long value = 0;
+			for (int i = 0; i < 4; i++) {
+				int c = readByte();
+				if (c < 0)
+					throw new EOFException("Unexpected end of gzip trailer");
+				value |= (long) c << (8 * i);
+			}
+			return value;
+		}
+
+		private void skipString() throws IOException {
+			int c;
+			while ((c = readByte()) > 0) {
+			}
+			if (c < 0)
+				throw new EOFException("Unexpected end of gzip header");
+		}
+
+		private void skipBytes(int n) throws IOException {
+			for (int i = 0; i < n; i++) {
+				if (readByte() < 0)
+					throw new EOFException("Unexpected end of gzip header");
+			}
+		}
+
+		private int readByte() throws IOException {
+			if (inPos == in.limit() && !fill())
+				return -1;
+			return in.get(inPos++) & 0xff;
+		}
+
+		/**
+		 * Reads the next compressed bytes after the consumed ones.
+		 */
+		private boolean fill() throws IOException {
+			inOffset += inPos;
+			inPos = 0;
+			((Buffer) in).clear();
+			while (in.hasRemaining()) {
+				int n = channel.read(in, inOffset + in.position());
+				if (n < 0)
+					break;
+			}
+			((Buffer) in).flip();
+			return in.hasRemaining();
+		}
+
+		@Override
+		public void close() {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * zstd decoder on zstd-jni, an optional dependency: this class is only
+	 * loaded for zstd input.
+	 */
+	private static final class ZstdDecoder extends Decoder {
+		private final InputStream in;
+
+		ZstdDecoder(FileChannel channel) throws IOException {
+			// the channel stays open: only the stream over it is closed
+			InputStream file = new BufferedInputStream(new ChannelRegionStream(channel), 64 << 10);
+			this.in = new com.github.luben.zstd.ZstdInputStream(file);
+		}
+
+		static void checkAvailable() {
+			com.github.luben.zstd.ZstdInputStream.class.getName();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0)
+				position += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Positional reads of a shared channel from offset 0, so closing the stream
+	 * does not close the channel.
+	 */
+	private static final class ChannelRegionStream extends InputStream {
+		private final FileChannel channel;
+		private long offset;
+
+		ChannelRegionStream(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = channel.read(ByteBuffer.wrap(b, off, len), offset);
+			if (n > 0)
+				offset += n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package com.sofu.vtdemulate;
+
+/**
+ * Thrown when navigation enters a subtree that the adapter's eviction policy
+ * has already released. The bytes are still readable through the element's
+ * offsets (e.g. VTDNav.getElementFragment), but its parsed children are gone.
+ */
+public class EvictedRegionException extends RuntimeException {
+	public EvictedRegionException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,47 @@
+package com.sofu.vtdemulate;
+
+import java.util.List;
+
+/**
+ * Decides which parsed subtrees StaxXmlAdapter may release while streaming a
+ * large document.
+ *
+ * A record is a repeating element (e.g. MeContext in 3GPP CM exports) whose
+ * whole subtree can be dropped once the parser has moved far enough past its
+ * end. Elements that have records below them are containers. They are kept,
+ * and navigation does not wait for their end tags.
+ */
+public interface EvictionPolicy {
+
+	/**
+	 * Never releases anything: the whole tree is kept.
+	 */
+	EvictionPolicy NONE = new EvictionPolicy() {
+		@Override
+		public boolean isRecord(String tagName, int depth, List<String> path) {
+			return false;
+		}
+
+		@Override
+		public long evictionBoundary(long parsedOffset, int chunkSize, int chunkCountInBlock) {
+			return -1;
+		}
+	};
+
+	/**
+	 * Returns true if the element that just started is a record. Called only for
+	 * elements that are not inside another record.
+	 * 
+	 * @param tagName local name of the element
+	 * @param depth   0 for the root element
+	 * @param path    local names from the root down to the element (read-only)
+	 */
+	boolean isRecord(String tagName, int depth, List<String> path);
+
+	/**
+	 * Returns the offset below which records that have ended may be released,
+	 * given that the parser has reached parsedOffset. Returns a negative value to
+	 * release nothing.
+	 */
+	long evictionBoundary(long parsedOffset, int chunkSize, int chunkCountInBlock);
+}
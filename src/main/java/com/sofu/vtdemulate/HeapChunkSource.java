@@ -0,0 +1,83 @@
+package com.sofu.vtdemulate;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Original chunk backend: every chunk is copied from the file into a freshly
+ * allocated heap array.
+ */
+class HeapChunkSource implements ChunkSource {
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final int chunkSize;
+
+	HeapChunkSource(String filePath, int chunkSize) throws IOException {
+		this.raf = new RandomAccessFile(filePath, "r");
+		this.channel = raf.getChannel();
+		this.fileSize = raf.length();
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public ByteBuffer readChunk(int chunkIndex) throws IOException {
+		long startPos = (long) chunkIndex * chunkSize;
+		if (chunkIndex < 0 || startPos >= fileSize)
+			return null;
+		int len = (int) Math.min(chunkSize, fileSize - startPos);
+		ByteBuffer data = ByteBuffer.wrap(new byte[len]);
+		// positional reads never move a shared file pointer
+		while (data.hasRemaining()) {
+			int n = channel.read(data, startPos + data.position());
+			if (n < 0)
+				throw new IOException("Unexpected EOF in chunk " + chunkIndex);
+		}
+		((Buffer) data).flip();
+		return data;
+	}
+
+	@Override
+	public long size() {
+		return fileSize;
+	}
+
+	@Override
+	public int chunkSize() {
+		return chunkSize;
+	}
+
+	@Override
+	public FileChannel fileChannel() {
+		return channel;
+	}
+
+	@Override
+	public boolean supportsConcurrentReads() {
+		return true;
+	}
+
+	/**
+	 * Positional read into a new array; positional reads do not share a file
+	 * pointer, so they need no lock.
+	 */
+	@Override
+	public ByteBuffer readRange(long position, int length) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(length);
+		while (data.hasRemaining()) {
+			int n = channel.read(data, position + data.position());
+			if (n < 0)
+				throw new IOException("Unexpected EOF at " + (position + data.position()));
+		}
+		((Buffer) data).flip();
+		return data;
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+}
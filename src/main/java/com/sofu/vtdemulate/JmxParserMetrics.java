@@ -0,0 +1,217 @@
+package com.sofu.vtdemulate;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * ParserMetrics that accumulates counters for JMX. One instance may be shared
+ * by several adapters to aggregate them; the live node count is then that of
+ * the adapter that reported last.
+ *
+ * <pre>
+ * JmxParserMetrics metrics = new JmxParserMetrics();
+ * metrics.register("bulkcm");
+ * adapter.setMetrics(metrics);
+ * </pre>
+ */
+public class JmxParserMetrics implements ParserMetrics, ParserMetricsMXBean {
+	public static final String DOMAIN = "com.sofu.vtdemulate";
+
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder chunkLoads = new LongAdder();
+	private final LongAdder chunkReloads = new LongAdder();
+	private final LongAdder chunkBytesLoaded = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder elementsCreated = new LongAdder();
+	private final LongAdder recordsEvicted = new LongAdder();
+	private final LongAdder elementsEvicted = new LongAdder();
+	private final AtomicLong liveNodes = new AtomicLong();
+	private final LongAdder pauseCount = new LongAdder();
+	private final LongAdder pauseNanos = new LongAdder();
+	private final LongAdder resumeWaitCount = new LongAdder();
+	private final LongAdder resumeWaitNanos = new LongAdder();
+	private final AtomicLong maxResumeWaitNanos = new AtomicLong();
+	private ObjectName objectName;
+
+	/**
+	 * Registers this instance with the platform MBean server as
+	 * com.sofu.vtdemulate:type=ParserMetrics,name=&lt;name&gt;.
+	 * 
+	 * @throws IllegalStateException if the name is taken or invalid
+	 */
+	public synchronized ObjectName register(String name) {
+		try {
+			ObjectName on = new ObjectName(DOMAIN + ":type=ParserMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			objectName = on;
+			return on;
+		} catch (JMException e) {
+			throw new IllegalStateException("Cannot register parser metrics '" + name + "'", e);
+		}
+	}
+
+	/**
+	 * Removes the registration made by register, if any.
+	 */
+	public synchronized void unregister() {
+		if (objectName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			throw new IllegalStateException("Cannot unregister " + objectName, e);
+		} finally {
+			objectName = null;
+		}
+	}
+
+	@Override
+	public void bytesRead(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	@Override
+	public void chunkLoaded(int chunkIndex, int bytes, boolean reload) {
+		chunkLoads.increment();
+		chunkBytesLoaded.add(bytes);
+		if (reload) {
+			chunkReloads.increment();
+		}
+	}
+
+	@Override
+	public void chunkCacheAccess(boolean hit) {
+		(hit ? cacheHits : cacheMisses).increment();
+	}
+
+	@Override
+	public void elementsCreated(long count) {
+		elementsCreated.add(count);
+	}
+
+	@Override
+	public void recordsEvicted(int records, long elements) {
+		recordsEvicted.add(records);
+		elementsEvicted.add(elements);
+	}
+
+	@Override
+	public void liveNodes(long count) {
+		liveNodes.set(count);
+	}
+
+	@Override
+	public void parsePaused(long nanos) {
+		pauseCount.increment();
+		pauseNanos.add(nanos);
+	}
+
+	@Override
+	public void resumeWaited(long nanos) {
+		resumeWaitCount.increment();
+		resumeWaitNanos.add(nanos);
+		maxResumeWaitNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getChunkLoads() {
+		return chunkLoads.sum();
+	}
+
+	@Override
+	public long getChunkReloads() {
+		return chunkReloads.sum();
+	}
+
+	@Override
+	public long getChunkBytesLoaded() {
+		return chunkBytesLoaded.sum();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	@Override
+	public double getCacheHitRatio() {
+		long hits = cacheHits.sum();
+		long total = hits + cacheMisses.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public long getElementsCreated() {
+		return elementsCreated.sum();
+	}
+
+	@Override
+	public long getRecordsEvicted() {
+		return recordsEvicted.sum();
+	}
+
+	@Override
+	public long getElementsEvicted() {
+		return elementsEvicted.sum();
+	}
+
+	@Override
+	public long getLiveNodes() {
+		return liveNodes.get();
+	}
+
+	@Override
+	public long getPauseCount() {
+		return pauseCount.sum();
+	}
+
+	@Override
+	public long getPauseNanos() {
+		return pauseNanos.sum();
+	}
+
+	@Override
+	public long getResumeWaitCount() {
+		return resumeWaitCount.sum();
+	}
+
+	@Override
+	public long getResumeWaitNanos() {
+		return resumeWaitNanos.sum();
+	}
+
+	@Override
+	public long getMaxResumeWaitNanos() {
+		return maxResumeWaitNanos.get();
+	}
+
+	@Override
+	public void reset() {
+		for (LongAdder a : new LongAdder[] { bytesRead, chunkLoads, chunkReloads, chunkBytesLoaded, cacheHits,
+				cacheMisses, elementsCreated, recordsEvicted, elementsEvicted, pauseCount, pauseNanos,
+				resumeWaitCount, resumeWaitNanos }) {
+			a.reset();
+		}
+		liveNodes.set(0);
+		maxResumeWaitNanos.set(0);
+	}
+}
@@ -0,0 +1,106 @@
+package com.sofu.vtdemulate;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Chunk backend that exposes read-only FileChannel.map windows instead of heap
+ * copies. Pages are faulted in by the OS on access and unmapped once the window
+ * is no longer referenced.
+ */
+class MappedChunkSource implements ChunkSource {
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final int chunkSize;
+	// Windows kept for concurrent readRange calls
+	private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+	MappedChunkSource(String filePath, int chunkSize) throws IOException {
+		this.raf = new RandomAccessFile(filePath, "r");
+		this.channel = raf.getChannel();
+		this.fileSize = channel.size();
+		this.chunkSize = chunkSize;
+		this.windows = new AtomicReferenceArray<>((int) ((fileSize + chunkSize - 1) / chunkSize));
+	}
+
+	@Override
+	public ByteBuffer readChunk(int chunkIndex) throws IOException {
+		long startPos = (long) chunkIndex * chunkSize;
+		if (chunkIndex < 0 || startPos >= fileSize)
+			return null;
+		long len = Math.min(chunkSize, fileSize - startPos);
+		return channel.map(FileChannel.MapMode.READ_ONLY, startPos, len);
+	}
+
+	@Override
+	public long size() {
+		return fileSize;
+	}
+
+	@Override
+	public int chunkSize() {
+		return chunkSize;
+	}
+
+	@Override
+	public FileChannel fileChannel() {
+		return channel;
+	}
+
+	@Override
+	public boolean supportsConcurrentReads() {
+		return true;
+	}
+
+	/**
+	 * Reads from chunk-sized windows that are mapped once and kept, so
+	 * concurrent readers share them; a range within one window is a zero-copy
+	 * view.
+	 */
+	@Override
+	public ByteBuffer readRange(long position, int length) throws IOException {
+		int first = (int) (position / chunkSize);
+		int last = (int) ((position + length - 1) / chunkSize);
+		if (first == last) {
+			return slice(window(first), (int) (position - (long) first * chunkSize), length);
+		}
+		ByteBuffer result = ByteBuffer.allocate(length);
+		for (int w = first; w <= last; w++) {
+			long windowStart = (long) w * chunkSize;
+			int from = (int) Math.max(0, position - windowStart);
+			int to = (int) Math.min(chunkSize, position + length - windowStart);
+			result.put(slice(window(w), from, to - from));
+		}
+		((Buffer) result).flip();
+		return result;
+	}
+
+	private MappedByteBuffer window(int index) throws IOException {
+		MappedByteBuffer window = windows.get(index);
+		if (window == null) {
+			long start = (long) index * chunkSize;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, fileSize - start));
+			// another reader may have mapped it meanwhile; either mapping is fine
+			windows.compareAndSet(index, null, window);
+		}
+		return window;
+	}
+
+	private static ByteBuffer slice(ByteBuffer window, int from, int length) {
+		ByteBuffer view = window.duplicate();
+		((Buffer) view).limit(from + length);
+		((Buffer) view).position(from);
+		return view.slice();
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+}
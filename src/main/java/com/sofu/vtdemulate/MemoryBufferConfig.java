@@ -0,0 +1,76 @@
+package com.sofu.vtdemulate;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Tuning options for MemoryBufferInputStream (chunk size, resident window and
+ * chunk backend).
+ */
+@Getter
+@Setter
+public class MemoryBufferConfig {
+	/**
+	 * How chunks are materialized. HEAP copies every chunk into a fresh byte
+	 * array (original behaviour), MAPPED exposes FileChannel.map windows.
+	 */
+	public enum Backend {
+		HEAP, MAPPED
+	}
+
+	/**
+	 * Compression of the input file. AUTO detects gzip and zstd from the magic
+	 * bytes; compressed input is decoded on demand (see CompressedChunkSource)
+	 * and the backend setting does not apply. zstd needs zstd-jni on the
+	 * classpath.
+	 */
+	public enum Compression {
+		AUTO, NONE, GZIP, ZSTD
+	}
+
+	public static final int DEFAULT_CHUNK_SIZE = 3 * 1024 * 1024; // 3MB
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	/** Number of chunks kept resident (one "block" of the parse window). */
+	private int chunkCountInBlock = MemoryBufferInputStream.COUNT_OF_CHUNK_IN_BLOCK;
+	private Backend backend = Backend.HEAP;
+	private Compression compression = Compression.AUTO;
+	/**
+	 * Memory budget of the chunk cache shared by the parse stream and random
+	 * access. 0 means one block (chunkSize * chunkCountInBlock).
+	 */
+	private long cacheBudgetBytes = 0;
+	/**
+	 * Number of chunks a background thread reads ahead of the parse stream. 0
+	 * reads synchronously on the parser thread.
+	 */
+	private int prefetchDepth = 0;
+
+	public MemoryBufferConfig() {
+	}
+
+	public MemoryBufferConfig(int chunkSize, int chunkCountInBlock, Backend backend) {
+		this.chunkSize = chunkSize;
+		this.chunkCountInBlock = chunkCountInBlock;
+		this.backend = backend;
+	}
+
+	public long getEffectiveCacheBudgetBytes() {
+		return cacheBudgetBytes > 0 ? cacheBudgetBytes : (long) chunkSize * chunkCountInBlock;
+	}
+
+	void validate() {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		if (chunkCountInBlock <= 0)
+			throw new IllegalArgumentException("chunkCountInBlock must be positive: " + chunkCountInBlock);
+		if (cacheBudgetBytes < 0)
+			throw new IllegalArgumentException("cacheBudgetBytes must not be negative: " + cacheBudgetBytes);
+		if (prefetchDepth < 0)
+			throw new IllegalArgumentException("prefetchDepth must not be negative: " + prefetchDepth);
+		if (backend == null)
+			throw new IllegalArgumentException("backend must not be null");
+		if (compression == null)
+			throw new IllegalArgumentException("compression must not be null");
+	}
+}
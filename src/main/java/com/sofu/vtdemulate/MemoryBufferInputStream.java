@@ -1,171 +1,354 @@
 package com.sofu.vtdemulate;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * Buffer class to store XML file in memory and load additional data as needed
  * (extends ByteArrayInputStream)
  */
+@Slf4j
 public class MemoryBufferInputStream extends InputStream {
 	public static final int COUNT_OF_CHUNK_IN_BLOCK = 10;
-	// private static final int SAVED_BLOCK_SIZE = COUNT_OF_CHUNK_IN_BLOCK * 1024 *
-	// 1024; // 30MB
-	private static final int READ_CHUNK_SIZE = 3 * 1024 * 1024; // 2MB
-	private RandomAccessFile raf;
-	private long fileSize;
+	private final ChunkSource source;
+	private final int chunkSize;
+	private final int chunkCountInBlock;
 	private boolean eof = false;
 	private int chunkIndex = -1; // Current block index being read
+	private int nextReadChunk = 0; // Next chunk consumed by read()
 	private long totalRead = 0; // Total bytes read
-	private byte[] buf;
+	private ByteBuffer buf;
+	private long bufStart = 0; // File offset of buf[0]
 	private int pos = 0;
 	private int count = 0;
-	private int loadedChunkStart = -1;
-	private int loadedChunkEnd = -1;
-	private boolean blockListNeedsClear = false;
+	private int loadedChunkEnd = -1; // Last chunk consumed by read()
 
-	private static class BlockInfo {
-		int chunkOffset;
-		byte[] data;
+	private final ChunkCache chunkCache;
+	private int pinnedReadChunk = -1; // Chunk currently consumed by read(), pinned
+	private final ChunkPrefetcher prefetcher; // null when reading synchronously
+	private long streamStallCount; // synchronous chunk reads on the stream
+	private long streamStallNanos;
+	private ParserMetrics metrics = ParserMetrics.NOOP;
+	private final BitSet loadedChunks = new BitSet(); // chunks read from the source at least once
+	// Guards the stream position and chunk cache. A lock rather than the monitor,
+	// so a virtual thread blocked on chunk I/O releases its carrier thread.
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile boolean concurrentReads = false;
 
-		BlockInfo(int chunkOffset, byte[] data) {
-			this.chunkOffset = chunkOffset;
-			this.data = data;
-		}
+	public MemoryBufferInputStream(String filePath) throws IOException {
+		this(filePath, new MemoryBufferConfig());
 	}
 
-	private LinkedList<BlockInfo> blockList = new LinkedList<>();
-
-	public MemoryBufferInputStream(String filePath) throws IOException {
-		this.buf = new byte[READ_CHUNK_SIZE];
-		this.raf = new RandomAccessFile(filePath, "r");
-		this.fileSize = raf.length();
-		this.count = 0;
-		this.pos = 0;
-		this.eof = false;
-		this.chunkIndex = -1;
-		this.totalRead = 0;
+	/**
+	 * Constructor for file input with explicit chunk size, window size and
+	 * backend (heap copies or memory-mapped windows).
+	 */
+	public MemoryBufferInputStream(String filePath, MemoryBufferConfig config) throws IOException {
+		config.validate();
+		this.chunkSize = config.getChunkSize();
+		this.chunkCountInBlock = config.getChunkCountInBlock();
+		MemoryBufferConfig.Compression compression = config.getCompression();
+		if (compression == MemoryBufferConfig.Compression.AUTO) {
+			compression = CompressedChunkSource.detect(filePath);
+		}
+		if (compression != MemoryBufferConfig.Compression.NONE) {
+			this.source = new CompressedChunkSource(filePath, compression, chunkSize);
+		} else if (config.getBackend() == MemoryBufferConfig.Backend.MAPPED) {
+			this.source = new MappedChunkSource(filePath, chunkSize);
+		} else {
+			this.source = new HeapChunkSource(filePath, chunkSize);
+		}
+		this.chunkCache = new ChunkCache(config.getEffectiveCacheBudgetBytes(), chunkSize);
+		this.prefetcher = config.getPrefetchDepth() > 0 ? new ChunkPrefetcher(source, config.getPrefetchDepth())
+				: null;
 	}
 
 	/**
-	 * Constructor for byte array input.
+	 * Constructor for byte array input. The array is exposed as zero-copy chunks,
+	 * so read() and getByte() behave as for a file.
 	 * 
 	 * @param input The byte array containing the data.
 	 */
 	public MemoryBufferInputStream(byte[] input) {
-		this.buf = input;
-		this.fileSize = input.length;
-		this.raf = null;
-		this.eof = true;
-		this.chunkIndex = 0;
-		this.totalRead = input.length;
+		this.chunkSize = Math.max(1, Math.min(MemoryBufferConfig.DEFAULT_CHUNK_SIZE, input.length));
+		this.chunkCountInBlock = COUNT_OF_CHUNK_IN_BLOCK;
+		this.source = new ArrayChunkSource(input, chunkSize);
+		this.chunkCache = new ChunkCache((long) chunkSize * chunkCountInBlock, chunkSize);
+		this.prefetcher = null;
 	}
 
 	/**
-	 * Loads 30 consecutive blocks starting from block n into blockList. After
-	 * read() is called, blockList is cleared and reading starts anew.
+	 * Loads COUNT_OF_CHUNK_IN_BLOCK consecutive chunks starting from chunk n into
+	 * the chunk cache. Chunks already resident are not read again, and neither
+	 * the sequential read() position nor other cached chunks are invalidated.
 	 */
-	public synchronized void loadBlocksFrom(int n) throws IOException {
-		if (raf == null)
-			throw new IOException("Not a file-backed stream");
-		int newStart = n;
-		int newEnd = n + COUNT_OF_CHUNK_IN_BLOCK - 1;
-
-		// 1. Remove all blocks from blockList except those in the range n~n+29
-		Iterator<BlockInfo> it = blockList.iterator();
-		while (it.hasNext()) {
-			BlockInfo bi = it.next();
-			if (bi.chunkOffset < newStart || bi.chunkOffset > newEnd) {
-				it.remove();
+	public void loadBlocksFrom(int n) throws IOException {
+		lock.lock();
+		try {
+			for (int i = n; i < n + chunkCountInBlock; i++) {
+				if (!chunkCache.contains(i) && loadChunk(i) == null)
+					break;
 			}
+		} finally {
+			lock.unlock();
 		}
+	}
 
-		// 2. Determine the range of blocks to newly load compared to already loaded
-		// blocks
-		int toLoadChunkStart = (loadedChunkEnd < newStart || loadedChunkEnd < 0) ? newStart : loadedChunkEnd + 1;
-		int toLoadChunkEnd = newEnd;
-
-		// 3. Read only the new blocks from the file and add them
-		for (int i = toLoadChunkStart; i <= toLoadChunkEnd; i++) {
-			long startPos = (long) i * READ_CHUNK_SIZE;
-			if (startPos >= fileSize)
-				break;
-			raf.seek(startPos);
-			byte[] newBuf = new byte[READ_CHUNK_SIZE];
-			int readLen = raf.read(newBuf, 0, READ_CHUNK_SIZE);
-			if (readLen == -1)
-				break;
-			if (readLen < READ_CHUNK_SIZE) {
-				byte[] lastBuf = new byte[readLen];
-				System.arraycopy(newBuf, 0, lastBuf, 0, readLen);
-				blockList.add(new BlockInfo(i, lastBuf));
-				break;
-			}
-			blockList.add(new BlockInfo(i, newBuf));
+	/**
+	 * Returns chunk data through the cache, reading and caching it on a miss.
+	 * Returns null beyond the end of the document.
+	 */
+	private ByteBuffer loadChunk(int chunkIndex) throws IOException {
+		ByteBuffer data = chunkCache.get(chunkIndex);
+		metrics.chunkCacheAccess(data != null);
+		if (data != null)
+			return data;
+		data = source.readChunk(chunkIndex);
+		if (data != null) {
+			chunkLoaded(chunkIndex, data);
+			chunkCache.put(chunkIndex, data, true); // uncached if every slot is pinned
 		}
+		return data;
+	}
 
-		loadedChunkStart = newStart;
-		loadedChunkEnd = newEnd;
+	private void chunkLoaded(int chunkIndex, ByteBuffer data) {
+		boolean reload = loadedChunks.get(chunkIndex);
+		loadedChunks.set(chunkIndex);
+		metrics.chunkLoaded(chunkIndex, data.remaining(), reload);
+	}
 
-		this.buf = blockList.isEmpty() ? new byte[READ_CHUNK_SIZE] : blockList.getFirst().data;
-		this.pos = 0;
-		this.count = this.buf.length;
-		this.eof = false;
-		// this.hugeBlockIndex = n / COUNT_OF_CHUNK_IN_BLOCK;
-		// this.totalRead = (long) n * BLOCK_SIZE;
-		blockListNeedsClear = true;
+	/**
+	 * Sets the receiver of chunk load, cache and read counters (see
+	 * ParserMetrics); null restores the no-op default.
+	 */
+	public void setMetrics(ParserMetrics metrics) {
+		lock.lock();
+		try {
+			this.metrics = metrics == null ? ParserMetrics.NOOP : metrics;
+		} finally {
+			lock.unlock();
+		}
 	}
 
-	@Override
-	public synchronized int read() throws IOException {
-		if (blockListNeedsClear && !blockList.isEmpty()) {
-			blockList.clear();
-			blockListNeedsClear = false;
-			loadedChunkStart = -1;
-			loadedChunkEnd = -1;
+	public ParserMetrics getMetrics() {
+		lock.lock();
+		try {
+			return metrics;
+		} finally {
+			lock.unlock();
 		}
-		if (eof)
-			return -1;
-		if (pos >= count) {
-			int readLen = 0;
-			if (raf != null) {
-				buf = new byte[READ_CHUNK_SIZE];
-				readLen = raf.read(buf, 0, READ_CHUNK_SIZE);
-			} else {
+	}
+
+	@Override
+	public int read() throws IOException {
+		lock.lock();
+		try {
+			if (!fillIfExhausted())
 				return -1;
+			return buf.get(pos++) & 0xFF;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Bulk read: copies whole spans out of the resident chunks under a single lock
+	 * acquisition instead of one per byte.
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try {
+			if (off < 0 || len < 0 || len > b.length - off)
+				throw new IndexOutOfBoundsException();
+			if (len == 0)
+				return 0;
+			int copied = 0;
+			while (copied < len && fillIfExhausted()) {
+				int n = Math.min(len - copied, count - pos);
+				copy(buf, pos, b, off + copied, n);
+				pos += n;
+				copied += n;
 			}
-			if (readLen == -1) {
-				eof = true;
-				return -1;
+			return copied == 0 ? -1 : copied;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes left in the current chunk, which can be read
+	 * without touching the file.
+	 */
+	@Override
+	public int available() {
+		lock.lock();
+		try {
+			return eof ? 0 : count - pos;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Skips n bytes, or up to the end of the document, and returns the number
+	 * of bytes skipped. Whole chunks in between are not read, only the chunk
+	 * that contains the new position is loaded. While the size of compressed
+	 * input is unknown the chunks are decoded through.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		lock.lock();
+		try {
+			if (n <= 0 || eof)
+				return 0;
+			if (n <= count - pos) {
+				pos += (int) n;
+				return n;
 			}
-			this.count = readLen;
-			this.pos = 0;
-			totalRead += readLen;
-			// hugeBlockIndex = (int) (totalRead / BLOCK_SIZE);
-			chunkIndex = (int) (totalRead / READ_CHUNK_SIZE);
-			blockList.add(new BlockInfo(chunkIndex, buf));
-			if (blockList.size() > COUNT_OF_CHUNK_IN_BLOCK) {
-				blockList.removeFirst();
+			if (source.size() < 0)
+				return skipDecoded(n);
+			long from = getPosition();
+			long size = fileSize();
+			// from + n may overflow
+			long target = n >= size - from ? size : from + n;
+			if (target >= size) {
+				// consume up to the end so the next read reports EOF
+				nextReadChunk = getChunkIndex(size - 1) + 1;
+				totalRead = size;
+				if (prefetcher != null)
+					prefetcher.seek(nextReadChunk);
+				pos = count;
+				return target - from;
 			}
-			// loadedBlockStart/End 媛깆떊
-			if (!blockList.isEmpty()) {
-				loadedChunkStart = blockList.getFirst().chunkOffset;
-				loadedChunkEnd = blockList.getLast().chunkOffset;
+			int targetChunk = getChunkIndex(target);
+			nextReadChunk = targetChunk;
+			totalRead = (long) targetChunk * chunkSize;
+			if (prefetcher != null)
+				prefetcher.seek(targetChunk);
+			pos = count;
+			if (fillIfExhausted()) {
+				pos = (int) (target - bufStart);
+			}
+			return target - from;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Skips by reading through the chunks, for input whose end is not known
+	 * yet. Returns the bytes actually skipped.
+	 */
+	private long skipDecoded(long n) throws IOException {
+		long remaining = n;
+		while (remaining > 0 && fillIfExhausted()) {
+			int step = (int) Math.min(remaining, count - pos);
+			pos += step;
+			remaining -= step;
+		}
+		return n - remaining;
+	}
+
+	/**
+	 * Returns the absolute offset of the next byte returned by read().
+	 */
+	public long getPosition() {
+		lock.lock();
+		try {
+			return buf == null ? 0 : bufStart + pos;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes sure the current chunk has unread bytes, loading the next chunk if
+	 * needed. Returns false at end of stream.
+	 */
+	private boolean fillIfExhausted() throws IOException {
+		if (eof)
+			return false;
+		if (pos < count)
+			return true;
+		// a single lookup, so that misses are counted as in loadChunk
+		ByteBuffer data = chunkCache.get(nextReadChunk);
+		boolean cached = data != null;
+		metrics.chunkCacheAccess(cached);
+		if (!cached) {
+			if (prefetcher != null) {
+				data = prefetcher.take(nextReadChunk);
 			} else {
-				loadedChunkStart = -1;
-				loadedChunkEnd = -1;
+				long start = System.nanoTime();
+				data = source.readChunk(nextReadChunk);
+				streamStallCount++;
+				streamStallNanos += System.nanoTime() - start;
 			}
-			System.out.println(">>>>>> read Chunk (size=" + readLen + ", loaded block=" + loadedChunkStart + "~"
-					+ loadedChunkEnd + ")");
 		}
-		return buf[pos++] & 0xFF;
+		if (data == null) {
+			eof = true;
+			return false;
+		}
+		if (!cached) {
+			chunkLoaded(nextReadChunk, data);
+		}
+		int readLen = data.remaining();
+		this.buf = data;
+		this.bufStart = (long) nextReadChunk * chunkSize;
+		this.count = readLen;
+		this.pos = 0;
+		totalRead += readLen;
+		metrics.bytesRead(readLen);
+		// hugeBlockIndex = (int) (totalRead / BLOCK_SIZE);
+		chunkIndex = (int) (totalRead / chunkSize);
+		if (pinnedReadChunk >= 0) {
+			chunkCache.unpin(pinnedReadChunk);
+			pinnedReadChunk = -1;
+		}
+		// the chunk stays cached for random access after the stream moves on
+		if (chunkCache.put(nextReadChunk, data, false)) {
+			chunkCache.pin(nextReadChunk);
+			pinnedReadChunk = nextReadChunk;
+		}
+		loadedChunkEnd = nextReadChunk;
+		nextReadChunk++;
+		if (log.isDebugEnabled()) {
+			log.debug("read chunk {} ({} bytes, cached {}/{} bytes)", loadedChunkEnd, readLen,
+					chunkCache.getResidentBytes(), chunkCache.getBudgetBytes());
+		}
+		return count > 0;
 	}
 
+	/**
+	 * Returns the document size. For compressed input the size is only known
+	 * once the end has been decoded; until then this is Long.MAX_VALUE.
+	 */
 	public long size() {
-		return fileSize;
+		return fileSize();
+	}
+
+	private long fileSize() {
+		long size = source.size();
+		return size < 0 ? Long.MAX_VALUE : size;
+	}
+
+	/**
+	 * Returns true if the document is decoded from a compressed file.
+	 */
+	public boolean isCompressed() {
+		return source instanceof CompressedChunkSource;
 	}
 
 	public boolean isEof() {
@@ -179,60 +362,344 @@ public class MemoryBufferInputStream extends InputStream {
 		return chunkIndex;
 	}
 
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Returns the number of chunks that make up one resident block.
+	 */
+	public int getChunkCountInBlock() {
+		return chunkCountInBlock;
+	}
+
 	public void close() throws IOException {
-		if (raf != null)
-			raf.close();
+		if (prefetcher != null)
+			prefetcher.close();
+		source.close();
+	}
+
+	/**
+	 * Switches random access (getByte, getByteBuffer, writeTo, findPrevGt) to
+	 * reads that take no lock and leave the chunk cache alone, so any number of
+	 * threads can read the document at once: positional reads for the heap
+	 * backend, windows mapped once for the mapped backend, slices for byte
+	 * arrays. Compressed input keeps the locked path. The sequential read()
+	 * stream is not affected.
+	 */
+	public void setConcurrentReads(boolean concurrentReads) {
+		this.concurrentReads = concurrentReads;
+	}
+
+	public boolean isConcurrentReads() {
+		return concurrentReads;
+	}
+
+	private boolean readsConcurrently() {
+		return concurrentReads && source.supportsConcurrentReads();
+	}
+
+	/**
+	 * Lock-free read of startOffset to endOffset (inclusive, clamped to the end).
+	 */
+	private ByteBuffer readRange(long startOffset, long _endOffset) throws IOException {
+		long endOffset = Math.min(_endOffset, fileSize() - 1);
+		if (startOffset < 0 || endOffset < startOffset) {
+			throw new IOException("Invalid offset range");
+		}
+		return source.readRange(startOffset, (int) (endOffset - startOffset + 1));
 	}
 
 	/**
 	 * Returns a byte array from startOffset to endOffset (inclusive). For example,
 	 * getByte(0, 100) returns bytes 0~100 (101 bytes).
 	 */
-	public synchronized byte[] getByte(long startOffset, long _endOffset) throws IOException {
-		long endOffset = Math.min(_endOffset, fileSize - 1);
+	public byte[] getByte(long startOffset, long endOffset) throws IOException {
+		if (readsConcurrently()) {
+			ByteBuffer range = readRange(startOffset, endOffset);
+			byte[] result = new byte[range.remaining()];
+			range.get(result);
+			return result;
+		}
+		return getByteLocked(startOffset, endOffset);
+	}
 
-		if (startOffset < 0 || endOffset < startOffset) {
+	private byte[] getByteLocked(long startOffset, long _endOffset) throws IOException {
+		lock.lock();
+		try {
+			long endOffset = Math.min(_endOffset, fileSize() - 1);
+
+			if (startOffset < 0 || endOffset < startOffset) {
+				throw new IOException("Invalid offset range");
+			}
+			int startChunkIndex = getChunkIndex(startOffset);
+			int endChunkIndex = getChunkIndex(endOffset);
+
+			// Combine only the required parts, loading missing chunks through the cache
+			int totalLen = (int) (endOffset - startOffset + 1);
+			byte[] result = new byte[totalLen];
+			int copied = 0;
+			long curOffset = startOffset;
+			for (int i = startChunkIndex; i <= endChunkIndex; i++) {
+				ByteBuffer data = loadChunk(i);
+				if (data == null)
+					throw new IOException("Block not loaded: " + i);
+				long blockStart = (long) i * chunkSize;
+				long from = Math.max(curOffset, blockStart);
+				long to = Math.min(endOffset, blockStart + data.limit() - 1);
+				int len = (int) (to - from + 1);
+				copy(data, (int) (from - blockStart), result, copied, len);
+				copied += len;
+				curOffset += len;
+			}
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a read-only view of startOffset to endOffset (inclusive, like
+	 * getByte). A range inside one chunk shares the chunk's memory without
+	 * copying; a range spanning chunks is copied into a new heap buffer.
+	 */
+	public ByteBuffer getByteBuffer(long startOffset, long endOffset) throws IOException {
+		if (readsConcurrently()) {
+			return readRange(startOffset, endOffset).asReadOnlyBuffer();
+		}
+		return getByteBufferLocked(startOffset, endOffset);
+	}
+
+	private ByteBuffer getByteBufferLocked(long startOffset, long _endOffset) throws IOException {
+		lock.lock();
+		try {
+			long endOffset = Math.min(_endOffset, fileSize() - 1);
+			if (startOffset < 0 || endOffset < startOffset) {
+				throw new IOException("Invalid offset range");
+			}
+			int chunk = getChunkIndex(startOffset);
+			if (chunk != getChunkIndex(endOffset)) {
+				return ByteBuffer.wrap(getByteLocked(startOffset, endOffset)).asReadOnlyBuffer();
+			}
+			ByteBuffer data = loadChunk(chunk);
+			if (data == null)
+				throw new IOException("Block not loaded: " + chunk);
+			ByteBuffer view = data.duplicate();
+			int from = (int) (startOffset - (long) chunk * chunkSize);
+			((Buffer) view).limit(from + (int) (endOffset - startOffset + 1));
+			((Buffer) view).position(from);
+			return view.slice().asReadOnlyBuffer();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes startOffset to endOffset (inclusive, like getByte) to out one chunk
+	 * at a time, so large ranges are never materialized as a single array. The
+	 * lock is only held while a chunk is looked up, not while writing. A
+	 * FileOutputStream over an uncompressed file gets the bytes through
+	 * transferTo instead.
+	 */
+	public void writeTo(long startOffset, long endOffset, OutputStream out) throws IOException {
+		if (out instanceof FileOutputStream && source.fileChannel() != null) {
+			transferTo(startOffset, endOffset, ((FileOutputStream) out).getChannel());
+			return;
+		}
+		byte[] scratch = null;
+		long cur = startOffset;
+		long last = Math.min(endOffset, fileSize() - 1);
+		if (startOffset < 0 || last < startOffset) {
 			throw new IOException("Invalid offset range");
 		}
-		int startChunkIndex = (int) (startOffset / READ_CHUNK_SIZE);
-		int endChunkIndex = (int) (endOffset / READ_CHUNK_SIZE);
-
-		// Check if all required blocks are present in blockList (using
-		// loadedBlockStart/End range)
-		boolean allBlocksPresent = (startChunkIndex >= loadedChunkStart && endChunkIndex <= loadedChunkEnd);
-		// If not, load them using loadBlocksFrom
-		if (!allBlocksPresent) {
-			loadBlocksFrom(startChunkIndex);
-		}
-
-		// Combine only the required parts from blockList
-		int totalLen = (int) (endOffset - startOffset + 1);
-		byte[] result = new byte[totalLen];
-		int copied = 0;
-		long curOffset = startOffset;
-		for (int i = startChunkIndex; i <= endChunkIndex; i++) {
-			BlockInfo bi = null;
-			for (BlockInfo b : blockList) {
-				if (b.chunkOffset == i) {
-					bi = b;
-					break;
+		boolean concurrent = readsConcurrently();
+		while (cur <= last) {
+			int chunk = getChunkIndex(cur);
+			long chunkStart = (long) chunk * chunkSize;
+			ByteBuffer data;
+			int from;
+			int len;
+			if (concurrent) {
+				from = 0;
+				len = (int) (Math.min(last, chunkStart + chunkSize - 1) - cur + 1);
+				data = source.readRange(cur, len);
+			} else {
+				lock.lock();
+				try {
+					data = loadChunk(chunk);
+				} finally {
+					lock.unlock();
 				}
+				if (data == null)
+					throw new IOException("Block not loaded: " + chunk);
+				from = (int) (cur - chunkStart);
+				len = (int) (Math.min(last, chunkStart + data.limit() - 1) - cur + 1);
 			}
-			if (bi == null)
-				throw new IOException("Block not loaded: " + i);
-			int blockStart = (int) (i * READ_CHUNK_SIZE);
-			int from = (int) Math.max(curOffset, blockStart);
-			int to = (int) Math.min(endOffset, blockStart + bi.data.length);
-			int len = to - from + 1;
-			System.arraycopy(bi.data, from - blockStart, result, copied, len);
-			copied += len;
-			curOffset += len;
+			if (data.hasArray()) {
+				out.write(data.array(), data.arrayOffset() + from, len);
+			} else {
+				if (scratch == null)
+					scratch = new byte[Math.min(64 * 1024, chunkSize)];
+				for (int done = 0; done < len;) {
+					int n = Math.min(scratch.length, len - done);
+					copy(data, from + done, scratch, 0, n);
+					out.write(scratch, 0, n);
+					done += n;
+				}
+			}
+			cur += len;
+		}
+	}
+
+	/**
+	 * Writes startOffset to endOffset (inclusive, like getByte) to target. For an
+	 * uncompressed file the bytes go straight from the file with
+	 * FileChannel.transferTo, bypassing the chunk cache and the heap; otherwise
+	 * they are copied chunk by chunk as in writeTo.
+	 */
+	public void transferTo(long startOffset, long endOffset, WritableByteChannel target) throws IOException {
+		FileChannel channel = source.fileChannel();
+		if (channel == null) {
+			writeTo(startOffset, endOffset, Channels.newOutputStream(target));
+			return;
+		}
+		long last = Math.min(endOffset, fileSize() - 1);
+		if (startOffset < 0 || last < startOffset) {
+			throw new IOException("Invalid offset range");
+		}
+		long position = startOffset;
+		while (position <= last) {
+			long n = channel.transferTo(position, last - position + 1, target);
+			if (n <= 0) {
+				// the target accepts nothing more this way, copy the rest
+				writeTo(position, last, Channels.newOutputStream(target));
+				return;
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * Pins a resident chunk so neither the parse stream nor random-access loads
+	 * can replace it, e.g. while a caller walks several ranges of it. Every pin
+	 * must be released with {@link #unpinChunk(int)}.
+	 * 
+	 * @throws ChunkException if the chunk is not resident
+	 */
+	public void pinChunk(int chunkIndex) {
+		lock.lock();
+		try {
+			chunkCache.pin(chunkIndex);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void unpinChunk(int chunkIndex) {
+		lock.lock();
+		try {
+			chunkCache.unpin(chunkIndex);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isChunkResident(int chunkIndex) {
+		lock.lock();
+		try {
+			return chunkCache.contains(chunkIndex);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCacheHitCount() {
+		lock.lock();
+		try {
+			return chunkCache.getHits();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCacheMissCount() {
+		lock.lock();
+		try {
+			return chunkCache.getMisses();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCacheEvictionCount() {
+		lock.lock();
+		try {
+			return chunkCache.getEvictions();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCachedBytes() {
+		lock.lock();
+		try {
+			return chunkCache.getResidentBytes();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of times the parse stream had to wait for a chunk: every synchronous
+	 * read, or every time the stream overtook the prefetcher.
+	 */
+	public long getStreamStallCount() {
+		lock.lock();
+		try {
+			return prefetcher != null ? prefetcher.getStallCount() : streamStallCount;
+		} finally {
+			lock.unlock();
 		}
-		return result;
+	}
+
+	/**
+	 * Total time in nanoseconds the parse stream spent waiting for chunks.
+	 */
+	public long getStreamStallNanos() {
+		lock.lock();
+		try {
+			return prefetcher != null ? prefetcher.getStallNanos() : streamStallNanos;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isPrefetching() {
+		return prefetcher != null;
+	}
+
+	/**
+	 * Runs the read-ahead (see MemoryBufferConfig.setPrefetchDepth) as a task on
+	 * the given executor instead of a daemon thread; null restores the default.
+	 * No effect without read-ahead.
+	 */
+	public void setPrefetchExecutor(Executor executor) {
+		if (prefetcher != null)
+			prefetcher.setExecutor(executor);
+	}
+
+	public long getCacheBudgetBytes() {
+		return chunkCache.getBudgetBytes();
+	}
+
+	private static void copy(ByteBuffer src, int srcPos, byte[] dst, int dstPos, int len) {
+		ByteBuffer view = src.duplicate();
+		((Buffer) view).position(srcPos);
+		view.get(dst, dstPos, len);
 	}
 
 	public int getChunkIndex(long offset) {
-		return (int) (offset / READ_CHUNK_SIZE);
+		return (int) (offset / chunkSize);
 	}
 
 	public int getLoadedBlockEndIndex() {
@@ -240,33 +707,46 @@ public class MemoryBufferInputStream extends InputStream {
 	}
 
 	/**
-	 * Returns the offset of the first '>' character at or after fromOffset, or -1
-	 * if not found. Searches loaded blocks first, loads blocks if necessary.
+	 * Returns the offset of the first '<' character at or before fromOffset, or -1
+	 * if not found. Chunks that are not cached are loaded through the cache.
 	 */
 	public long findPrevGt(long fromOffset) throws IOException {
-		long cur = fromOffset;
-		int blockSize = READ_CHUNK_SIZE;
-		while (cur >= 0) {
-			int blockNum = (int) (cur / blockSize);
-			BlockInfo foundBlock = null;
-			for (BlockInfo b : blockList) {
-				if (b.chunkOffset == blockNum) {
-					foundBlock = b;
-					break;
+		if (!readsConcurrently())
+			return findPrevGtLocked(fromOffset);
+		long end = Math.min(fromOffset, fileSize() - 1);
+		while (end >= 0) {
+			long start = Math.max(0, end - 4095);
+			ByteBuffer window = source.readRange(start, (int) (end - start + 1));
+			for (int i = window.limit() - 1; i >= 0; i--) {
+				if (window.get(i) == '<') {
+					return start + i;
 				}
 			}
-			if (foundBlock == null) {
-				// Block not loaded, load from this block
-				return -1; // Should not happen
-			}
-			int blockOffset = (int) (cur % blockSize);
-			for (int i = blockOffset; i >= 0; i--) {
-				if (foundBlock.data[i] == '<') {
-					return (long) blockNum * blockSize + i;
+			end = start - 1;
+		}
+		return -1;
+	}
+
+	private long findPrevGtLocked(long fromOffset) throws IOException {
+		lock.lock();
+		try {
+			long cur = fromOffset;
+			while (cur >= 0) {
+				int blockNum = getChunkIndex(cur);
+				ByteBuffer foundBlock = loadChunk(blockNum);
+				if (foundBlock == null)
+					return -1;
+				int blockOffset = (int) Math.min(cur - (long) blockNum * chunkSize, foundBlock.limit() - 1);
+				for (int i = blockOffset; i >= 0; i--) {
+					if (foundBlock.get(i) == '<') {
+						return (long) blockNum * chunkSize + i;
+					}
 				}
+				cur = (long) blockNum * chunkSize - 1;
 			}
-			cur = ((long) blockNum - 1) * blockSize;
+			return -1;
+		} finally {
+			lock.unlock();
 		}
-		return -1;
 	}
-}
\ No newline at end of file
+}
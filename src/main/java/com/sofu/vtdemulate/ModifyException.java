@@ -0,0 +1,12 @@
+package com.sofu.vtdemulate;
+
+/**
+ * Thrown by XMLModifier when an edit cannot be applied: its element is not
+ * completely parsed, the document has no byte offsets, or it overlaps another
+ * edit (e.g. an element deleted twice, or a change inside a deleted element).
+ */
+public class ModifyException extends RuntimeException {
+	public ModifyException(String message) {
+		super(message);
+	}
+}
@@ -2,8 +2,12 @@ package com.sofu.vtdemulate;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MutableXmlElement extends XmlElement {
 	// Change record for attributes
@@ -45,29 +49,37 @@ public class MutableXmlElement extends XmlElement {
 		super();
 	}
 
-	// Attribute modification methods
+	/**
+	 * Sets an attribute on write: an existing attribute (matched by name, or by
+	 * local name if key has no prefix) gets the new value in place, otherwise
+	 * the attribute is added at the end of the start tag.
+	 */
 	public void putAttribute(String key, String value) {
-		AttributeChange.Type type = AttributeChange.Type.ADD; // Simplified: always ADD for demo
-		attributeChanges.add(new AttributeChange(type, key, value));
+		attributeChanges.add(new AttributeChange(AttributeChange.Type.ADD, key, value));
+		markModified();
 	}
 
 	public void removeAttribute(String key) {
 		attributeChanges.add(new AttributeChange(AttributeChange.Type.REMOVE, key, null));
+		markModified();
 	}
 
 	// TextNode modification methods
 	public void addTextNode(String value) {
 		textNodeChanges.add(new TextNodeChange(TextNodeChange.Type.APPEND, value));
+		markModified();
 	}
 
 	public void setTextNode(int index, String value) {
 		List<String> textNodes = getTextNodes();
 		textNodes.set(index, value);
 		textNodeChanges.add(new TextNodeChange(TextNodeChange.Type.MODIFY, value));
+		markModified();
 	}
 
 	public void removeTextNode() {
 		textNodeChanges.add(new TextNodeChange(TextNodeChange.Type.REMOVE, null));
+		markModified();
 	}
 
 	public List<AttributeChange> getAttributeChanges() {
@@ -78,113 +90,132 @@ public class MutableXmlElement extends XmlElement {
 		return textNodeChanges;
 	}
 
+	/**
+	 * Writes the start tag with the attribute changes applied, then the rest of
+	 * the range (content up to the first child) as is.
+	 */
 	@Override
 	protected void writePrefix(OutputStream out, MemoryBufferInputStream memoryBuffer, long startOffset,
 			long endOffset) throws IOException {
-		boolean attrChanged = !attributeChanges.isEmpty();
-		boolean textChanged = !textNodeChanges.isEmpty();
-		if (!attrChanged && !textChanged) {
-			// No changes, use original
-			super.writePrefixTextAndTail(out, memoryBuffer, startOffset, endOffset);
+		if (attributeChanges.isEmpty()) {
+			super.writePrefix(out, memoryBuffer, startOffset, endOffset);
 			return;
 		}
-
-		byte[] bytes = memoryBuffer.getByte(startOffset, endOffset);
-		String xml = new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
-		StringBuilder xmlBuilder = new StringBuilder(xml);
-
-		for (AttributeChange change : attributeChanges) {
-			processAttributeChange(xmlBuilder, change);
-		}
-		out.write(xmlBuilder.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
-		return;
+		StartTag tag = StartTag.scan(memoryBuffer, startOffset, endOffset + 1);
+		long cur = writeStartTag(out, memoryBuffer, tag);
+		copy(out, memoryBuffer, cur, endOffset);
 	}
-	
+
+	/**
+	 * Writes a childless element with its attribute and text changes applied.
+	 * Unchanged bytes are copied from the buffer as slices; only the new values
+	 * are encoded.
+	 */
 	@Override
 	protected void writePrefixTextAndTail(OutputStream out, MemoryBufferInputStream memoryBuffer, long startOffset,
 			long endOffset) throws IOException {
-		boolean attrChanged = !attributeChanges.isEmpty();
-		boolean textChanged = !textNodeChanges.isEmpty();
-		if (!attrChanged && !textChanged) {
-			// No changes, use original
+		if (attributeChanges.isEmpty() && textNodeChanges.isEmpty()) {
 			super.writePrefixTextAndTail(out, memoryBuffer, startOffset, endOffset);
 			return;
 		}
-
-		byte[] bytes = memoryBuffer.getByte(startOffset, endOffset);
-		String xml = new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
-		StringBuilder xmlBuilder = new StringBuilder(xml);
-
-		for (AttributeChange change : attributeChanges) {
-			processAttributeChange(xmlBuilder, change);
+		StartTag tag = StartTag.scan(memoryBuffer, startOffset, endOffset + 1);
+		if (textNodeChanges.isEmpty()) {
+			long cur = writeStartTag(out, memoryBuffer, tag);
+			copy(out, memoryBuffer, cur, endOffset);
+			return;
 		}
-
-		int startTextOffset = xmlBuilder.indexOf(">") + 1;
+		// effective text: the original content (unless replaced) plus appended text
+		boolean keepOriginal = true;
+		StringBuilder text = new StringBuilder();
 		for (TextNodeChange change : textNodeChanges) {
-			if (startTextOffset < 0)
-				break;
-
-			int endTextOffset = xmlBuilder.indexOf("</", startTextOffset) - 1;
-			if (endTextOffset < 0)
-				break;
-
-			processTextNodeChange(xmlBuilder, change, startTextOffset, endTextOffset);
+			if (change.type != TextNodeChange.Type.APPEND) {
+				keepOriginal = false;
+				text.setLength(0);
+			}
+			if (change.type != TextNodeChange.Type.REMOVE && change.newValue != null) {
+				text.append(change.newValue);
+			}
 		}
-
-		out.write(xmlBuilder.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
-		return;
+		byte[] newText = escapeXml(text.toString()).getBytes(StandardCharsets.UTF_8);
+		if (tag.selfClosing) {
+			long cur = writeStartTag(out, memoryBuffer, tag);
+			if (newText.length == 0) {
+				copy(out, memoryBuffer, cur, endOffset);
+				return;
+			}
+			// <a/> becomes <a>text</a>
+			out.write('>');
+			out.write(newText);
+			out.write(("</" + tag.qName + ">").getBytes(StandardCharsets.UTF_8));
+			copy(out, memoryBuffer, tag.tagEnd + 2, endOffset);
+			return;
+		}
+		long contentStart = tag.tagEnd + 1;
+		long endTagStart = memoryBuffer.findPrevGt(endOffset);
+		long cur = writeStartTag(out, memoryBuffer, tag);
+		copy(out, memoryBuffer, cur, keepOriginal ? endTagStart - 1 : contentStart - 1);
+		out.write(newText);
+		copy(out, memoryBuffer, endTagStart, endOffset);
 	}
 
 	/**
-	 * Apply attribute changes (add, modify, remove) in-place to the start tag
-	 * portion of the StringBuilder. Modifies xmlBuilder directly.
+	 * Writes the start tag from its '<' up to its end with the attribute changes
+	 * applied: changed values are replaced between their quotes, removed
+	 * attributes are skipped with their leading whitespace, added ones go before
+	 * the tag end. Returns the offset of the tag end ('>' or the '/' of "/>"),
+	 * which is not written.
 	 */
-	protected void processAttributeChange(StringBuilder origXml, AttributeChange change) {
-		String key = change.key;
-		String newValue = change.newValue;
-		AttributeChange.Type type = change.type;
-		int tagEnd = origXml.lastIndexOf(">");
-		if (tagEnd == -1)
-			return; // fallback
-
-		String attrPattern = key + "=";
-		int attrPos = origXml.indexOf(attrPattern);
-		if (type == AttributeChange.Type.ADD) {
-			// Insert new attribute before tagEnd
-			String insertStr = " " + key + "=\"" + escapeXml(newValue) + "\"";
-			origXml.insert(tagEnd, insertStr);
-		} else if (type == AttributeChange.Type.MODIFY) {
-			if (attrPos == -1)
-				return;
-			int valueStart = origXml.indexOf("\"", attrPos) + 1;
-			int valueEnd = origXml.indexOf("\"", valueStart);
-			origXml.replace(valueStart, valueEnd, escapeXml(newValue));
-		} else if (type == AttributeChange.Type.REMOVE) {
-			if (attrPos == -1)
-				return;
-			// Remove from previous space to end of value
-			int spaceBefore = origXml.lastIndexOf(" ", attrPos);
-			int valueStart = origXml.indexOf("\"", attrPos) + 1;
-			int valueEnd = origXml.indexOf("\"", valueStart);
-			origXml.delete(spaceBefore, valueEnd + 1);
+	private long writeStartTag(OutputStream out, MemoryBufferInputStream memoryBuffer, StartTag tag)
+			throws IOException {
+		// the last change of each attribute wins, in the order of first change
+		Map<String, AttributeChange> effective = new LinkedHashMap<>();
+		for (AttributeChange change : attributeChanges) {
+			effective.remove(change.key);
+			effective.put(change.key, change);
+		}
+		long cur = tag.start;
+		for (int i = 0; i < tag.attributeCount() && !effective.isEmpty(); i++) {
+			AttributeChange change = removeMatching(effective, tag.name(i));
+			if (change == null)
+				continue;
+			if (change.type == AttributeChange.Type.REMOVE) {
+				copy(out, memoryBuffer, cur, tag.leadStart(i) - 1);
+				cur = tag.valueEnd(i) + 1;
+			} else {
+				copy(out, memoryBuffer, cur, tag.valueStart(i) - 1);
+				out.write(escapeXml(change.newValue).getBytes(StandardCharsets.UTF_8));
+				cur = tag.valueEnd(i);
+			}
+		}
+		copy(out, memoryBuffer, cur, tag.tagEnd - 1);
+		for (AttributeChange change : effective.values()) {
+			if (change.type != AttributeChange.Type.REMOVE) {
+				out.write((" " + change.key + "=\"" + escapeXml(change.newValue) + "\"").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return tag.tagEnd;
+	}
+
+	private static AttributeChange removeMatching(Map<String, AttributeChange> changes, String attrName) {
+		for (Iterator<String> it = changes.keySet().iterator(); it.hasNext();) {
+			String key = it.next();
+			if (StartTag.matches(attrName, key)) {
+				AttributeChange change = changes.get(key);
+				it.remove();
+				return change;
+			}
 		}
+		return null;
 	}
 
 	/**
-	 * Apply text node changes (add, modify, remove) in-place to the text content
-	 * portion of the StringBuilder. Modifies xmlBuilder directly.
+	 * Copies from to to (inclusive) from the buffer; nothing if the range is
+	 * empty.
 	 */
-	protected void processTextNodeChange(StringBuilder origXml, TextNodeChange change, int startTextOffset,
-			int endTextOffset) {
-		TextNodeChange.Type type = change.type;
-		String newValue = change.newValue;
-
-		if (type == TextNodeChange.Type.APPEND) {
-			origXml.insert(endTextOffset, escapeXml(newValue));
-		} else if (type == TextNodeChange.Type.MODIFY) {
-			origXml.replace(startTextOffset, endTextOffset, escapeXml(newValue));
-		} else if (type == TextNodeChange.Type.REMOVE) {
-			origXml.delete(startTextOffset, endTextOffset);
+	private static void copy(OutputStream out, MemoryBufferInputStream memoryBuffer, long from, long to)
+			throws IOException {
+		if (from <= to) {
+			memoryBuffer.writeTo(from, to, out);
 		}
 	}
 
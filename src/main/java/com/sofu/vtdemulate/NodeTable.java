@@ -0,0 +1,566 @@
+package com.sofu.vtdemulate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact, VTD-style record store for parsed elements. Every element is a
+ * record identified by its ordinal in document order; its offsets, depth,
+ * parent, first child, next sibling and name ID live in parallel primitive
+ * arrays instead of one MutableXmlElement object (with its own children list,
+ * attribute map and text list) per tag. Navigation is plain integer arithmetic
+ * on these arrays.
+ * <p>
+ * Arrays are allocated in pages of {@value #PAGE_SIZE} records so growth never
+ * copies the whole table. Attribute values and text runs are kept in shared
+ * pools referenced by index.
+ * <p>
+ * The parser thread appends records; readers may navigate concurrently over
+ * the records published so far ({@link #size()}).
+ * <p>
+ * Evicting a record (see {@link #evict(int, int)}) releases the attribute
+ * values and texts of its descendants. Their structure stays, so navigation
+ * past them is unchanged, but their values throw EvictedRegionException.
+ */
+public class NodeTable {
+	public static final int NONE = -1;
+
+	static final int PAGE_BITS = 12;
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+	static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	// record states, see evict
+	private static final byte EVICTED = 1;
+	private static final byte RELEASED = 2;
+
+	private final SymbolTable symbols;
+
+	// element records
+	private long[][] startOffset = new long[16][];
+	private long[][] endOffset = new long[16][];
+	private int[][] depth = new int[16][];
+	private int[][] parent = new int[16][];
+	private int[][] firstChild = new int[16][];
+	private int[][] nextSibling = new int[16][];
+	private int[][] nameId = new int[16][];
+	private int[][] attrFirst = new int[16][];
+	private int[][] attrCount = new int[16][];
+	private int[][] firstText = new int[16][];
+	private boolean[][] container = new boolean[16][];
+	private byte[][] state = new byte[16][];
+	private volatile int size = 0;
+
+	// attribute pool
+	private int[][] attrNameId = new int[16][];
+	private String[][] attrValue = new String[16][];
+	private int attrSize = 0;
+
+	// text pool, chained per element
+	private String[][] textValue = new String[16][];
+	private int[][] textNext = new int[16][];
+	private int textSize = 0;
+
+	// parse state: open elements and the last child / text of each
+	private int[] openStack = new int[64];
+	private int[] lastChildStack = new int[64];
+	private int[] lastTextStack = new int[64];
+	private int openDepth = 0;
+	private int lastRoot = NONE;
+
+	public NodeTable() {
+		this(new SymbolTable());
+	}
+
+	public NodeTable(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	/**
+	 * Number of records published so far.
+	 */
+	public int size() {
+		return size;
+	}
+
+	// ---------------------------------------------------------------- building
+
+	/**
+	 * Appends a record for a START_ELEMENT event and makes it the innermost open
+	 * element. Returns the new record.
+	 */
+	int startElement(String name, long start) {
+		int rec = size;
+		ensureRecordPage(rec);
+		int page = rec >>> PAGE_BITS;
+		int slot = rec & PAGE_MASK;
+		int parentRec = openDepth == 0 ? NONE : openStack[openDepth - 1];
+
+		startOffset[page][slot] = start;
+		endOffset[page][slot] = 0;
+		depth[page][slot] = openDepth;
+		parent[page][slot] = parentRec;
+		firstChild[page][slot] = NONE;
+		nextSibling[page][slot] = NONE;
+		nameId[page][slot] = symbols.intern(name);
+		attrFirst[page][slot] = attrSize;
+		attrCount[page][slot] = 0;
+		firstText[page][slot] = NONE;
+		container[page][slot] = false;
+
+		int prev = openDepth == 0 ? lastRoot : lastChildStack[openDepth - 1];
+		if (prev != NONE) {
+			set(nextSibling, prev, rec);
+		} else if (parentRec != NONE) {
+			set(firstChild, parentRec, rec);
+		}
+		if (openDepth == 0) {
+			lastRoot = rec;
+		} else {
+			lastChildStack[openDepth - 1] = rec;
+		}
+
+		if (openDepth == openStack.length) {
+			openStack = Arrays.copyOf(openStack, openDepth * 2);
+			lastChildStack = Arrays.copyOf(lastChildStack, openDepth * 2);
+			lastTextStack = Arrays.copyOf(lastTextStack, openDepth * 2);
+		}
+		openStack[openDepth] = rec;
+		lastChildStack[openDepth] = NONE;
+		lastTextStack[openDepth] = NONE;
+		openDepth++;
+		size = rec + 1; // publish
+		return rec;
+	}
+
+	/**
+	 * Adds an attribute to the innermost open element. Must be called right after
+	 * startElement, before any child is started.
+	 */
+	void addAttribute(String name, String value) {
+		int rec = openStack[openDepth - 1];
+		int idx = attrSize++;
+		int page = idx >>> PAGE_BITS;
+		if (page >= attrNameId.length) {
+			attrNameId = Arrays.copyOf(attrNameId, page * 2);
+			attrValue = Arrays.copyOf(attrValue, page * 2);
+		}
+		if (attrNameId[page] == null) {
+			attrNameId[page] = new int[PAGE_SIZE];
+			attrValue[page] = new String[PAGE_SIZE];
+		}
+		attrNameId[page][idx & PAGE_MASK] = symbols.intern(name);
+		attrValue[page][idx & PAGE_MASK] = value;
+		set(attrCount, rec, get(attrCount, rec) + 1);
+	}
+
+	/**
+	 * Appends a text run to the innermost open element.
+	 */
+	void addText(String text) {
+		if (openDepth == 0)
+			return;
+		int rec = openStack[openDepth - 1];
+		int idx = textSize++;
+		int page = idx >>> PAGE_BITS;
+		if (page >= textValue.length) {
+			textValue = Arrays.copyOf(textValue, page * 2);
+			textNext = Arrays.copyOf(textNext, page * 2);
+		}
+		if (textValue[page] == null) {
+			textValue[page] = new String[PAGE_SIZE];
+			textNext[page] = new int[PAGE_SIZE];
+		}
+		textValue[page][idx & PAGE_MASK] = text;
+		textNext[page][idx & PAGE_MASK] = NONE;
+		int last = lastTextStack[openDepth - 1];
+		if (last == NONE) {
+			set(firstText, rec, idx);
+		} else {
+			textNext[last >>> PAGE_BITS][last & PAGE_MASK] = idx;
+		}
+		lastTextStack[openDepth - 1] = idx;
+	}
+
+	/**
+	 * Closes the innermost open element and returns its record.
+	 */
+	int endElement(long end) {
+		int rec = openStack[--openDepth];
+		set(endOffset, rec, end);
+		return rec;
+	}
+
+	private void ensureRecordPage(int rec) {
+		int page = rec >>> PAGE_BITS;
+		if (page >= startOffset.length) {
+			int n = startOffset.length * 2;
+			startOffset = Arrays.copyOf(startOffset, n);
+			endOffset = Arrays.copyOf(endOffset, n);
+			depth = Arrays.copyOf(depth, n);
+			parent = Arrays.copyOf(parent, n);
+			firstChild = Arrays.copyOf(firstChild, n);
+			nextSibling = Arrays.copyOf(nextSibling, n);
+			nameId = Arrays.copyOf(nameId, n);
+			attrFirst = Arrays.copyOf(attrFirst, n);
+			attrCount = Arrays.copyOf(attrCount, n);
+			firstText = Arrays.copyOf(firstText, n);
+			container = Arrays.copyOf(container, n);
+			state = Arrays.copyOf(state, n);
+		}
+		if (startOffset[page] == null) {
+			startOffset[page] = new long[PAGE_SIZE];
+			endOffset[page] = new long[PAGE_SIZE];
+			depth[page] = new int[PAGE_SIZE];
+			parent[page] = new int[PAGE_SIZE];
+			firstChild[page] = new int[PAGE_SIZE];
+			nextSibling[page] = new int[PAGE_SIZE];
+			nameId[page] = new int[PAGE_SIZE];
+			attrFirst[page] = new int[PAGE_SIZE];
+			attrCount[page] = new int[PAGE_SIZE];
+			firstText[page] = new int[PAGE_SIZE];
+			container[page] = new boolean[PAGE_SIZE];
+			state[page] = new byte[PAGE_SIZE];
+		}
+	}
+
+	private static int get(int[][] pages, int rec) {
+		return pages[rec >>> PAGE_BITS][rec & PAGE_MASK];
+	}
+
+	private static void set(int[][] pages, int rec, int value) {
+		pages[rec >>> PAGE_BITS][rec & PAGE_MASK] = value;
+	}
+
+	private static void set(long[][] pages, int rec, long value) {
+		pages[rec >>> PAGE_BITS][rec & PAGE_MASK] = value;
+	}
+
+	/**
+	 * Marks rec and its ancestors as containers of eviction-policy records,
+	 * stopping at the first one already marked.
+	 */
+	void markContainers(int rec) {
+		for (int r = rec; r != NONE && !isContainer(r); r = get(parent, r)) {
+			container[r >>> PAGE_BITS][r & PAGE_MASK] = true;
+		}
+	}
+
+	/**
+	 * Releases the attribute values and texts of the descendants of rec, the
+	 * records rec + 1 to last, and marks rec as evicted. rec keeps its own
+	 * values, like an evicted record of the object model.
+	 */
+	void evict(int rec, int last) {
+		for (int r = rec + 1; r <= last; r++) {
+			int first = get(attrFirst, r);
+			int count = get(attrCount, r);
+			for (int idx = first; idx < first + count; idx++) {
+				attrValue[idx >>> PAGE_BITS][idx & PAGE_MASK] = null;
+			}
+			for (int idx = get(firstText, r); idx != NONE; idx = textNext[idx >>> PAGE_BITS][idx & PAGE_MASK]) {
+				textValue[idx >>> PAGE_BITS][idx & PAGE_MASK] = null;
+			}
+			state[r >>> PAGE_BITS][r & PAGE_MASK] = RELEASED;
+		}
+		state[rec >>> PAGE_BITS][rec & PAGE_MASK] = EVICTED;
+	}
+
+	/**
+	 * Returns true if the subtree below rec was released by evict.
+	 */
+	public boolean isEvicted(int rec) {
+		return state[rec >>> PAGE_BITS][rec & PAGE_MASK] == EVICTED;
+	}
+
+	private boolean isReleased(int rec) {
+		return state[rec >>> PAGE_BITS][rec & PAGE_MASK] == RELEASED;
+	}
+
+	private void checkNotReleased(int rec) {
+		if (isReleased(rec)) {
+			throw new EvictedRegionException(
+					"Values of " + getTagName(rec) + " at offset " + getStartOffset(rec) + " were evicted");
+		}
+	}
+
+	// ---------------------------------------------------------------- reading
+
+	/**
+	 * Returns true if an eviction-policy record was parsed below rec.
+	 */
+	public boolean isContainer(int rec) {
+		return container[rec >>> PAGE_BITS][rec & PAGE_MASK];
+	}
+
+	public long getStartOffset(int rec) {
+		return startOffset[rec >>> PAGE_BITS][rec & PAGE_MASK];
+	}
+
+	/**
+	 * Returns the end offset, or 0 while the element is still open.
+	 */
+	public long getEndOffset(int rec) {
+		return endOffset[rec >>> PAGE_BITS][rec & PAGE_MASK];
+	}
+
+	public int getDepth(int rec) {
+		return get(depth, rec);
+	}
+
+	public int getParent(int rec) {
+		return get(parent, rec);
+	}
+
+	public int getFirstChild(int rec) {
+		return get(firstChild, rec);
+	}
+
+	public int getNextSibling(int rec) {
+		return get(nextSibling, rec);
+	}
+
+	public int getNameId(int rec) {
+		return get(nameId, rec);
+	}
+
+	public String getTagName(int rec) {
+		return symbols.name(getNameId(rec));
+	}
+
+	public int getAttributeCount(int rec) {
+		return get(attrCount, rec);
+	}
+
+	public String getAttributeName(int rec, int i) {
+		int idx = get(attrFirst, rec) + i;
+		return symbols.name(attrNameId[idx >>> PAGE_BITS][idx & PAGE_MASK]);
+	}
+
+	/**
+	 * @throws EvictedRegionException if the record's values were released
+	 */
+	public String getAttributeValue(int rec, int i) {
+		checkNotReleased(rec);
+		int idx = get(attrFirst, rec) + i;
+		return attrValue[idx >>> PAGE_BITS][idx & PAGE_MASK];
+	}
+
+	/**
+	 * Returns the value of the named attribute, or null if the element has no
+	 * such attribute.
+	 * 
+	 * @throws EvictedRegionException if the record's values were released
+	 */
+	public String getAttribute(int rec, String name) {
+		checkNotReleased(rec);
+		int id = symbols.lookup(name);
+		if (id < 0)
+			return null;
+		int first = get(attrFirst, rec);
+		int count = get(attrCount, rec);
+		for (int idx = first; idx < first + count; idx++) {
+			if (attrNameId[idx >>> PAGE_BITS][idx & PAGE_MASK] == id)
+				return attrValue[idx >>> PAGE_BITS][idx & PAGE_MASK];
+		}
+		return null;
+	}
+
+	/**
+	 * @throws EvictedRegionException if the record's values were released
+	 */
+	public List<String> getTexts(int rec) {
+		checkNotReleased(rec);
+		List<String> texts = new ArrayList<>();
+		for (int idx = get(firstText, rec); idx != NONE; idx = textNext[idx >>> PAGE_BITS][idx & PAGE_MASK]) {
+			texts.add(textValue[idx >>> PAGE_BITS][idx & PAGE_MASK]);
+		}
+		return texts;
+	}
+
+	/**
+	 * Returns the next record after {@code from} (in document order) named
+	 * {@code nameId} within the subtree of {@code from} and the subtrees of its
+	 * following siblings, or NONE. Same search order as VTDNav.toElement(String)
+	 * on the object tree, but a linear scan over the depth array: the records in
+	 * question are exactly those after {@code from} up to the first one that is
+	 * shallower than {@code from}. Records below evicted ones are skipped, as
+	 * they are gone from the object tree.
+	 */
+	public int findNext(int from, int nameId) {
+		int minDepth = getDepth(from);
+		int n = size;
+		for (int rec = from + 1; rec < n; rec++) {
+			if (getDepth(rec) < minDepth)
+				return NONE;
+			if (getNameId(rec) == nameId && !isReleased(rec))
+				return rec;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Creates a detached MutableXmlElement snapshot of one record (name, offsets,
+	 * attributes and text; no parent or children) for code written against the
+	 * object model.
+	 */
+	public MutableXmlElement materialize(int rec) {
+		MutableXmlElement element = new MutableXmlElement();
+		element.setTagName(getTagName(rec));
+		element.setStartOffset(getStartOffset(rec));
+		element.setEndOffset(getEndOffset(rec));
+		for (int i = 0; i < getAttributeCount(rec); i++) {
+			element.getAttributes().put(getAttributeName(rec, i), getAttributeValue(rec, i));
+		}
+		element.getTextNodes().addAll(getTexts(rec));
+		return element;
+	}
+
+	// ---------------------------------------------------------------- persistence
+
+	/**
+	 * Writes the records, attribute pool and text pool (see SidecarIndex). Only
+	 * valid once parsing has completed.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		int n = size;
+		out.writeInt(n);
+		out.writeInt(attrSize);
+		out.writeInt(textSize);
+		writeLongs(out, startOffset, n);
+		writeLongs(out, endOffset, n);
+		for (int[][] pages : new int[][][] { depth, parent, firstChild, nextSibling, nameId, attrFirst, attrCount,
+				firstText }) {
+			writeInts(out, pages, n);
+		}
+		for (int rec = 0; rec < n; rec++) {
+			out.writeBoolean(isContainer(rec));
+		}
+		writeInts(out, attrNameId, attrSize);
+		writeStrings(out, attrValue, attrSize);
+		writeInts(out, textNext, textSize);
+		writeStrings(out, textValue, textSize);
+	}
+
+	/**
+	 * Reads a table written by writeTo. The names must already be in symbols.
+	 */
+	static NodeTable readFrom(SidecarIndex.Input in, SymbolTable symbols) throws IOException {
+		NodeTable table = new NodeTable(symbols);
+		int n = in.readInt();
+		int attrs = in.readInt();
+		int texts = in.readInt();
+		for (int page = 0; page << PAGE_BITS < n; page++) {
+			table.ensureRecordPage(page << PAGE_BITS);
+		}
+		readLongs(in, table.startOffset, n);
+		readLongs(in, table.endOffset, n);
+		for (int[][] pages : new int[][][] { table.depth, table.parent, table.firstChild, table.nextSibling,
+				table.nameId, table.attrFirst, table.attrCount, table.firstText }) {
+			readInts(in, pages, n);
+		}
+		for (int page = 0; page << PAGE_BITS < n; page++) {
+			in.readBooleans(table.container[page], Math.min(PAGE_SIZE, n - (page << PAGE_BITS)));
+		}
+		table.attrNameId = newIntPages(attrs);
+		table.attrValue = new String[table.attrNameId.length][];
+		readInts(in, table.attrNameId, attrs);
+		readStrings(in, table.attrValue, attrs);
+		table.textNext = newIntPages(texts);
+		table.textValue = new String[table.textNext.length][];
+		readInts(in, table.textNext, texts);
+		readStrings(in, table.textValue, texts);
+		table.attrSize = attrs;
+		table.textSize = texts;
+		for (int rec = 0; rec < n; rec++) {
+			if (table.getDepth(rec) == 0)
+				table.lastRoot = rec;
+		}
+		table.size = n;
+		return table;
+	}
+
+	private static int pageCount(int count) {
+		return Math.max(16, (count + PAGE_SIZE - 1) >>> PAGE_BITS);
+	}
+
+	private static int[][] newIntPages(int count) {
+		int[][] pages = new int[pageCount(count)][];
+		for (int page = 0; page << PAGE_BITS < count; page++) {
+			pages[page] = new int[PAGE_SIZE];
+		}
+		return pages;
+	}
+
+	private static void writeLongs(DataOutputStream out, long[][] pages, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			out.writeLong(pages[i >>> PAGE_BITS][i & PAGE_MASK]);
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[][] pages, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			out.writeInt(pages[i >>> PAGE_BITS][i & PAGE_MASK]);
+		}
+	}
+
+	private static void writeStrings(DataOutputStream out, String[][] pages, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			SidecarIndex.writeString(out, pages[i >>> PAGE_BITS][i & PAGE_MASK]);
+		}
+	}
+
+	private static void readLongs(SidecarIndex.Input in, long[][] pages, int count) throws IOException {
+		for (int page = 0; page << PAGE_BITS < count; page++) {
+			in.readLongs(pages[page], Math.min(PAGE_SIZE, count - (page << PAGE_BITS)));
+		}
+	}
+
+	private static void readInts(SidecarIndex.Input in, int[][] pages, int count) throws IOException {
+		for (int page = 0; page << PAGE_BITS < count; page++) {
+			in.readInts(pages[page], Math.min(PAGE_SIZE, count - (page << PAGE_BITS)));
+		}
+	}
+
+	private static void readStrings(SidecarIndex.Input in, String[][] pages, int count) throws IOException {
+		for (int page = 0; page << PAGE_BITS < count; page++) {
+			String[] values = new String[PAGE_SIZE];
+			int n = Math.min(PAGE_SIZE, count - (page << PAGE_BITS));
+			for (int i = 0; i < n; i++) {
+				values[i] = in.readString();
+			}
+			pages[page] = values;
+		}
+	}
+
+	/**
+	 * Approximate heap used by the allocated pages, in bytes (excluding the
+	 * attribute value and text strings themselves).
+	 */
+	public long getAllocatedBytes() {
+		long recordPages = 0;
+		for (long[] page : startOffset) {
+			if (page != null)
+				recordPages++;
+		}
+		long attrPages = 0;
+		for (int[] page : attrNameId) {
+			if (page != null)
+				attrPages++;
+		}
+		long textPages = 0;
+		for (int[] page : textNext) {
+			if (page != null)
+				textPages++;
+		}
+		// 2 longs + 8 ints + 2 flag bytes per record, int + reference per
+		// attribute and text
+		return recordPages * PAGE_SIZE * (2 * 8 + 8 * 4 + 2) + (attrPages + textPages) * PAGE_SIZE * (4 + 4);
+	}
+}
@@ -0,0 +1,492 @@
+package com.sofu.vtdemulate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
+import org.codehaus.stax2.XMLStreamReader2;
+
+import com.ctc.wstx.stax.WstxInputFactory;
+
+/**
+ * Splits a file into regions at starts of a record tag (MeContext by default)
+ * and parses each region independently, for StaxXmlAdapter.setParallelism.
+ *
+ * A region is not a well-formed document: it may close elements opened by
+ * earlier regions and leave elements open for later ones. A tag-level scan
+ * finds both, and the region is parsed wrapped in synthetic start and end tags
+ * for them. Each parse yields a Region of events with absolute offsets; the
+ * adapter replays the regions in order, so elements left open by one region
+ * are closed by the real end tags of a later one.
+ *
+ * Offsets are byte offsets, as in a sequential parse: UTF-8 regions are
+ * decoded by a ByteOffsetReader, and the characters of single-byte encodings
+ * are bytes. Other encodings are not split (see isByteOffsets).
+ *
+ * Split points are found by a byte search and may be wrong, e.g. inside a
+ * comment. Such a region fails to parse or does not fit the elements left open
+ * before it; the adapter then parses the file sequentially.
+ */
+final class ParallelParser {
+	static final byte START = 0;
+	static final byte TEXT = 1;
+	static final byte END = 2;
+
+	private static final String REGION_ROOT = "vtdemulate-region";
+
+	private final File file;
+	private final String splitTag;
+	private final long regionSize;
+	private final boolean lazyValues;
+	private String encoding = "UTF-8";
+	private Charset charset = StandardCharsets.UTF_8;
+
+	ParallelParser(File file, String splitTag, long regionSize, boolean lazyValues) {
+		this.file = file;
+		this.splitTag = splitTag;
+		this.regionSize = regionSize;
+		this.lazyValues = lazyValues;
+	}
+
+	/**
+	 * Returns the region start offsets: 0, then the first split tag start at or
+	 * after each multiple of the region size. The file is not split if its
+	 * offsets cannot be byte offsets.
+	 */
+	long[] split() throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer head = ByteBuffer.allocate((int) Math.min(256, size));
+			channel.read(head, 0);
+			// later regions have no declaration of their own
+			encoding = ByteOffsetReader.detectEncoding(head.array(), head.position());
+			if (!isByteOffsets())
+				return new long[] { 0 };
+			charset = Charset.forName(encoding);
+			long[] starts = new long[16];
+			int count = 1;
+			for (long target = regionSize; target < size; target += regionSize) {
+				long limit = Math.min(size, target + regionSize);
+				if (target <= starts[count - 1])
+					continue;
+				long start = findTag(channel, target, limit);
+				if (start < 0 || start <= starts[count - 1])
+					continue;
+				if (count == starts.length)
+					starts = Arrays.copyOf(starts, count * 2);
+				starts[count++] = start;
+			}
+			return Arrays.copyOf(starts, count);
+		}
+	}
+
+	/**
+	 * Returns the offset of the first start tag with the split tag's local name
+	 * in [from, limit), or -1.
+	 */
+	private long findTag(FileChannel channel, long from, long limit) throws IOException {
+		RegionInputStream in = new RegionInputStream(channel, from, channel.size());
+		byte[] name = splitTag.getBytes(StandardCharsets.UTF_8);
+		long position = from;
+		int c;
+		while ((c = in.read()) >= 0 && position < limit) {
+			position++;
+			if (c != '<')
+				continue;
+			long tagStart = position - 1;
+			int matched = 0;
+			boolean mismatch = false;
+			while ((c = in.read()) >= 0) {
+				position++;
+				if (isNameEnd(c))
+					break;
+				if (c == ':') {
+					matched = 0; // prefix, the local name follows
+					mismatch = false;
+				} else if (!mismatch && matched < name.length && c == (name[matched] & 0xff)) {
+					matched++;
+				} else {
+					mismatch = true;
+				}
+			}
+			if (!mismatch && matched == name.length && c >= 0)
+				return tagStart;
+		}
+		return -1;
+	}
+
+	private static boolean isNameEnd(int c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '>' || c == '/' || c == '<';
+	}
+
+	/**
+	 * Returns true if the file's encoding gives byte offsets (UTF-8 or a
+	 * single-byte encoding), which the byte search and the region offsets
+	 * need. Known after split.
+	 */
+	boolean isByteOffsets() {
+		return ByteOffsetReader.isUtf8(encoding) || ByteOffsetReader.isSingleByte(encoding);
+	}
+
+	/**
+	 * Parses the region [start, end) of the file. The first region must start at
+	 * 0 and keeps the XML declaration.
+	 */
+	Region parse(long start, long end) throws IOException, XMLStreamException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Region region = new Region();
+			List<String> open = new ArrayList<>();
+			scan(new RegionInputStream(channel, start, end), charset, region.unmatched, open);
+			if (start == 0 && !region.unmatched.isEmpty())
+				throw new XMLStreamException("Unmatched end tag </" + region.unmatched.get(0) + "> in the first region");
+
+			StringBuilder prefix = new StringBuilder();
+			if (start > 0) {
+				prefix.append('<').append(REGION_ROOT).append('>');
+				for (int i = region.unmatched.size() - 1; i >= 0; i--) {
+					prefix.append('<').append(region.unmatched.get(i)).append('>');
+				}
+			}
+			StringBuilder suffix = new StringBuilder();
+			for (int i = open.size() - 1; i >= 0; i--) {
+				suffix.append("</").append(open.get(i)).append('>');
+			}
+			if (start > 0)
+				suffix.append("</").append(REGION_ROOT).append('>');
+			byte[] head = prefix.toString().getBytes(charset);
+			InputStream in = new SequenceInputStream(
+					new SequenceInputStream(new ByteArrayInputStream(head), new RegionInputStream(channel, start, end)),
+					new ByteArrayInputStream(suffix.toString().getBytes(charset)));
+			read(in, start - head.length, start > 0 ? region.unmatched.size() + 1 : 0, region);
+			// drop the synthetic end tags, which are the last events
+			int syntheticEnds = open.size() + (start > 0 ? 1 : 0);
+			region.size -= syntheticEnds;
+			for (int i = 0; i < region.unmatched.size(); i++) {
+				region.unmatched.set(i, localName(region.unmatched.get(i)));
+			}
+			return region;
+		}
+	}
+
+	/**
+	 * Parses a wrapped region. shift is the file offset of the region minus the
+	 * length of the synthetic prefix, both in bytes.
+	 */
+	private void read(InputStream in, long shift, int syntheticStarts, Region region)
+			throws IOException, XMLStreamException {
+		WstxInputFactory factory = new WstxInputFactory();
+		// regions use prefixes declared in earlier regions, so names are taken
+		// as written and prefixes stripped below
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		ByteOffsetReader offsets = null;
+		XMLStreamReader2 reader;
+		if (ByteOffsetReader.isUtf8(encoding)) {
+			offsets = new ByteOffsetReader(in);
+			offsets.sniffEncoding(); // skips a byte order mark in the first region
+			reader = (XMLStreamReader2) factory.createXMLStreamReader(offsets);
+		} else {
+			reader = (XMLStreamReader2) factory.createXMLStreamReader(in, encoding);
+		}
+		int skip = syntheticStarts;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT: {
+				if (skip > 0) {
+					skip--;
+					break;
+				}
+				long offset = byteOffset(offsets, reader.getLocationInfo().getStartLocation().getCharacterOffset())
+						+ shift;
+				region.add(START, offset, localName(reader.getLocalName()));
+				if (!lazyValues) {
+					for (int i = 0; i < reader.getAttributeCount(); i++) {
+						String name = reader.getAttributeLocalName(i);
+						if (name.equals("xmlns") || name.startsWith("xmlns:"))
+							continue;
+						region.addAttribute(localName(name), reader.getAttributeValue(i));
+					}
+				}
+				break;
+			}
+			case XMLStreamConstants.CHARACTERS:
+				if (!lazyValues && !reader.isWhiteSpace())
+					region.add(TEXT, 0, reader.getText());
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				region.add(END, byteOffset(offsets, reader.getLocationInfo().getEndLocation().getCharacterOffset())
+						+ shift, null);
+				break;
+			default:
+				break;
+			}
+		}
+		reader.close();
+	}
+
+	private static long byteOffset(ByteOffsetReader offsets, long charOffset) {
+		return offsets == null ? charOffset : offsets.byteOffset(charOffset);
+	}
+
+	private static String localName(String qname) {
+		int colon = qname.indexOf(':');
+		return colon < 0 ? qname : qname.substring(colon + 1);
+	}
+
+	/**
+	 * Tag-level scan of a region: collects end tags that close elements opened
+	 * before the region (innermost first) and the elements left open at its end
+	 * (outermost first). Comments, CDATA sections, processing instructions and
+	 * declarations are skipped.
+	 */
+	static void scan(RegionInputStream in, Charset charset, List<String> unmatched, List<String> open)
+			throws IOException {
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (c != '<')
+				continue;
+			c = in.read();
+			if (c == '/') {
+				String name = readName(in, charset, in.read());
+				skipPast(in, ">");
+				if (open.isEmpty())
+					unmatched.add(name);
+				else
+					open.remove(open.size() - 1);
+			} else if (c == '?') {
+				skipPast(in, "?>");
+			} else if (c == '!') {
+				c = in.read();
+				if (c == '-') {
+					skipPast(in, "-->");
+				} else if (c == '[') {
+					skipPast(in, "]]>");
+				} else {
+					skipDeclaration(in);
+				}
+			} else if (c >= 0) {
+				String name = readName(in, charset, c);
+				if (!skipAttributes(in))
+					open.add(name);
+			}
+		}
+	}
+
+	private static String readName(RegionInputStream in, Charset charset, int c) throws IOException {
+		ByteArrayOutputStream name = new ByteArrayOutputStream();
+		while (c >= 0 && !isNameEnd(c)) {
+			name.write(c);
+			c = in.read();
+		}
+		in.unread(c);
+		return new String(name.toByteArray(), charset);
+	}
+
+	/**
+	 * Skips the rest of a start tag and returns true if it was empty (/>).
+	 */
+	private static boolean skipAttributes(RegionInputStream in) throws IOException {
+		int quote = 0;
+		int prev = 0;
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return prev == '/';
+			}
+			prev = c;
+		}
+		return false;
+	}
+
+	private static void skipPast(RegionInputStream in, String end) throws IOException {
+		int matched = 0;
+		int c;
+		while (matched < end.length() && (c = in.read()) >= 0) {
+			if (c == end.charAt(matched))
+				matched++;
+			else
+				matched = c == end.charAt(0) ? 1 : 0;
+		}
+	}
+
+	/**
+	 * Skips a <!DOCTYPE ...> or similar declaration, including an internal
+	 * subset in brackets.
+	 */
+	private static void skipDeclaration(RegionInputStream in) throws IOException {
+		int brackets = 0;
+		int quote = 0;
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '[') {
+				brackets++;
+			} else if (c == ']') {
+				brackets--;
+			} else if (c == '>' && brackets <= 0) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Events of one region in document order. START carries the local name and
+	 * its attributes (counts[i] name/value pairs following the name in strings),
+	 * TEXT the text, END only the end offset. Offsets are absolute.
+	 */
+	static final class Region {
+		// end tags closing elements of earlier regions, innermost first
+		final List<String> unmatched = new ArrayList<>();
+		private byte[] types = new byte[256];
+		private long[] offsets = new long[256];
+		private int[] counts = new int[256];
+		private String[] strings = new String[512];
+		private int size;
+		private int stringCount;
+
+		private void add(byte type, long offset, String value) {
+			if (size == types.length) {
+				int n = size * 2;
+				types = Arrays.copyOf(types, n);
+				offsets = Arrays.copyOf(offsets, n);
+				counts = Arrays.copyOf(counts, n);
+			}
+			types[size] = type;
+			offsets[size] = offset;
+			counts[size] = 0;
+			size++;
+			if (value != null)
+				addString(value);
+		}
+
+		private void addAttribute(String name, String value) {
+			counts[size - 1]++;
+			addString(name);
+			addString(value);
+		}
+
+		private void addString(String value) {
+			if (stringCount == strings.length)
+				strings = Arrays.copyOf(strings, stringCount * 2);
+			strings[stringCount++] = value;
+		}
+
+		int size() {
+			return size;
+		}
+
+		byte type(int i) {
+			return types[i];
+		}
+
+		long offset(int i) {
+			return offsets[i];
+		}
+
+		/**
+		 * Number of attributes of the START event i.
+		 */
+		int attributeCount(int i) {
+			return counts[i];
+		}
+
+		/**
+		 * The strings of all events in order, read with a cursor while
+		 * replaying: the name and attribute pairs of each START, the text of
+		 * each TEXT.
+		 */
+		String string(int i) {
+			return strings[i];
+		}
+	}
+
+	/**
+	 * Reads [start, end) of a file with positional reads, so many regions can be
+	 * read from one channel at once. Supports one byte of push-back.
+	 */
+	static final class RegionInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long end;
+		private final ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+		private long position;
+		private int pushedBack = -1;
+
+		RegionInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+			((Buffer) buffer).limit(0);
+		}
+
+		void unread(int c) {
+			pushedBack = c;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pushedBack >= 0) {
+				int c = pushedBack;
+				pushedBack = -1;
+				return c;
+			}
+			if (!buffer.hasRemaining() && !fill())
+				return -1;
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (pushedBack >= 0) {
+				b[off] = (byte) pushedBack;
+				pushedBack = -1;
+				return 1;
+			}
+			if (!buffer.hasRemaining() && !fill())
+				return -1;
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		private boolean fill() throws IOException {
+			if (position >= end)
+				return false;
+			((Buffer) buffer).clear();
+			((Buffer) buffer).limit((int) Math.min(buffer.capacity(), end - position));
+			int n = channel.read(buffer, position);
+			if (n <= 0)
+				return false;
+			position += n;
+			((Buffer) buffer).flip();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package com.sofu.vtdemulate;
+
+/**
+ * Thrown when the parser thread does not reach the awaited state (next block
+ * loaded, element fully parsed, first root element available) in time.
+ */
+public class ParseTimeoutException extends RuntimeException {
+	public ParseTimeoutException(String message) {
+		super(message);
+	}
+}
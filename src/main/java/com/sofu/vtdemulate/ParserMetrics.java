@@ -0,0 +1,74 @@
+package com.sofu.vtdemulate;
+
+/**
+ * Receives counters and timings from the parse and buffer hot paths, so a slow
+ * job can be attributed to disk reads, parsing, eviction or waiting on
+ * pause/resume. Every method has an empty default; implement the ones of
+ * interest and bind them to the metrics system in use (e.g. Micrometer
+ * counters and timers). {@link JmxParserMetrics} publishes them over JMX.
+ *
+ * Callbacks run on the parser thread (or on the thread reading the buffer) and
+ * must be cheap and thread-safe. Element counts are reported in batches, at
+ * block boundaries and when the parse ends.
+ */
+public interface ParserMetrics {
+
+	/**
+	 * Records nothing. The default of StaxXmlAdapter and MemoryBufferInputStream.
+	 */
+	ParserMetrics NOOP = new ParserMetrics() {
+	};
+
+	/**
+	 * Bytes delivered to the parse stream by MemoryBufferInputStream.read.
+	 */
+	default void bytesRead(long bytes) {
+	}
+
+	/**
+	 * A chunk was read from the file (or decoded, for compressed input).
+	 * 
+	 * @param reload true if the chunk had been read before and was evicted from
+	 *               the chunk cache in between
+	 */
+	default void chunkLoaded(int chunkIndex, int bytes, boolean reload) {
+	}
+
+	/**
+	 * A chunk was looked up in the chunk cache.
+	 */
+	default void chunkCacheAccess(boolean hit) {
+	}
+
+	/**
+	 * Elements (or compact-mode records) created since the last report.
+	 */
+	default void elementsCreated(long count) {
+	}
+
+	/**
+	 * Record subtrees released by the eviction policy, and the number of
+	 * elements they contained.
+	 */
+	default void recordsEvicted(int records, long elements) {
+	}
+
+	/**
+	 * Elements currently held in memory: created and not evicted.
+	 */
+	default void liveNodes(long count) {
+	}
+
+	/**
+	 * Time the parser thread spent paused at a block boundary.
+	 */
+	default void parsePaused(long nanos) {
+	}
+
+	/**
+	 * Time a reader waited after asking the paused parser to resume, until it
+	 * reached the next block or ended.
+	 */
+	default void resumeWaited(long nanos) {
+	}
+}
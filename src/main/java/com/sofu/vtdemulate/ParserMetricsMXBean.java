@@ -0,0 +1,40 @@
+package com.sofu.vtdemulate;
+
+/**
+ * JMX view of {@link JmxParserMetrics}. Times are in nanoseconds.
+ */
+public interface ParserMetricsMXBean {
+	long getBytesRead();
+
+	long getChunkLoads();
+
+	long getChunkReloads();
+
+	long getChunkBytesLoaded();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	double getCacheHitRatio();
+
+	long getElementsCreated();
+
+	long getRecordsEvicted();
+
+	long getElementsEvicted();
+
+	long getLiveNodes();
+
+	long getPauseCount();
+
+	long getPauseNanos();
+
+	long getResumeWaitCount();
+
+	long getResumeWaitNanos();
+
+	long getMaxResumeWaitNanos();
+
+	void reset();
+}
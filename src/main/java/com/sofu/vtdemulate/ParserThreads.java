@@ -0,0 +1,74 @@
+package com.sofu.vtdemulate;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors for StaxXmlAdapter.setExecutor. The library targets Java 8, so
+ * virtual threads (JDK 21+) are looked up at runtime instead of compiled
+ * against.
+ *
+ * A parse that pauses at block boundaries keeps its task blocked until the
+ * navigator resumes it. The parser and the buffer block on
+ * java.util.concurrent locks only, so on virtual threads a paused document
+ * does not hold a carrier thread, and thousands of documents can be open at
+ * once. On a bounded pool of platform threads every paused document occupies
+ * one pool thread.
+ */
+public final class ParserThreads {
+	private static final MethodHandle NEW_VIRTUAL_THREAD_EXECUTOR = lookupVirtualThreadExecutor();
+
+	private ParserThreads() {
+	}
+
+	private static MethodHandle lookupVirtualThreadExecutor() {
+		try {
+			return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+					MethodType.methodType(ExecutorService.class));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the running JDK has virtual threads (21 or later).
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+	}
+
+	/**
+	 * Returns an executor that starts a virtual thread per task.
+	 *
+	 * @throws UnsupportedOperationException before JDK 21
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		if (NEW_VIRTUAL_THREAD_EXECUTOR == null)
+			throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+		try {
+			return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invokeExact();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns a virtual thread executor where available, otherwise one that
+	 * starts a daemon platform thread per task (what StaxXmlAdapter does without
+	 * an executor).
+	 */
+	public static ExecutorService newParserExecutor() {
+		if (isVirtualThreadsAvailable())
+			return newVirtualThreadExecutor();
+		return Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "StaxXmlAdapter-ParserThread");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+}
@@ -0,0 +1,103 @@
+package com.sofu.vtdemulate;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * EvictionPolicy that matches records by tag name, depth or path and keeps a
+ * retention window behind the parser, in blocks (chunks) or bytes.
+ *
+ * <pre>
+ * RecordEvictionPolicy.byTag("MeContext");                 // 3GPP CM (default)
+ * RecordEvictionPolicy.byPath("/measCollecFile/measData"); // PM files
+ * RecordEvictionPolicy.byDepth(2).retainBytes(64L &lt;&lt; 20);
+ * </pre>
+ */
+public class RecordEvictionPolicy implements EvictionPolicy {
+	private final Set<String> tagNames;
+	private final int depth;
+	private final List<String> path;
+	private int retainBlocks = 0;
+	private long retainBytes = -1;
+
+	private RecordEvictionPolicy(Set<String> tagNames, int depth, List<String> path) {
+		this.tagNames = tagNames;
+		this.depth = depth;
+		this.path = path;
+	}
+
+	/**
+	 * Records are elements with one of the given local names, at any depth.
+	 */
+	public static RecordEvictionPolicy byTag(String... tagNames) {
+		return new RecordEvictionPolicy(new HashSet<>(Arrays.asList(tagNames)), -1, null);
+	}
+
+	/**
+	 * Records are all elements at the given depth (0 = root element).
+	 */
+	public static RecordEvictionPolicy byDepth(int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("Record depth must be at least 1: " + depth);
+		return new RecordEvictionPolicy(null, depth, null);
+	}
+
+	/**
+	 * Records are elements at the given absolute path of local names, e.g.
+	 * "/bulkCmConfigDataFile/configData/SubNetwork/MeContext". "*" matches any
+	 * name at that level.
+	 */
+	public static RecordEvictionPolicy byPath(String path) {
+		if (!path.startsWith("/") || path.length() < 2)
+			throw new IllegalArgumentException("Record path must be absolute: " + path);
+		return new RecordEvictionPolicy(null, -1, Arrays.asList(path.substring(1).split("/")));
+	}
+
+	/**
+	 * Keeps records that end in the last n blocks (chunks) behind the parser. 0,
+	 * the default, keeps one resident block (chunkCountInBlock chunks).
+	 */
+	public RecordEvictionPolicy retainBlocks(int n) {
+		if (n < 0)
+			throw new IllegalArgumentException("retainBlocks must not be negative: " + n);
+		this.retainBlocks = n;
+		this.retainBytes = -1;
+		return this;
+	}
+
+	/**
+	 * Keeps records that end within n bytes behind the parser.
+	 */
+	public RecordEvictionPolicy retainBytes(long n) {
+		if (n < 0)
+			throw new IllegalArgumentException("retainBytes must not be negative: " + n);
+		this.retainBytes = n;
+		return this;
+	}
+
+	@Override
+	public boolean isRecord(String tagName, int depth, List<String> path) {
+		if (tagNames != null)
+			return tagNames.contains(tagName);
+		if (this.depth >= 0)
+			return depth == this.depth;
+		if (path.size() != this.path.size())
+			return false;
+		for (int i = 0; i < path.size(); i++) {
+			String expected = this.path.get(i);
+			if (!expected.equals("*") && !expected.equals(path.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public long evictionBoundary(long parsedOffset, int chunkSize, int chunkCountInBlock) {
+		if (retainBytes >= 0)
+			return parsedOffset - retainBytes;
+		int blocks = retainBlocks > 0 ? retainBlocks : chunkCountInBlock;
+		return (parsedOffset / chunkSize - blocks) * (long) chunkSize;
+	}
+}
@@ -0,0 +1,229 @@
+package com.sofu.vtdemulate;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary sidecar of the compact structural index, written next to the XML
+ * file so that later opens skip parsing: the equivalent of VTD-XML's
+ * writeIndex/loadIndex for the NodeTable model. It holds the names, the
+ * record offsets, parent/child/sibling links and name IDs, and unless the
+ * document was parsed with lazy values, the attribute and text pools.
+ *
+ * The sidecar is stamped with the XML file's size and modification time and
+ * is ignored when either differs. Loading reads it through memory-mapped
+ * windows straight into NodeTable pages.
+ */
+public final class SidecarIndex {
+	public static final String SUFFIX = ".vtdidx";
+
+	private static final int MAGIC = 0x56544458; // "VTDX"
+	private static final int VERSION = 2; // 2: byte offsets for UTF-8 input
+	private static final int FLAG_LAZY_VALUES = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+	private static final long WINDOW_SIZE = 64L << 20;
+
+	private SidecarIndex() {
+	}
+
+	/**
+	 * Returns the default sidecar location for the XML file.
+	 */
+	public static File indexFile(File xmlFile) {
+		return new File(xmlFile.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Writes the index of a completely parsed compact-mode adapter.
+	 *
+	 * @throws IllegalStateException if the adapter is not in compact mode or has
+	 *                               not finished parsing, or if records were
+	 *                               evicted
+	 */
+	public static void write(StaxXmlAdapter adapter, File indexFile) throws IOException {
+		if (adapter.getNodeTable() == null || !adapter.isParsingComplete())
+			throw new IllegalStateException("A sidecar index needs a completed compact-mode parse");
+		if (adapter.getEvictedRecordCount() > 0)
+			throw new IllegalStateException("A sidecar index needs every record's values, but records were evicted");
+		write(new File(adapter.getFilePath()), indexFile, adapter.getNodeTable(), adapter.isLazyValues());
+	}
+
+	static void write(File xmlFile, File indexFile, NodeTable table, boolean lazyValues) throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(xmlFile.length());
+			out.writeLong(xmlFile.lastModified());
+			out.writeInt(lazyValues ? FLAG_LAZY_VALUES : 0);
+			SymbolTable symbols = table.getSymbols();
+			int symbolCount = symbols.size();
+			out.writeInt(symbolCount);
+			for (int id = 0; id < symbolCount; id++) {
+				writeString(out, symbols.name(id));
+			}
+			table.writeTo(out);
+		}
+		if (!tmp.renameTo(indexFile)) {
+			indexFile.delete();
+			if (!tmp.renameTo(indexFile))
+				throw new IOException("Cannot replace " + indexFile);
+		}
+	}
+
+	/**
+	 * Returns true if the sidecar exists and was written for the XML file as it
+	 * is now.
+	 */
+	public static boolean isValid(File xmlFile, File indexFile) throws IOException {
+		if (!indexFile.isFile())
+			return false;
+		try (Input in = new Input(indexFile)) {
+			return readHeader(in, xmlFile) >= 0;
+		}
+	}
+
+	/**
+	 * Returns the header flags, or -1 if the sidecar does not match the file.
+	 */
+	private static int readHeader(Input in, File xmlFile) throws IOException {
+		if (in.size() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION)
+			return -1;
+		if (in.readLong() != xmlFile.length() || in.readLong() != xmlFile.lastModified())
+			return -1;
+		return in.readInt();
+	}
+
+	/**
+	 * Loads a valid sidecar into the adapter in place of parsing. Returns false
+	 * if the sidecar is missing or stale.
+	 */
+	static boolean loadInto(StaxXmlAdapter adapter, File xmlFile, File indexFile) throws IOException {
+		if (!indexFile.isFile())
+			return false;
+		try (Input in = new Input(indexFile)) {
+			int flags = readHeader(in, xmlFile);
+			if (flags < 0)
+				return false;
+			SymbolTable symbols = new SymbolTable();
+			int symbolCount = in.readInt();
+			for (int id = 0; id < symbolCount; id++) {
+				symbols.intern(in.readString());
+			}
+			NodeTable table = NodeTable.readFrom(in, symbols);
+			adapter.attachIndex(table, (flags & FLAG_LAZY_VALUES) != 0);
+			return true;
+		}
+	}
+
+	/**
+	 * Writes a nullable string as its UTF-8 length (-1 for null) and bytes.
+	 */
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Sequential reader over memory-mapped windows of the sidecar, so files
+	 * larger than one mapping can be read.
+	 */
+	static final class Input implements Closeable {
+		private final FileChannel channel;
+		private final long size;
+		private MappedByteBuffer window;
+		private long windowStart;
+
+		Input(File file) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.size = channel.size();
+			map(0);
+		}
+
+		long size() {
+			return size;
+		}
+
+		private void map(long position) throws IOException {
+			windowStart = position;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+		}
+
+		/**
+		 * Makes at least n bytes available in the window (n must not exceed the
+		 * window size).
+		 */
+		private void ensure(int n) throws IOException {
+			if (window.remaining() >= n)
+				return;
+			long position = windowStart + window.position();
+			if (size - position < n)
+				throw new IOException("Truncated sidecar index at " + position);
+			map(position);
+		}
+
+		int readInt() throws IOException {
+			ensure(4);
+			return window.getInt();
+		}
+
+		long readLong() throws IOException {
+			ensure(8);
+			return window.getLong();
+		}
+
+		void readInts(int[] dst, int n) throws IOException {
+			ensure(n * 4);
+			window.asIntBuffer().get(dst, 0, n);
+			((Buffer) window).position(window.position() + n * 4);
+		}
+
+		void readLongs(long[] dst, int n) throws IOException {
+			ensure(n * 8);
+			window.asLongBuffer().get(dst, 0, n);
+			((Buffer) window).position(window.position() + n * 8);
+		}
+
+		void readBooleans(boolean[] dst, int n) throws IOException {
+			ensure(n);
+			for (int i = 0; i < n; i++) {
+				dst[i] = window.get() != 0;
+			}
+		}
+
+		String readString() throws IOException {
+			int length = readInt();
+			if (length < 0)
+				return null;
+			byte[] bytes = new byte[length];
+			int read = 0;
+			while (read < length) {
+				ensure(1);
+				int n = Math.min(length - read, window.remaining());
+				window.get(bytes, read, n);
+				read += n;
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package com.sofu.vtdemulate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Byte offsets of the name and attributes of a start tag, scanned from the
+ * buffer, so attribute and text edits can be written as slices of the original
+ * bytes plus replacement bytes without decoding the element.
+ */
+final class StartTag {
+	private static final int READ_SIZE = 1024;
+
+	/** Offset of '<'. */
+	final long start;
+	/** Offset of the '>' that ends the tag, or of the '/' of "/>". */
+	long tagEnd;
+	boolean selfClosing;
+	String qName;
+	private final List<String> names = new ArrayList<>();
+	// per attribute: first whitespace before the name, value start and end
+	// (exclusive, the closing quote)
+	private long[] offsets = new long[12];
+
+	private StartTag(long start) {
+		this.start = start;
+	}
+
+	/**
+	 * Scans the start tag at start. limit bounds the scan (the element's end).
+	 * 
+	 * @throws ModifyException if the bytes are not a well-formed start tag
+	 */
+	static StartTag scan(MemoryBufferInputStream memoryBuffer, long start, long limit) throws IOException {
+		StartTag tag = new StartTag(start);
+		new Scanner(memoryBuffer, start, limit).scan(tag);
+		return tag;
+	}
+
+	int attributeCount() {
+		return names.size();
+	}
+
+	String name(int i) {
+		return names.get(i);
+	}
+
+	/** Offset of the whitespace that separates the attribute from what precedes it. */
+	long leadStart(int i) {
+		return offsets[i * 3];
+	}
+
+	/** Offset of the first value byte, after the opening quote. */
+	long valueStart(int i) {
+		return offsets[i * 3 + 1];
+	}
+
+	/** Offset of the closing quote. */
+	long valueEnd(int i) {
+		return offsets[i * 3 + 2];
+	}
+
+	/**
+	 * Returns the index of the attribute with this name, or -1. A name without
+	 * prefix also matches a prefixed attribute with that local name.
+	 */
+	int indexOf(String name) {
+		for (int i = 0; i < names.size(); i++) {
+			if (matches(names.get(i), name))
+				return i;
+		}
+		return -1;
+	}
+
+	static boolean matches(String attrName, String name) {
+		if (attrName.equals(name))
+			return true;
+		int colon = attrName.indexOf(':');
+		return colon >= 0 && name.indexOf(':') < 0 && attrName.length() - colon - 1 == name.length()
+				&& attrName.startsWith(name, colon + 1);
+	}
+
+	private void addAttribute(String name, long leadStart, long valueStart, long valueEnd) {
+		int i = names.size() * 3;
+		if (i + 3 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[i] = leadStart;
+		offsets[i + 1] = valueStart;
+		offsets[i + 2] = valueEnd;
+		names.add(name);
+	}
+
+	/**
+	 * Reads the tag in small windows from the buffer.
+	 */
+	private static final class Scanner {
+		private final MemoryBufferInputStream memoryBuffer;
+		private final long limit;
+		private ByteBuffer window;
+		private long windowStart;
+		private long pos;
+		private final ByteArrayOutputStream name = new ByteArrayOutputStream();
+
+		Scanner(MemoryBufferInputStream memoryBuffer, long start, long limit) {
+			this.memoryBuffer = memoryBuffer;
+			this.limit = Math.min(limit, memoryBuffer.size());
+			this.pos = start;
+		}
+
+		private int peek() throws IOException {
+			if (pos >= limit)
+				throw new ModifyException("Unterminated start tag before offset " + limit);
+			if (window == null || pos >= windowStart + window.limit()) {
+				windowStart = pos;
+				window = memoryBuffer.getByteBuffer(pos, Math.min(limit, pos + READ_SIZE) - 1);
+			}
+			return window.get((int) (pos - windowStart)) & 0xFF;
+		}
+
+		private static boolean isNameEnd(int c) {
+			return c == '=' || c == '>' || c == '/' || c == ' ' || c == '\t' || c == '\n' || c == '\r';
+		}
+
+		private static boolean isWhitespace(int c) {
+			return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+		}
+
+		private String readName() throws IOException {
+			name.reset();
+			int c;
+			while (!isNameEnd(c = peek())) {
+				name.write(c);
+				pos++;
+			}
+			return new String(name.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		private void skipWhitespace() throws IOException {
+			while (isWhitespace(peek())) {
+				pos++;
+			}
+		}
+
+		void scan(StartTag tag) throws IOException {
+			if (peek() != '<')
+				throw new ModifyException("No start tag at offset " + pos);
+			pos++;
+			tag.qName = readName();
+			while (true) {
+				long leadStart = pos;
+				skipWhitespace();
+				int c = peek();
+				if (c == '>' || c == '/') {
+					tag.tagEnd = pos;
+					tag.selfClosing = c == '/';
+					return;
+				}
+				String attrName = readName();
+				skipWhitespace();
+				if (peek() != '=')
+					throw new ModifyException("Malformed attribute at offset " + pos);
+				pos++;
+				skipWhitespace();
+				int quote = peek();
+				if (quote != '"' && quote != '\'')
+					throw new ModifyException("Unquoted attribute value at offset " + pos);
+				long valueStart = ++pos;
+				while (peek() != quote) {
+					pos++;
+				}
+				tag.addAttribute(attrName, leadStart, valueStart, pos++);
+			}
+		}
+	}
+}
@@ -1,18 +1,25 @@
 package com.sofu.vtdemulate;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Stack;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
@@ -27,17 +34,57 @@ import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class StaxXmlAdapter implements Runnable {
+	// how long startParsing waits for the first block (or a parallel parse)
+	private static final int START_TIMEOUT_MILLIS = 10000;
+
 	private String filePath;
 
 	private List<MutableXmlElement> rootNodes = new CopyOnWriteArrayList<>(); // Top-level nodes (multiple possible)
 	private MemoryBufferInputStream memoryBuffer;
+	// Compact mode: elements are records in nodeTable instead of MutableXmlElement
+	private boolean compactMode = false;
+	private volatile NodeTable nodeTable;
+	// Per-document name dictionary shared by both element models
+	private volatile SymbolTable symbols = new SymbolTable();
+	private EvictionPolicy evictionPolicy = RecordEvictionPolicy.byTag("MeContext");
+	// Lazy value mode: attributes and texts are decoded from the buffer on demand
+	private boolean lazyValues = false;
+	private int decodeCacheSize = 64;
+	private ValueDecoder valueDecoder;
+	// Name -> document-order posting lists for VTDNav.toElement(String)
+	private boolean tagIndexEnabled = false;
+	private volatile TagIndex tagIndex;
+	private int nextOrdinal;
+	// Declared (tag, attribute) value index, saved next to the file after parsing
+	private AttributeIndex attributeIndex;
+	// Write a SidecarIndex next to the file when a compact-mode parse completes
+	private boolean saveSidecarIndex = false;
+	private volatile boolean parsingComplete = false;
+	// Offsets of the current parse: mapped from characters for UTF-8 input
+	private ByteOffsetReader offsetReader;
+	private volatile boolean byteOffsets = true;
+	// Expressions evaluated on the event stream (null if none registered)
+	private StreamingXPathMatcher streamingXPaths;
+	// Parallel parse: regions split at splitTag starts, parsed on a fork/join pool
+	private int parallelism = 1;
+	private String splitTag = "MeContext";
+	private long parallelRegionSize = 8L << 20;
+	// Counters and timings, see ParserMetrics
+	private ParserMetrics metrics = ParserMetrics.NOOP;
+	private long reportedElements;
+	private long evictedElements;
 
 	// Threading and pause/resume control
-	private Thread parserThread;
+	private Executor executor; // null: a new platform thread per parse
+	private final AtomicBoolean parserActive = new AtomicBoolean(false);
 	private volatile boolean running = false;
+	// set by stopParsing, checked by the parser between events
+	private volatile boolean stopRequested = false;
 	private volatile AtomicBoolean paused = new AtomicBoolean(false);
 	private final Lock pauseLock = new ReentrantLock();
 	private final Condition pauseCondition = pauseLock.newCondition();
+	// Signalled whenever the parser pauses, terminates or adds the first root
+	private final Condition stateChanged = pauseLock.newCondition();
 
 	/**
 	 * Constructor for file-based XML parsing. Does not start parsing automatically.
@@ -45,9 +92,20 @@ public class StaxXmlAdapter implements Runnable {
 	 * @param filePath The path to the XML file.
 	 */
 	public StaxXmlAdapter(String filePath) {
+		this(filePath, new MemoryBufferConfig());
+	}
+
+	/**
+	 * Constructor for file-based XML parsing with explicit buffer settings (chunk
+	 * size, resident chunk count, heap or memory-mapped backend).
+	 * 
+	 * @param filePath The path to the XML file.
+	 * @param config   The MemoryBufferInputStream configuration.
+	 */
+	public StaxXmlAdapter(String filePath, MemoryBufferConfig config) {
 		this.filePath = filePath;
 		try {
-			this.memoryBuffer = new MemoryBufferInputStream(filePath);
+			this.memoryBuffer = new MemoryBufferInputStream(filePath, config);
 		} catch (Exception e) {
 			log.error("{}", e);
 			this.memoryBuffer = null;
@@ -58,6 +116,291 @@ public class StaxXmlAdapter implements Runnable {
 		return filePath;
 	}
 
+	public MemoryBufferInputStream getMemoryBuffer() {
+		return memoryBuffer;
+	}
+
+	/**
+	 * Selects the compact element model: parsed elements are stored as records
+	 * in a NodeTable (parallel primitive arrays) instead of a MutableXmlElement
+	 * tree. Must be set before parsing starts. getRootElements() is empty in
+	 * this mode; use getNodeTable() or VTDNav.
+	 */
+	public void setCompactMode(boolean compactMode) {
+		this.compactMode = compactMode;
+	}
+
+	public boolean isCompactMode() {
+		return compactMode;
+	}
+
+	/**
+	 * Selects lazy value mode: the parser records only element offsets and skips
+	 * copying attributes and text nodes. VTDNav.getAttrVal and getText decode
+	 * them from the buffer when asked. Must be set before parsing starts.
+	 */
+	public void setLazyValues(boolean lazyValues) {
+		this.lazyValues = lazyValues;
+	}
+
+	public boolean isLazyValues() {
+		return lazyValues;
+	}
+
+	/**
+	 * Sets how many decoded attribute maps are kept in lazy value mode (0
+	 * disables the cache). Default 64.
+	 */
+	public void setDecodeCacheSize(int decodeCacheSize) {
+		this.decodeCacheSize = decodeCacheSize;
+	}
+
+	/**
+	 * Returns the on-demand decoder in lazy value mode, or null otherwise.
+	 */
+	ValueDecoder getValueDecoder() {
+		return valueDecoder;
+	}
+
+	/**
+	 * Returns a decoder with its own cache for a cloned cursor in lazy value
+	 * mode, or null otherwise.
+	 */
+	ValueDecoder newValueDecoder() {
+		return lazyValues ? new ValueDecoder(memoryBuffer, decodeCacheSize) : null;
+	}
+
+	/**
+	 * Turns the completed document into a read-only snapshot that any number of
+	 * threads can navigate at once (see VTDNav.cloneNav): byte reads switch to
+	 * the lock-free path and the tag index is no longer locked.
+	 * 
+	 * @throws IllegalStateException if parsing has not completed
+	 */
+	public void enableConcurrentReads() {
+		if (!parsingComplete)
+			throw new IllegalStateException("Document is not completely parsed");
+		memoryBuffer.setConcurrentReads(true);
+	}
+
+	/**
+	 * Builds a per-name index of elements in document order while parsing, so
+	 * VTDNav.toElement(String) is a binary search instead of a subtree walk. In
+	 * object mode the entries of evicted records are dropped with them. Must be
+	 * set before parsing starts.
+	 */
+	public void setTagIndex(boolean tagIndexEnabled) {
+		this.tagIndexEnabled = tagIndexEnabled;
+	}
+
+	public boolean isTagIndex() {
+		return tagIndexEnabled;
+	}
+
+	/**
+	 * Returns the tag index of the document being parsed, or null if disabled.
+	 */
+	TagIndex getTagIndex() {
+		return tagIndex;
+	}
+
+	/**
+	 * Number of elements currently in the tag index (0 if disabled).
+	 */
+	public long getIndexedElementCount() {
+		TagIndex index = tagIndex;
+		return index == null ? 0 : index.size();
+	}
+
+	/**
+	 * Sets the attribute value index to fill during parsing (see
+	 * AttributeIndex.index). When a file parse completes, the index is saved next
+	 * to the file. Must be set before parsing starts.
+	 */
+	public void setAttributeIndex(AttributeIndex attributeIndex) {
+		this.attributeIndex = attributeIndex;
+	}
+
+	public AttributeIndex getAttributeIndex() {
+		return attributeIndex;
+	}
+
+	/**
+	 * Writes the structural index to a sidecar next to the file (see
+	 * SidecarIndex) when a compact-mode parse completes. Must be set before
+	 * parsing starts.
+	 */
+	public void setSaveSidecarIndex(boolean saveSidecarIndex) {
+		this.saveSidecarIndex = saveSidecarIndex;
+	}
+
+	/**
+	 * Loads the file's sidecar index instead of parsing, if it exists and matches
+	 * the file. The adapter is then in compact mode with parsing complete, and
+	 * startParsing must not be called.
+	 * 
+	 * @return true if the sidecar was loaded, false if the file must be parsed
+	 */
+	public boolean loadSidecarIndex() {
+		if (filePath == null)
+			return false;
+		File file = new File(filePath);
+		try {
+			return SidecarIndex.loadInto(this, file, SidecarIndex.indexFile(file));
+		} catch (IOException e) {
+			log.warn("Cannot load sidecar index for {}: {}", filePath, e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Installs a structural index read from a sidecar, as if a compact-mode parse
+	 * had completed.
+	 */
+	void attachIndex(NodeTable table, boolean lazy) {
+		compactMode = true;
+		lazyValues = lazy;
+		symbols = table.getSymbols();
+		valueDecoder = lazy ? new ValueDecoder(memoryBuffer, decodeCacheSize) : null;
+		if (tagIndexEnabled) {
+			TagIndex index = new TagIndex(false);
+			for (int rec = 0; rec < table.size(); rec++) {
+				index.add(table.getNameId(rec), rec, null);
+			}
+			index.freeze();
+			tagIndex = index;
+		}
+		nodeTable = table;
+		byteOffsets = true;
+		isLoading.set(false);
+		isTerminated.set(true);
+		parsingComplete = true;
+		running = false;
+		signalStateChanged();
+	}
+
+	/**
+	 * Returns true if element offsets are byte positions in the input, which
+	 * byte access (fragments, lazy values, XMLModifier) relies on. This holds
+	 * for UTF-8 and single-byte encodings; other encodings (e.g. UTF-16) get
+	 * character offsets.
+	 */
+	public boolean isByteOffsets() {
+		return byteOffsets;
+	}
+
+	/**
+	 * Returns true once the whole document has been parsed (or loaded from a
+	 * sidecar index).
+	 */
+	public boolean isParsingComplete() {
+		return parsingComplete;
+	}
+
+	/**
+	 * Parses files with the given number of threads (1, the default, parses
+	 * sequentially). The file is split into regions at starts of the split tag,
+	 * the regions are parsed on a fork/join pool, and their elements are joined
+	 * into one tree or NodeTable with the same offsets as a sequential parse.
+	 * The tag scan and the in-order replay are extra work, so this only pays
+	 * off with idle cores; on a single core a parallel parse is slower (see
+	 * ParallelParseBenchmark in the benchmarks module). Must be set before
+	 * parsing starts.
+	 * <p>
+	 * A parallel parse does not pause at block boundaries: startParsing returns
+	 * once the whole file is parsed (or false after 10 seconds, with the parse
+	 * going on), and nothing is evicted, so compact mode is the model to use for
+	 * large files. In object mode handleXmlElement is called for the elements
+	 * only after the whole file is parsed, in end tag order, so that elements
+	 * of a parse that falls back to a sequential one are not reported twice. Files with streaming XPaths or an
+	 * attribute index, compressed files, and files whose split points turn out not to be element
+	 * boundaries (e.g. a split tag inside a comment), are parsed sequentially.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the local name of the elements at whose start tags a parallel parse
+	 * may split the file. Default MeContext.
+	 */
+	public void setSplitTag(String splitTag) {
+		this.splitTag = splitTag;
+	}
+
+	/**
+	 * Sets the approximate size of the regions of a parallel parse. Default 8MB.
+	 */
+	public void setParallelRegionSize(long parallelRegionSize) {
+		if (parallelRegionSize < 1)
+			throw new IllegalArgumentException("Region size must be positive: " + parallelRegionSize);
+		this.parallelRegionSize = parallelRegionSize;
+	}
+
+	/**
+	 * Runs startParsing's parse as a task on the given executor instead of a new
+	 * platform thread (null restores the default), as well as the buffer's
+	 * read-ahead if it prefetches. The task blocks while the parse is paused at
+	 * a block boundary; with virtual threads (see ParserThreads) that does not
+	 * hold a carrier thread. On a bounded pool a prefetching document needs a
+	 * second thread. Must be set before parsing starts.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+		if (memoryBuffer != null)
+			memoryBuffer.setPrefetchExecutor(executor);
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	private boolean isParallel() {
+		return parallelism > 1 && filePath != null && streamingXPaths == null && attributeIndex == null
+				&& memoryBuffer != null && !memoryBuffer.isCompressed();
+	}
+
+	/**
+	 * Registers an expression that is evaluated while parsing: the handler is
+	 * called with each matching element as soon as its END_ELEMENT is read, ahead
+	 * of block eviction. Must be called before parsing starts.
+	 * 
+	 * Streaming expressions are absolute paths of the AutoPilot subset without
+	 * last(), and with text() predicates only on the last step. For single-pass
+	 * extraction without navigation, run parseXml(false) on the calling thread
+	 * with an eviction policy that releases the matched records.
+	 * 
+	 * @throws XPathParseException if the expression cannot be evaluated streaming
+	 */
+	public void addStreamingXPath(String xpath, XPathMatchHandler handler) {
+		CompiledXPath compiled = CompiledXPath.compileStreaming(xpath);
+		if (streamingXPaths == null) {
+			streamingXPaths = new StreamingXPathMatcher();
+		}
+		streamingXPaths.add(compiled, handler);
+	}
+
+	/**
+	 * Returns the name dictionary of the document being parsed. Tag names in the
+	 * element model are its canonical instances and XmlElement.getNameId() its IDs.
+	 */
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	/**
+	 * Returns the record store of the compact model, or null in object mode.
+	 */
+	public NodeTable getNodeTable() {
+		return nodeTable;
+	}
+
 	/**
 	 * Constructor for stream-based XML parsing. Does not start parsing
 	 * automatically.
@@ -69,16 +412,37 @@ public class StaxXmlAdapter implements Runnable {
 	}
 
 	/**
-	 * Starts parsing in a separate thread.
+	 * Starts parsing in a separate thread, or as a task on the executor if one
+	 * is set.
 	 */
 	public boolean startParsing() {
-		if (parserThread == null || !parserThread.isAlive()) {
+		if (parserActive.compareAndSet(false, true)) {
 			running = true;
+			stopRequested = false;
 			paused.set(false);
-			parserThread = new Thread(this, "StaxXmlAdapter-ParserThread");
-			parserThread.start();
+			// loading starts now, so waiters cannot observe the state before the
+			// parser thread runs
+			isLoading.set(true);
+			isTerminated.set(false);
+			try {
+				if (executor != null) {
+					executor.execute(this);
+				} else {
+					new Thread(this, "StaxXmlAdapter-ParserThread").start();
+				}
+			} catch (RuntimeException e) {
+				isLoading.set(false);
+				isTerminated.set(true);
+				running = false;
+				parserActive.set(false);
+				throw e;
+			}
 
-			return waitForNextBlockLoaded(-1, 10000);
+			if (isParallel()) {
+				// the parser thread only pauses if it falls back to a sequential parse
+				return awaitState(() -> !isLoading.get(), START_TIMEOUT_MILLIS);
+			}
+			return waitForNextBlockLoaded(-1, START_TIMEOUT_MILLIS);
 		}
 		return false;
 	}
@@ -88,41 +452,94 @@ public class StaxXmlAdapter implements Runnable {
 	 */
 	private AtomicInteger currentChunkIndex = new AtomicInteger(0);
 
+	/**
+	 * Resumes parsing and blocks until the parser pauses at the next block
+	 * boundary or terminates.
+	 * 
+	 * @throws ParseTimeoutException if neither happens within maxWailMillies
+	 */
 	public void resumeParsingAndWait(int maxWailMillies) {
-		int chunkIndex = 0;
+		if (!tryResumeParsingAndWait(maxWailMillies) && !Thread.currentThread().isInterrupted()) {
+			throw new ParseTimeoutException("Parser did not reach the next block within " + maxWailMillies + "ms");
+		}
+	}
+
+	/**
+	 * Same as resumeParsingAndWait, but reports a timeout as false instead of
+	 * throwing, for callers that apply their own overall deadline.
+	 */
+	public boolean tryResumeParsingAndWait(int maxWailMillies) {
+		final int chunkIndex;
 		pauseLock.lock();
 		try {
 			chunkIndex = currentChunkIndex.get();
-			System.out.println("resumeParsing... chunkIndex=" + chunkIndex);
+			log.debug("resumeParsing... chunkIndex={}", chunkIndex);
 			paused.set(false);
 			pauseCondition.signalAll();
-
 		} finally {
 			pauseLock.unlock();
 		}
 
-		long start = System.currentTimeMillis();
-		// Wait until endOffset is set or timeout
-		while (chunkIndex == currentChunkIndex.get() && !isTerminated.get()) {
-			try {
-				Thread.sleep(20);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				break;
-			}
-			if (System.currentTimeMillis() - start > maxWailMillies) {
-				System.err.println("Timeout waiting for element to be fully parsed.");
-				break;
+		long start = System.nanoTime();
+		boolean reached = awaitState(() -> chunkIndex != currentChunkIndex.get() || isTerminated.get(),
+				maxWailMillies);
+		metrics.resumeWaited(System.nanoTime() - start);
+		return reached;
+	}
+
+	/**
+	 * Blocks until the condition holds, re-evaluating it whenever the parser
+	 * signals a state change. A timeout of 0 or less waits without limit.
+	 * 
+	 * @return true if the condition holds, false on timeout or interrupt
+	 */
+	private boolean awaitState(BooleanSupplier condition, long timeoutMillis) {
+		pauseLock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while (!condition.getAsBoolean()) {
+				if (timeoutMillis <= 0) {
+					stateChanged.await();
+				} else {
+					if (remaining <= 0)
+						return false;
+					remaining = stateChanged.awaitNanos(remaining);
+				}
 			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			pauseLock.unlock();
 		}
+	}
 
+	private void signalStateChanged() {
+		pauseLock.lock();
+		try {
+			stateChanged.signalAll();
+		} finally {
+			pauseLock.unlock();
+		}
 	}
 
 	/**
-	 * Stops parsing and terminates the thread.
+	 * Stops parsing and waits up to 2 seconds for the parser to end. The
+	 * document stays incomplete; a parallel parse only stops between regions.
+	 * 
+	 * @return true if the parser has ended
 	 */
-	public void stopParsing() {
-		resumeParsingAndWait(2000); // Wake up if paused
+	public boolean stopParsing() {
+		stopRequested = true;
+		pauseLock.lock();
+		try {
+			paused.set(false); // wake up if paused
+			pauseCondition.signalAll();
+		} finally {
+			pauseLock.unlock();
+		}
+		return awaitState(() -> !parserActive.get(), 2000);
 	}
 
 	/**
@@ -149,35 +566,213 @@ public class StaxXmlAdapter implements Runnable {
 			isLoading.set(false);
 			isTerminated.set(true);
 			running = false;
+			parserActive.set(false);
+			signalStateChanged();
 		}
 	}
 
-	private Map<Integer, List<MutableXmlElement>> meContextByBlock = new HashMap<>();
+	// Memory management: closed records in document order, oldest first
+	private final ArrayDeque<MutableXmlElement> retainedRecords = new ArrayDeque<>();
+	// compact mode: { record, last descendant } of closed records
+	private final ArrayDeque<int[]> retainedRecordRanges = new ArrayDeque<>();
+	private final List<String> elementPath = new ArrayList<>();
+	private final List<String> elementPathView = Collections.unmodifiableList(elementPath);
+	private int openRecordDepth = -1;
+	private volatile long evictedRecordCount = 0;
+
+	/**
+	 * Tracks the path of a started element and returns true if it is a record
+	 * per the eviction policy. Records nested in a record are not considered.
+	 */
+	private boolean startElementPath(String tagName) {
+		int depth = elementPath.size();
+		elementPath.add(tagName);
+		if (openRecordDepth < 0 && evictionPolicy.isRecord(tagName, depth, elementPathView)) {
+			openRecordDepth = depth;
+			return true;
+		}
+		return false;
+	}
 
-	private void saveMeContextInfoForMemoryManagement(MutableXmlElement tag) {
-		if ("MeContext".equals(tag.getTagName())) {
-			int chunkIndex = memoryBuffer.getChunkIndex(tag.getEndOffset());
-			meContextByBlock.computeIfAbsent(chunkIndex, k -> new ArrayList<>()).add(tag);
-			// System.out.println(">> MeContextTag... " + tag);
-			if("CN_GJ_EL_SGongAmL_DU01".equals(tag.getAttrubute("id"))) {
-				System.out.println(">> MeContextTag... " + tag);
-				System.out.println(">> MeContextTag... " + tag.getParent());
+	/**
+	 * Pops the path of an ended element and returns true if it closed a record.
+	 */
+	private boolean endElementPath() {
+		int depth = elementPath.size() - 1;
+		elementPath.remove(depth);
+		if (depth == openRecordDepth) {
+			openRecordDepth = -1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Marks the ancestors of a record as containers, stopping at the first one
+	 * already marked.
+	 */
+	private static void markContainers(XmlElement parent) {
+		for (XmlElement e = parent; e != null && !e.isRecordContainer(); e = e.getParent()) {
+			e.setRecordContainer(true);
+		}
+	}
+
+	/**
+	 * Releases the subtrees of closed records that end before the policy's
+	 * boundary. An evicted record stays reachable through its previous sibling
+	 * and keeps its own attributes, but is detached from its parent and loses its
+	 * children, so navigation into it reports the region as gone.
+	 */
+	private void evictRecords() {
+		long boundary = evictionPolicy.evictionBoundary(memoryBuffer.getPosition(), memoryBuffer.getChunkSize(),
+				memoryBuffer.getChunkCountInBlock());
+		if (nodeTable != null) {
+			evictRecordRanges(boundary);
+			return;
+		}
+		int evicted = 0;
+		long elements = 0;
+		while (!retainedRecords.isEmpty() && retainedRecords.peekFirst().getEndOffset() < boundary) {
+			MutableXmlElement record = retainedRecords.pollFirst();
+			XmlElement last = lastDescendant(record);
+			elements += last.getOrdinal() - record.getOrdinal() + 1;
+			if (tagIndex != null) {
+				addEvictedRange(evicted, record.getOrdinal(), last.getOrdinal());
 			}
+			XmlElement parent = record.getParent();
+			if (parent != null) {
+				parent.getChildren().remove(record);
+			}
+			record.getChildren().clear();
+			record.setEvicted(true);
+			evicted++;
+		}
+		if (tagIndex != null) {
+			tagIndex.removeRanges(evictedFrom, evictedTo, evicted);
+		}
+		evictedRecordCount += evicted;
+		if (evicted > 0) {
+			evictedElements += elements;
+			metrics.recordsEvicted(evicted, elements);
 		}
 	}
 
-	private void removeMeContextsInPrevBlock(int removeBlockIndex) {
-		// for memory management.
-		List<MutableXmlElement> prevBlockMeContexts = meContextByBlock.get(removeBlockIndex);
-		if (prevBlockMeContexts != null) {
-			for (MutableXmlElement meCtx : prevBlockMeContexts) {
-				MutableXmlElement parent = (MutableXmlElement) meCtx.getParent();
-				if (parent != null) {
-					parent.getChildren().remove(meCtx);
-				}
+	/**
+	 * Compact-mode counterpart of evictRecords: the records stay in the
+	 * NodeTable, which costs a few dozen bytes each, and the attribute values
+	 * and texts of their descendants are released (see NodeTable.evict).
+	 */
+	private void evictRecordRanges(long boundary) {
+		int evicted = 0;
+		long elements = 0;
+		while (!retainedRecordRanges.isEmpty()
+				&& nodeTable.getEndOffset(retainedRecordRanges.peekFirst()[0]) < boundary) {
+			int[] range = retainedRecordRanges.pollFirst();
+			nodeTable.evict(range[0], range[1]);
+			elements += range[1] - range[0] + 1;
+			if (tagIndex != null) {
+				addEvictedRange(evicted, range[0], range[1]);
 			}
-			meContextByBlock.remove(removeBlockIndex);
+			evicted++;
+		}
+		if (tagIndex != null) {
+			tagIndex.removeRanges(evictedFrom, evictedTo, evicted);
+		}
+		evictedRecordCount += evicted;
+		if (evicted > 0) {
+			evictedElements += elements;
+			metrics.recordsEvicted(evicted, elements);
+		}
+	}
+
+	/**
+	 * Returns true if closed records of the compact model are queued for
+	 * eviction. Lazy values are not held in the NodeTable, so there is nothing
+	 * to release, and a sidecar index needs the values of every record.
+	 */
+	private boolean evictsRecordRanges() {
+		return !lazyValues && !saveSidecarIndex;
+	}
+
+	// Ordinal ranges of the records evicted in one evictRecords call
+	private int[] evictedFrom = new int[64];
+	private int[] evictedTo = new int[64];
+
+	/**
+	 * Returns the rightmost descendant of a record. The ordinals of the record
+	 * and its descendants are consecutive, so this is the last one.
+	 */
+	private static XmlElement lastDescendant(XmlElement record) {
+		XmlElement last = record;
+		while (!last.getChildren().isEmpty()) {
+			last = last.getChildren().get(last.getChildren().size() - 1);
 		}
+		return last;
+	}
+
+	/**
+	 * Records the ordinal range of the record and its descendants.
+	 */
+	private void addEvictedRange(int i, int record, int last) {
+		if (i == evictedFrom.length) {
+			evictedFrom = Arrays.copyOf(evictedFrom, i * 2);
+			evictedTo = Arrays.copyOf(evictedTo, i * 2);
+		}
+		evictedFrom[i] = record;
+		evictedTo[i] = last;
+	}
+
+	/**
+	 * Sets which subtrees may be released while parsing (see EvictionPolicy).
+	 * Defaults to MeContext records with one block of retention. Must be set
+	 * before parsing starts. In compact mode the records themselves stay, as
+	 * they cost a few dozen bytes each, and the attribute values and texts of
+	 * their descendants are released; navigating into an evicted record or
+	 * reading a released value throws EvictedRegionException. Nothing is
+	 * released with lazy values, which are not held in memory, or when a
+	 * sidecar index is saved; there the policy only identifies containers.
+	 */
+	public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy == null ? EvictionPolicy.NONE : evictionPolicy;
+	}
+
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Number of record subtrees released so far.
+	 */
+	public long getEvictedRecordCount() {
+		return evictedRecordCount;
+	}
+
+	/**
+	 * Sets the receiver of parse counters and timings (elements created and
+	 * evicted, live nodes, pause and resume-wait times) and passes it on to the
+	 * buffer for its chunk and read counters. null restores the no-op default.
+	 */
+	public void setMetrics(ParserMetrics metrics) {
+		this.metrics = metrics == null ? ParserMetrics.NOOP : metrics;
+		if (memoryBuffer != null) {
+			memoryBuffer.setMetrics(this.metrics);
+		}
+	}
+
+	public ParserMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Reports the elements created since the last report and the live count.
+	 * Called at block boundaries and at the end, not per element.
+	 */
+	private void reportProgress() {
+		NodeTable table = nodeTable;
+		long created = table != null ? table.size() : nextOrdinal;
+		metrics.elementsCreated(created - reportedElements);
+		reportedElements = created;
+		metrics.liveNodes(created - evictedElements);
 	}
 
 	/**
@@ -186,31 +781,272 @@ public class StaxXmlAdapter implements Runnable {
 	private AtomicBoolean isLoading = new AtomicBoolean(false);
 	private AtomicBoolean isTerminated = new AtomicBoolean(false);
 
+	/**
+	 * Clears the results and parse state of a previous parse.
+	 */
+	private void resetParseState() {
+		rootNodes.clear();
+		symbols = new SymbolTable();
+		retainedRecords.clear();
+		retainedRecordRanges.clear();
+		elementPath.clear();
+		openRecordDepth = -1;
+		evictedRecordCount = 0;
+		nodeTable = compactMode ? new NodeTable(symbols) : null;
+		valueDecoder = lazyValues ? new ValueDecoder(memoryBuffer, decodeCacheSize) : null;
+		tagIndex = tagIndexEnabled ? new TagIndex(!compactMode) : null;
+		parsingComplete = false;
+		if (attributeIndex != null) {
+			attributeIndex.clear();
+		}
+		nextOrdinal = 0;
+		reportedElements = 0;
+		evictedElements = 0;
+	}
+
+	/**
+	 * Publishes the end of a parse and saves the configured indexes.
+	 */
+	private void finishParse() {
+		reportProgress();
+		if (!Thread.currentThread().isInterrupted() && !stopRequested) {
+			if (tagIndex != null)
+				tagIndex.freeze();
+			parsingComplete = true;
+			saveIndexes();
+		}
+		isLoading.set(false);
+		isTerminated.set(true);
+		running = false;
+		signalStateChanged();
+	}
+
+	/**
+	 * Parses the file in regions on a fork/join pool (see ParallelParser) and
+	 * replays their events in document order. Returns false if a region does not
+	 * parse on its own or does not fit the elements left open before it; the
+	 * sequential parse then starts over.
+	 */
+	private boolean parseParallel() throws IOException {
+		File file = new File(filePath);
+		ParallelParser parser = new ParallelParser(file, splitTag, parallelRegionSize, lazyValues);
+		long[] starts = parser.split();
+		if (!parser.isByteOffsets()) {
+			log.info("{} has no byte offsets in its encoding, parsing sequentially", filePath);
+			return false;
+		}
+		// region offsets are byte offsets, as those of the sequential parse
+		offsetReader = null;
+		byteOffsets = true;
+		long size = file.length();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			ArrayDeque<ForkJoinTask<ParallelParser.Region>> pending = new ArrayDeque<>();
+			Stack<MutableXmlElement> stack = new Stack<>();
+			int submitted = 0;
+			for (int i = 0; i < starts.length; i++) {
+				if (stopRequested)
+					return true; // stopped, not a failure to fall back from
+				// parse a bounded number of regions ahead of the replay
+				for (; submitted < starts.length && submitted - i < 2 * parallelism; submitted++) {
+					final long start = starts[submitted];
+					final long end = submitted + 1 < starts.length ? starts[submitted + 1] : size;
+					pending.addLast(pool.submit(() -> parser.parse(start, end)));
+				}
+				ParallelParser.Region region;
+				try {
+					region = pending.pollFirst().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return true;
+				} catch (ExecutionException e) {
+					log.info("Region {} of {} does not parse on its own ({}), parsing sequentially", i, filePath,
+							e.getCause().toString());
+					return false;
+				}
+				if (!replay(region, stack)) {
+					log.info("Region {} of {} does not continue the previous one, parsing sequentially", i, filePath);
+					return false;
+				}
+			}
+			if (!elementPath.isEmpty()) {
+				log.info("Parallel parse of {} left elements open, parsing sequentially", filePath);
+				return false;
+			}
+			return true;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Adds the events of a parsed region to the tree or NodeTable. Returns false
+	 * without adding anything if the region's unmatched end tags are not the
+	 * innermost open elements.
+	 */
+	private boolean replay(ParallelParser.Region region, Stack<MutableXmlElement> stack) {
+		List<String> unmatched = region.unmatched;
+		int open = elementPath.size();
+		if (unmatched.size() > open)
+			return false;
+		for (int i = 0; i < unmatched.size(); i++) {
+			if (!unmatched.get(i).equals(elementPath.get(open - 1 - i)))
+				return false;
+		}
+		int s = 0;
+		for (int i = 0; i < region.size(); i++) {
+			switch (region.type(i)) {
+			case ParallelParser.START: {
+				String name = region.string(s++);
+				int attributes = region.attributeCount(i);
+				if (nodeTable != null) {
+					int rec = nodeTable.startElement(name, region.offset(i));
+					if (tagIndex != null) {
+						tagIndex.add(nodeTable.getNameId(rec), rec, null);
+					}
+					if (startElementPath(nodeTable.getTagName(rec))) {
+						nodeTable.markContainers(nodeTable.getParent(rec));
+					}
+					for (int a = 0; a < attributes; a++, s += 2) {
+						nodeTable.addAttribute(region.string(s), region.string(s + 1));
+					}
+					if (rec == 0) {
+						signalStateChanged();
+					}
+				} else {
+					MutableXmlElement tag = newElement(name, region.offset(i));
+					for (int a = 0; a < attributes; a++, s += 2) {
+						tag.getAttributes().put(symbols.canonical(region.string(s)), region.string(s + 1));
+					}
+					attachElement(tag, stack);
+					stack.push(tag);
+				}
+				break;
+			}
+			case ParallelParser.TEXT: {
+				String text = region.string(s++);
+				if (nodeTable != null) {
+					nodeTable.addText(text);
+				} else if (!stack.isEmpty()) {
+					stack.peek().getTextNodes().add(text);
+				}
+				break;
+			}
+			case ParallelParser.END:
+				if (nodeTable != null) {
+					nodeTable.endElement(region.offset(i));
+					endElementPath();
+				} else {
+					MutableXmlElement tag = stack.pop();
+					tag.setEndOffset(region.offset(i));
+					endElementPath();
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Calls handleXmlElement for the elements of a completed parallel parse, in
+	 * the order of their end tags as a sequential parse would.
+	 */
+	private void handleParsedElements(List<? extends XmlElement> elements) {
+		for (XmlElement element : elements) {
+			handleParsedElements(element.getChildren());
+			handleXmlElement((MutableXmlElement) element);
+		}
+	}
+
+	/**
+	 * Creates the element for a START_ELEMENT event and adds it to the tag index.
+	 */
+	private MutableXmlElement newElement(String localName, long startOffset) {
+		int nameId = symbols.intern(localName);
+		MutableXmlElement tag = new MutableXmlElement();
+		tag.setNameId(nameId);
+		tag.setTagName(symbols.name(nameId));
+		tag.setStartOffset(startOffset);
+		tag.setOrdinal(nextOrdinal++);
+		if (tagIndex != null) {
+			tagIndex.add(nameId, tag.getOrdinal(), tag);
+		}
+		return tag;
+	}
+
+	/**
+	 * Adds a started element to its parent (or the roots) and tracks its path.
+	 */
+	private void attachElement(MutableXmlElement tag, Stack<MutableXmlElement> stack) {
+		if (stack.isEmpty()) {
+			rootNodes.add(tag);
+			signalStateChanged();
+		} else {
+			MutableXmlElement parent = stack.peek();
+			parent.addChild(tag);
+		}
+		if (startElementPath(tag.getTagName())) {
+			markContainers(tag.getParent());
+		}
+	}
+
 	public void parseXml(boolean vtdNavMode) throws IOException, XMLStreamException {
-		InputStream inputStream = memoryBuffer;
+		isLoading.set(true);
+		if (isParallel()) {
+			resetParseState();
+			if (parseParallel()) {
+				if (!Thread.currentThread().isInterrupted() && !stopRequested)
+					handleParsedElements(rootNodes);
+				finishParse();
+				return;
+			}
+		}
 		WstxInputFactory factory = new WstxInputFactory();
 		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
 		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
-		XMLStreamReader2 reader = (XMLStreamReader2) factory.createXMLStreamReader(inputStream);
+		// UTF-8 is decoded here so that Woodstox's character offsets can be
+		// mapped to byte offsets; single-byte encodings need no mapping
+		ByteOffsetReader utf8 = new ByteOffsetReader(memoryBuffer);
+		String encoding = utf8.sniffEncoding();
+		XMLStreamReader2 reader;
+		if (ByteOffsetReader.isUtf8(encoding)) {
+			offsetReader = utf8;
+			byteOffsets = true;
+			reader = (XMLStreamReader2) factory.createXMLStreamReader(utf8);
+		} else {
+			if (lazyValues)
+				throw new IllegalStateException("Lazy value mode needs UTF-8 input, not " + encoding);
+			offsetReader = null;
+			byteOffsets = ByteOffsetReader.isSingleByte(encoding);
+			if (!byteOffsets)
+				log.warn("Offsets of {} are character offsets: {} is not supported for byte access", filePath,
+						encoding);
+			reader = (XMLStreamReader2) factory.createXMLStreamReader(utf8.remainingBytes());
+		}
 		Stack<MutableXmlElement> stack = new Stack<>();
 
-		rootNodes.clear();
-		int startBlockIndex = 0;
+		resetParseState();
+		if (streamingXPaths != null) {
+			streamingXPaths.reset();
+		}
 		int lastLoadedBlockIndex = 0;
 
-		isLoading.set(true);
-		while (reader.hasNext()) {
+		while (!stopRequested && reader.hasNext()) {
 			int event = reader.next();
 			int currentBlockIndex = memoryBuffer.getChunkIndex();
 			// Pause at block boundary if requested
-			if (currentBlockIndex > MemoryBufferInputStream.COUNT_OF_CHUNK_IN_BLOCK
+			if (currentBlockIndex > memoryBuffer.getChunkCountInBlock()
 					&& currentBlockIndex != lastLoadedBlockIndex) {
 				if (vtdNavMode) {
 					pauseLock.lock();
-					System.out.println(">>>>> lock here~ blockIdx=" + currentBlockIndex);
+					log.debug("pausing at blockIdx={}", currentBlockIndex);
+					long pausedAt = System.nanoTime();
 					currentChunkIndex.set(currentBlockIndex);
 					isLoading.set(false);
 					paused.set(true);
+					stateChanged.signalAll();
 					try {
 						while (paused.get()) {
 							pauseCondition.await();
@@ -221,31 +1057,36 @@ public class StaxXmlAdapter implements Runnable {
 					} finally {
 						isLoading.set(true);
 						pauseLock.unlock();
-						System.out.println(">>>>> start loading next block. blockIdx=" + (currentBlockIndex + 1));
+						metrics.parsePaused(System.nanoTime() - pausedAt);
+						log.debug("resumed at blockIdx={}", currentBlockIndex);
 					}
+					if (stopRequested)
+						break;
 				}
-				removeMeContextsInPrevBlock(startBlockIndex);
-				startBlockIndex = startBlockIndex + 1;
+				evictRecords();
+				reportProgress();
 				lastLoadedBlockIndex = currentBlockIndex;
 			}
+			if (nodeTable != null) {
+				handleCompactEvent(reader, event);
+				continue;
+			}
 			switch (event) {
 			case XMLStreamConstants.START_ELEMENT: {
 				LocationInfo locInf = reader.getLocationInfo();
-				long startOffset = locInf.getStartLocation().getCharacterOffset();
-				String tagName = reader.getLocalName();
-				MutableXmlElement tag = new MutableXmlElement();
-				tag.setTagName(tagName);
-				tag.setStartOffset(startOffset);
-				for (int i = 0; i < reader.getAttributeCount(); i++) {
-					String attrName = reader.getAttributeLocalName(i);
+				long startOffset = byteOffset(locInf.getStartLocation().getCharacterOffset());
+				MutableXmlElement tag = newElement(reader.getLocalName(), startOffset);
+				for (int i = 0; !lazyValues && i < reader.getAttributeCount(); i++) {
+					String attrName = symbols.canonical(reader.getAttributeLocalName(i));
 					String attrValue = reader.getAttributeValue(i);
 					tag.getAttributes().put(attrName, attrValue);
 				}
-				if (stack.isEmpty()) {
-					rootNodes.add(tag);
-				} else {
-					MutableXmlElement parent = stack.peek();
-					parent.addChild(tag);
+				attachElement(tag, stack);
+				if (attributeIndex != null) {
+					indexAttributes(reader, tag.getTagName(), startOffset);
+				}
+				if (streamingXPaths != null) {
+					streamingXPaths.startElement(tag.getTagName(), reader);
 				}
 				stack.push(tag);
 				break;
@@ -253,19 +1094,30 @@ public class StaxXmlAdapter implements Runnable {
 			case XMLStreamConstants.CHARACTERS: {
 				if (!stack.isEmpty()) {
 					MutableXmlElement current = stack.peek();
-					if (!reader.isWhiteSpace()) {
+					if (!lazyValues && !reader.isWhiteSpace()) {
 						String text = reader.getText();
 						current.getTextNodes().add(text);
 					}
+					if (streamingXPaths != null) {
+						streamingXPaths.characters(reader);
+					}
 				}
 				break;
 			}
 			case XMLStreamConstants.END_ELEMENT: {
 				MutableXmlElement tag = stack.pop();
 				LocationInfo locInf = reader.getLocationInfo();
-				long endOffset = locInf.getEndLocation().getCharacterOffset();
+				long endOffset = byteOffset(locInf.getEndLocation().getCharacterOffset());
 				tag.setEndOffset(endOffset);
-				saveMeContextInfoForMemoryManagement(tag);
+				if (attributeIndex != null) {
+					attributeIndex.endElement(elementPath.size() - 1, endOffset);
+				}
+				if (endElementPath()) {
+					retainedRecords.addLast(tag);
+				}
+				if (streamingXPaths != null) {
+					streamingXPaths.endElement(() -> tag);
+				}
 				handleXmlElement(tag);
 				break;
 			}
@@ -274,24 +1126,148 @@ public class StaxXmlAdapter implements Runnable {
 			}
 		}
 		reader.close();
-		isLoading.set(false);
-		isTerminated.set(true);
-		running = false;
+		finishParse();
+	}
+
+	/**
+	 * Saves the attribute index and sidecar index next to the parsed file, if
+	 * configured. Failures only cost the next open a parse, so they are logged.
+	 */
+	private void saveIndexes() {
+		if (filePath == null)
+			return;
+		File file = new File(filePath);
+		// saved ranges are read back as byte offsets
+		if (attributeIndex != null && byteOffsets) {
+			try {
+				attributeIndex.save(file);
+			} catch (IOException e) {
+				log.warn("Cannot save attribute index for {}: {}", filePath, e.toString());
+			}
+		}
+		if (saveSidecarIndex && nodeTable != null && byteOffsets) {
+			try {
+				SidecarIndex.write(file, SidecarIndex.indexFile(file), nodeTable, lazyValues);
+			} catch (IOException e) {
+				log.warn("Cannot save sidecar index for {}: {}", filePath, e.toString());
+			}
+		}
 	}
 
+	/**
+	 * Adds the started element to the attribute index if it carries an indexed
+	 * attribute.
+	 */
+	private void indexAttributes(XMLStreamReader2 reader, String tagName, long startOffset) {
+		String[] names = attributeIndex.indexedAttributes(tagName);
+		if (names == null)
+			return;
+		for (String name : names) {
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				if (name.equals(reader.getAttributeLocalName(i))) {
+					attributeIndex.startElement(elementPath.size() - 1, tagName, name, reader.getAttributeValue(i),
+							startOffset);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Maps a character offset reported by Woodstox to a byte offset in the
+	 * input.
+	 */
+	private long byteOffset(long charOffset) {
+		return offsetReader == null ? charOffset : offsetReader.byteOffset(charOffset);
+	}
+
+	/**
+	 * Compact-model counterpart of the object-building switch in parseXml.
+	 */
+	private void handleCompactEvent(XMLStreamReader2 reader, int event) throws XMLStreamException {
+		switch (event) {
+		case XMLStreamConstants.START_ELEMENT: {
+			long startOffset = byteOffset(reader.getLocationInfo().getStartLocation().getCharacterOffset());
+			int rec = nodeTable.startElement(reader.getLocalName(), startOffset);
+			if (tagIndex != null) {
+				tagIndex.add(nodeTable.getNameId(rec), rec, null);
+			}
+			if (startElementPath(nodeTable.getTagName(rec))) {
+				nodeTable.markContainers(nodeTable.getParent(rec));
+			}
+			if (attributeIndex != null) {
+				indexAttributes(reader, nodeTable.getTagName(rec), startOffset);
+			}
+			for (int i = 0; !lazyValues && i < reader.getAttributeCount(); i++) {
+				nodeTable.addAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+			}
+			if (streamingXPaths != null) {
+				streamingXPaths.startElement(nodeTable.getTagName(rec), reader);
+			}
+			if (rec == 0) {
+				signalStateChanged();
+			}
+			break;
+		}
+		case XMLStreamConstants.CHARACTERS:
+			if (!lazyValues && !reader.isWhiteSpace()) {
+				nodeTable.addText(reader.getText());
+			}
+			if (streamingXPaths != null && nodeTable.size() > 0) {
+				streamingXPaths.characters(reader);
+			}
+			break;
+		case XMLStreamConstants.END_ELEMENT: {
+			long endOffset = byteOffset(reader.getLocationInfo().getEndLocation().getCharacterOffset());
+			int rec = nodeTable.endElement(endOffset);
+			if (attributeIndex != null) {
+				attributeIndex.endElement(elementPath.size() - 1, endOffset);
+			}
+			if (endElementPath() && evictsRecordRanges()) {
+				// the record's descendants are the records added after it
+				retainedRecordRanges.addLast(new int[] { rec, nodeTable.size() - 1 });
+			}
+			if (streamingXPaths != null) {
+				streamingXPaths.endElement(() -> nodeTable.materialize(rec));
+			}
+			break;
+		}
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Called for each element at its END_ELEMENT in object mode, after streaming
+	 * XPath matches were delivered (after the whole file in a parallel parse,
+	 * see setParallelism). Subclasses may inspect the completed element here.
+	 */
 	protected void handleXmlElement(MutableXmlElement tag) {
-		// TODO: Custom element handling logic
 	}
 
 	private void waitForCompleteBlockLoading() {
-		while (isLoading.get()) {
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				break;
-			}
+		awaitState(() -> !isLoading.get(), 0);
+	}
+
+	/**
+	 * Blocks until the first root element has been created or parsing has
+	 * ended, without waiting for the current block to finish loading.
+	 * 
+	 * @return the first root element, or null if the document has none (always
+	 *         null in compact mode, where the root is record 0)
+	 * @throws ParseTimeoutException if neither happens within timeoutMillis
+	 */
+	public MutableXmlElement awaitFirstRootElement(long timeoutMillis) {
+		boolean reached = awaitState(() -> hasRoot() || isTerminated.get() || !isLoading.get(), timeoutMillis);
+		if (!reached && !Thread.currentThread().isInterrupted()) {
+			throw new ParseTimeoutException("No root element parsed within " + timeoutMillis + "ms");
 		}
+		return rootNodes.isEmpty() ? null : rootNodes.get(0);
+	}
+
+	private boolean hasRoot() {
+		NodeTable table = nodeTable;
+		return table != null ? table.size() > 0 : !rootNodes.isEmpty();
 	}
 
 	public List<MutableXmlElement> getRootElements() {
@@ -316,20 +1292,14 @@ public class StaxXmlAdapter implements Runnable {
 	public boolean waitForNextBlockLoaded(int prevBlockIndex, int timeoutMillis) {
 		if (memoryBuffer == null)
 			return false;
-		waitForCompleteBlockLoading();
-
-		long start = System.currentTimeMillis();
-		while (System.currentTimeMillis() - start < timeoutMillis) {
-			if (memoryBuffer.getChunkIndex() > prevBlockIndex) {
-				System.out.println("After read next block " + memoryBuffer.getChunkIndex());
-				return true;
-			}
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				break;
-			}
+		// the chunk index only advances while loading, so a paused or terminated
+		// parser is the point to check it
+		boolean reached = awaitState(
+				() -> !isLoading.get() && (memoryBuffer.getChunkIndex() > prevBlockIndex || isTerminated.get()),
+				timeoutMillis);
+		if (reached && memoryBuffer.getChunkIndex() > prevBlockIndex) {
+			log.debug("After read next block {}", memoryBuffer.getChunkIndex());
+			return true;
 		}
 		return false;
 	}
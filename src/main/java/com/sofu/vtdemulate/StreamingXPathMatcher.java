@@ -0,0 +1,251 @@
+package com.sofu.vtdemulate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.codehaus.stax2.XMLStreamReader2;
+
+import com.sofu.vtdemulate.CompiledXPath.Axis;
+import com.sofu.vtdemulate.CompiledXPath.Step;
+import com.sofu.vtdemulate.CompiledXPath.Terminal;
+
+/**
+ * Evaluates registered XPath expressions against the parser's event stream,
+ * so matches are found in one pass without keeping the document.
+ *
+ * For each open element it keeps, per expression, a bit set of the steps the
+ * element is a context for (bit k: steps 0..k-1 matched along its ancestors)
+ * and of the descendant steps open above it. Steps before the last one are
+ * tested at START_ELEMENT from the reader's attributes; the last step is tested
+ * at END_ELEMENT, when the element's text is complete. Predicate positions are
+ * counted per parent, like the child-axis positions of AutoPilot.
+ */
+final class StreamingXPathMatcher {
+	private final List<CompiledXPath> expressions = new ArrayList<>();
+	private final List<XPathMatchHandler> handlers = new ArrayList<>();
+	private long[] childSteps = new long[0];
+	private long[] descendantSteps = new long[0];
+
+	// stack[0] is the document node, stack[depth] the innermost open element
+	private Frame[] stack = new Frame[0];
+	private int depth;
+	private final EvalContext context = new EvalContext();
+
+	void add(CompiledXPath xpath, XPathMatchHandler handler) {
+		expressions.add(xpath);
+		handlers.add(handler);
+		int n = expressions.size();
+		childSteps = Arrays.copyOf(childSteps, n);
+		descendantSteps = Arrays.copyOf(descendantSteps, n);
+		for (int k = 0; k < xpath.steps.length; k++) {
+			if (xpath.steps[k].axis == Axis.CHILD)
+				childSteps[n - 1] |= 1L << k;
+			else
+				descendantSteps[n - 1] |= 1L << k;
+		}
+		stack = new Frame[0];
+	}
+
+	/**
+	 * Prepares for a new document.
+	 */
+	void reset() {
+		depth = 0;
+		Frame document = frame(0);
+		for (int i = 0; i < expressions.size(); i++) {
+			document.context[i] = 1L;
+			document.open[i] = 1L & descendantSteps[i];
+		}
+	}
+
+	void startElement(String localName, XMLStreamReader2 reader) {
+		Frame parent = stack[depth];
+		Frame f = frame(++depth);
+		for (int i = 0; i < expressions.size(); i++) {
+			Step[] steps = expressions.get(i).steps;
+			int last = steps.length - 1;
+			long candidates = (parent.context[i] & childSteps[i]) | (parent.open[i] & descendantSteps[i]);
+			long matched = 0;
+			while (candidates != 0) {
+				int k = Long.numberOfTrailingZeros(candidates);
+				candidates &= candidates - 1;
+				Step step = steps[k];
+				if (step.name != null && !step.name.equals(localName))
+					continue;
+				if (k == last) {
+					f.candidate[i] = true;
+					f.capturing = true;
+				} else if (accept(step, parent.counters[i][k], context.atStart(reader))) {
+					matched |= 1L << (k + 1);
+				}
+			}
+			f.context[i] = matched;
+			f.open[i] = parent.open[i] | (matched & descendantSteps[i]);
+		}
+		if (f.capturing) {
+			for (int a = 0; a < reader.getAttributeCount(); a++) {
+				f.attributes.put(reader.getAttributeLocalName(a), reader.getAttributeValue(a));
+			}
+		}
+	}
+
+	void characters(XMLStreamReader2 reader) {
+		Frame f = stack[depth];
+		if (f.capturing && !reader.isWhiteSpace()) {
+			f.text.append(reader.getText());
+		}
+	}
+
+	/**
+	 * Delivers the matches of the innermost open element, materializing it at
+	 * most once.
+	 */
+	void endElement(Supplier<? extends XmlElement> element) {
+		Frame f = stack[depth];
+		Frame parent = stack[depth - 1];
+		if (f.capturing) {
+			XmlElement matchedElement = null;
+			String text = f.text.toString();
+			for (int i = 0; i < expressions.size(); i++) {
+				if (!f.candidate[i])
+					continue;
+				CompiledXPath xpath = expressions.get(i);
+				int last = xpath.steps.length - 1;
+				if (!accept(xpath.steps[last], parent.counters[i][last], context.atEnd(f.attributes, text)))
+					continue;
+				String value = xpath.terminal == Terminal.ATTRIBUTE ? f.attributes.get(xpath.terminalName) : text;
+				if (value == null || (xpath.terminal == Terminal.TEXT && value.isEmpty()))
+					continue;
+				if (matchedElement == null) {
+					matchedElement = element.get();
+				}
+				handlers.get(i).onMatch(xpath.source, matchedElement, value);
+			}
+		}
+		depth--;
+	}
+
+	private static boolean accept(Step step, int[] counters, EvalContext context) {
+		for (int p = 0; p < step.predicates.length; p++) {
+			context.position = ++counters[p];
+			if (!step.predicates[p].test(context))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the cleared frame for the given depth, allocating frames as the
+	 * document gets deeper.
+	 */
+	private Frame frame(int d) {
+		if (d >= stack.length) {
+			int oldLength = stack.length;
+			stack = Arrays.copyOf(stack, Math.max(16, d * 2));
+			for (int i = oldLength; i < stack.length; i++) {
+				stack[i] = new Frame(expressions);
+			}
+		}
+		Frame f = stack[d];
+		f.clear();
+		return f;
+	}
+
+	private static final class Frame {
+		final long[] context;
+		final long[] open;
+		// [expression][step][predicate]: positions among this element's children
+		final int[][][] counters;
+		final boolean[] candidate;
+		boolean capturing;
+		final Map<String, String> attributes = new HashMap<>();
+		final StringBuilder text = new StringBuilder();
+
+		Frame(List<CompiledXPath> expressions) {
+			int n = expressions.size();
+			context = new long[n];
+			open = new long[n];
+			candidate = new boolean[n];
+			counters = new int[n][][];
+			for (int i = 0; i < n; i++) {
+				Step[] steps = expressions.get(i).steps;
+				counters[i] = new int[steps.length][];
+				for (int k = 0; k < steps.length; k++) {
+					counters[i][k] = new int[steps[k].predicates.length];
+				}
+			}
+		}
+
+		void clear() {
+			Arrays.fill(context, 0L);
+			Arrays.fill(open, 0L);
+			Arrays.fill(candidate, false);
+			for (int[][] perStep : counters) {
+				for (int[] perPredicate : perStep) {
+					Arrays.fill(perPredicate, 0);
+				}
+			}
+			if (capturing) {
+				capturing = false;
+				attributes.clear();
+				text.setLength(0);
+			}
+		}
+	}
+
+	/**
+	 * Predicate context over the reader at START_ELEMENT, or over the captured
+	 * attributes and text at END_ELEMENT.
+	 */
+	private static final class EvalContext implements CompiledXPath.Context {
+		private XMLStreamReader2 reader;
+		private Map<String, String> attributes;
+		private String text;
+		int position;
+
+		EvalContext atStart(XMLStreamReader2 reader) {
+			this.reader = reader;
+			this.attributes = null;
+			this.text = null;
+			return this;
+		}
+
+		EvalContext atEnd(Map<String, String> attributes, String text) {
+			this.reader = null;
+			this.attributes = attributes;
+			this.text = text;
+			return this;
+		}
+
+		@Override
+		public String attribute(String name) {
+			if (attributes != null)
+				return attributes.get(name);
+			for (int a = 0; a < reader.getAttributeCount(); a++) {
+				if (name.equals(reader.getAttributeLocalName(a)))
+					return reader.getAttributeValue(a);
+			}
+			return null;
+		}
+
+		@Override
+		public String text() {
+			// compileStreaming rejects text() before the last step
+			return text;
+		}
+
+		@Override
+		public int position() {
+			return position;
+		}
+
+		@Override
+		public int last() {
+			throw new UnsupportedOperationException("last() is not available while streaming");
+		}
+	}
+}
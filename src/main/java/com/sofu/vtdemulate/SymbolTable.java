@@ -0,0 +1,69 @@
+package com.sofu.vtdemulate;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-document dictionary of tag and attribute names. Each distinct name gets a
+ * small int ID (assigned in order of first appearance) and one canonical String
+ * instance, so the element model can store and compare IDs instead of strings.
+ *
+ * The parser thread interns while navigation threads look up, so lookups are
+ * lock-free and only intern of a new name synchronizes.
+ */
+public class SymbolTable {
+	private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+	private volatile String[] names = new String[64];
+	private volatile int size;
+
+	/**
+	 * Returns the ID of the name, assigning the next free ID on first use.
+	 */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if (id != null)
+			return id;
+		synchronized (this) {
+			id = ids.get(name);
+			if (id != null)
+				return id;
+			int next = size;
+			if (next == names.length) {
+				names = Arrays.copyOf(names, next * 2);
+			}
+			names[next] = name;
+			size = next + 1;
+			ids.put(name, next);
+			return next;
+		}
+	}
+
+	/**
+	 * Returns the ID of the name, or -1 if the name has never been interned.
+	 */
+	public int lookup(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Returns the canonical instance of the name.
+	 */
+	public String name(int id) {
+		if (id < 0 || id >= size)
+			throw new IndexOutOfBoundsException("No symbol " + id);
+		return names[id];
+	}
+
+	/**
+	 * Returns the canonical instance of the name, interning it first if needed.
+	 */
+	public String canonical(String name) {
+		return name(intern(name));
+	}
+
+	public int size() {
+		return size;
+	}
+}
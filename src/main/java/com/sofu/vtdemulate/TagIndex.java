@@ -0,0 +1,175 @@
+package com.sofu.vtdemulate;
+
+import java.util.Arrays;
+
+/**
+ * Posting lists of element ordinals (positions in document order) per name
+ * ID, built while parsing. "Next element named X after ordinal n" is a binary
+ * search in X's list instead of a walk over the tree.
+ *
+ * In object mode the lists also hold the elements; entries of evicted records
+ * are removed with them (see removeRanges). The parser thread appends while
+ * navigation threads search, so all access synchronizes on the index; each
+ * operation is short. Once the parse completes the index is frozen and
+ * searches no longer take the lock.
+ */
+final class TagIndex {
+	private static final int INITIAL_CAPACITY = 8;
+
+	private final boolean withElements;
+	private int[][] ordinals = new int[64][];
+	private XmlElement[][] elements = new XmlElement[64][];
+	private int[] sizes = new int[64];
+	private long entryCount;
+	private volatile boolean frozen;
+
+	/**
+	 * @param withElements true to keep the element of each entry (object mode);
+	 *                     in compact mode the ordinal is the NodeTable record
+	 */
+	TagIndex(boolean withElements) {
+		this.withElements = withElements;
+	}
+
+	/**
+	 * Appends an element; ordinals must be added in increasing order.
+	 */
+	synchronized void add(int nameId, int ordinal, XmlElement element) {
+		if (frozen)
+			throw new IllegalStateException("Tag index is frozen");
+		if (nameId >= sizes.length) {
+			int n = Math.max(nameId + 1, sizes.length * 2);
+			ordinals = Arrays.copyOf(ordinals, n);
+			elements = Arrays.copyOf(elements, n);
+			sizes = Arrays.copyOf(sizes, n);
+		}
+		int size = sizes[nameId];
+		if (ordinals[nameId] == null) {
+			ordinals[nameId] = new int[INITIAL_CAPACITY];
+			if (withElements)
+				elements[nameId] = new XmlElement[INITIAL_CAPACITY];
+		} else if (size == ordinals[nameId].length) {
+			ordinals[nameId] = Arrays.copyOf(ordinals[nameId], size * 2);
+			if (withElements)
+				elements[nameId] = Arrays.copyOf(elements[nameId], size * 2);
+		}
+		ordinals[nameId][size] = ordinal;
+		if (withElements)
+			elements[nameId][size] = element;
+		sizes[nameId] = size + 1;
+		entryCount++;
+	}
+
+	/**
+	 * Marks the index as complete. Writes made before this call are visible to
+	 * every thread that sees the volatile flag, so later searches skip the lock.
+	 */
+	synchronized void freeze() {
+		frozen = true;
+	}
+
+	/**
+	 * Returns the first ordinal named nameId after the given one, or -1.
+	 */
+	int nextOrdinal(int nameId, int after) {
+		if (!frozen) {
+			synchronized (this) {
+				return ordinalAfter(nameId, after);
+			}
+		}
+		return ordinalAfter(nameId, after);
+	}
+
+	private int ordinalAfter(int nameId, int after) {
+		int i = indexAfter(nameId, after);
+		return i < 0 ? -1 : ordinals[nameId][i];
+	}
+
+	/**
+	 * Returns the first element named nameId after the given ordinal, or null.
+	 */
+	XmlElement nextElement(int nameId, int after) {
+		if (!frozen) {
+			synchronized (this) {
+				return elementAfter(nameId, after);
+			}
+		}
+		return elementAfter(nameId, after);
+	}
+
+	private XmlElement elementAfter(int nameId, int after) {
+		int i = indexAfter(nameId, after);
+		return i < 0 ? null : elements[nameId][i];
+	}
+
+	private int indexAfter(int nameId, int after) {
+		if (nameId < 0 || nameId >= sizes.length)
+			return -1;
+		int i = upperBound(ordinals[nameId], sizes[nameId], after);
+		return i < sizes[nameId] ? i : -1;
+	}
+
+	/**
+	 * Index of the first entry greater than key.
+	 */
+	private static int upperBound(int[] a, int size, int key) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] <= key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Removes the entries in the given ordinal ranges (inclusive, sorted and
+	 * disjoint) from every list, e.g. the subtrees of evicted records.
+	 */
+	synchronized void removeRanges(int[] from, int[] to, int count) {
+		if (count == 0)
+			return;
+		if (frozen)
+			throw new IllegalStateException("Tag index is frozen");
+		for (int nameId = 0; nameId < sizes.length; nameId++) {
+			int size = sizes[nameId];
+			if (size == 0)
+				continue;
+			int[] ord = ordinals[nameId];
+			XmlElement[] elem = elements[nameId];
+			int read = upperBound(ord, size, from[0] - 1);
+			int write = read;
+			int range = 0;
+			for (; read < size && ord[read] <= to[count - 1]; read++) {
+				while (ord[read] > to[range])
+					range++;
+				if (ord[read] >= from[range])
+					continue; // inside an evicted range
+				ord[write] = ord[read];
+				if (withElements)
+					elem[write] = elem[read];
+				write++;
+			}
+			if (write == read)
+				continue;
+			int tail = size - read;
+			System.arraycopy(ord, read, ord, write, tail);
+			if (withElements) {
+				System.arraycopy(elem, read, elem, write, tail);
+				Arrays.fill(elem, write + tail, size, null);
+			}
+			sizes[nameId] = write + tail;
+			entryCount -= read - write;
+		}
+	}
+
+	/**
+	 * Number of entries currently indexed.
+	 */
+	synchronized long size() {
+		return entryCount;
+	}
+}
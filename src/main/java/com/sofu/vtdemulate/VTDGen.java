@@ -1,15 +1,114 @@
 package com.sofu.vtdemulate;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
 public class VTDGen {
     private StaxXmlAdapter adapter;
     private String xmlString; // Added to store XML content for setDoc/parse
+    private MemoryBufferConfig bufferConfig = new MemoryBufferConfig();
+    private boolean compactMode;
+    private boolean lazyValues;
+    private EvictionPolicy evictionPolicy;
+    private boolean tagIndex;
+    private AttributeIndex attributeIndex;
+    private boolean sidecarIndex;
+    private int parallelism = 1;
+    private ParserMetrics metrics;
+    private Executor executor;
 
     public VTDGen() {
     }
 
+    /**
+     * Sets the buffer configuration used by parseFile (chunk size, resident chunk count, heap or mapped backend).
+     * @param bufferConfig The MemoryBufferInputStream configuration.
+     */
+    public void setBufferConfig(MemoryBufferConfig bufferConfig) {
+        this.bufferConfig = bufferConfig;
+    }
+
+    /**
+     * Selects the compact NodeTable model instead of the MutableXmlElement tree for parseFile.
+     * @param compactMode true to keep parsed elements in primitive arrays.
+     */
+    public void setCompactMode(boolean compactMode) {
+        this.compactMode = compactMode;
+    }
+
+    /**
+     * Selects lazy value mode for parseFile: attributes and texts are decoded on demand by VTDNav.
+     * @param lazyValues true to record only element offsets while parsing.
+     */
+    public void setLazyValues(boolean lazyValues) {
+        this.lazyValues = lazyValues;
+    }
+
+    /**
+     * Sets which parsed subtrees parseFile may release while streaming (default: MeContext records).
+     * @param evictionPolicy The policy, or EvictionPolicy.NONE to keep the whole tree.
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Builds a per-name element index during parseFile so VTDNav.toElement(String) is a binary search.
+     * @param tagIndex true to index elements by name.
+     */
+    public void setTagIndex(boolean tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+
+    /**
+     * Sets the attribute value index parseFile fills and saves next to the file.
+     * @param attributeIndex The index with its declared (tag, attribute) keys, or null.
+     */
+    public void setAttributeIndex(AttributeIndex attributeIndex) {
+        this.attributeIndex = attributeIndex;
+    }
+
+    /**
+     * Makes parseFile reuse a sidecar index next to the file when it matches the file, and otherwise parse in
+     * compact mode and write the sidecar once the parse completes (see SidecarIndex).
+     * @param sidecarIndex true to skip parsing on later opens of the same file.
+     */
+    public void setSidecarIndex(boolean sidecarIndex) {
+        this.sidecarIndex = sidecarIndex;
+    }
+
+    /**
+     * Parses files with the given number of threads, split at MeContext starts (see
+     * StaxXmlAdapter.setParallelism). parseFile then returns once the whole file is parsed.
+     * @param parallelism The number of threads, 1 to parse sequentially.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the receiver of parse and buffer counters for files parsed by parseFile (see ParserMetrics).
+     * @param metrics The metrics, or null for none.
+     */
+    public void setMetrics(ParserMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the executor that runs the parse of files parsed by parseFile (see StaxXmlAdapter.setExecutor and
+     * ParserThreads for virtual threads).
+     * @param executor The executor, or null for a new platform thread per file.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
     /**
      * Sets the XML document content to be parsed.
      * @param xmlString The XML content as a string.
@@ -24,7 +123,7 @@ public class VTDGen {
      */
     public boolean parse() {
         if (xmlString == null || xmlString.isEmpty()) {
-            System.err.println("Error: XML document not set. Use setDoc() first.");
+            log.error("XML document not set. Use setDoc() first.");
             return false;
         }
         try {
@@ -32,7 +131,7 @@ public class VTDGen {
             adapter = new StaxXmlAdapter(mbis);
             return true;
         } catch (Exception e) {
-            System.err.println("Error parsing XML from string: " + e.getMessage());
+            log.error("Error parsing XML from string: {}", e.getMessage());
             return false;
         }
     }
@@ -44,7 +143,21 @@ public class VTDGen {
      */
     public boolean parseFile(String filePath) {
         try {
-            adapter = new StaxXmlAdapter(filePath);
+            adapter = new StaxXmlAdapter(filePath, bufferConfig);
+            adapter.setMetrics(metrics);
+            adapter.setExecutor(executor);
+            adapter.setTagIndex(tagIndex);
+            if (sidecarIndex && adapter.loadSidecarIndex()) {
+                return true;
+            }
+            adapter.setCompactMode(compactMode || sidecarIndex);
+            adapter.setLazyValues(lazyValues);
+            adapter.setSaveSidecarIndex(sidecarIndex);
+            adapter.setAttributeIndex(attributeIndex);
+            adapter.setParallelism(parallelism);
+            if (evictionPolicy != null) {
+                adapter.setEvictionPolicy(evictionPolicy);
+            }
             return adapter.startParsing();
         } catch (Exception e) {
             return false;
@@ -52,13 +165,56 @@ public class VTDGen {
     }
 
     /**
-     * Parses a GZIP compressed XML file. (Emulation placeholder)
+     * Finishes parsing the file and writes its structural index to indexPath, like VTD-XML's writeIndex.
+     * Needs a parseFile in compact mode.
+     * @param indexPath The sidecar file to write, usually SidecarIndex.indexFile of the XML file.
+     * @throws IOException if the index cannot be written
+     */
+    public void writeIndex(String indexPath) throws IOException {
+        if (adapter == null || !adapter.isCompactMode()) {
+            throw new IllegalStateException("writeIndex needs a parseFile in compact mode");
+        }
+        while (adapter.isRunning()) {
+            adapter.tryResumeParsingAndWait(2000);
+        }
+        SidecarIndex.write(adapter, new File(indexPath));
+    }
+
+    /**
+     * Opens the file from its sidecar index instead of parsing it, like VTD-XML's loadIndex.
+     * @param filePath The XML file whose sidecar (SidecarIndex.indexFile) is loaded.
+     * @return true if the sidecar was loaded, false if it is missing or does not match the file.
+     */
+    public boolean loadIndex(String filePath) {
+        StaxXmlAdapter loaded = new StaxXmlAdapter(filePath, bufferConfig);
+        loaded.setTagIndex(tagIndex);
+        if (!loaded.loadSidecarIndex()) {
+            return false;
+        }
+        adapter = loaded;
+        return true;
+    }
+
+    /**
+     * Parses a GZIP compressed XML file. The file is decompressed on demand while parsing and for random
+     * access (fragments, getByte), never to disk; see MemoryBufferConfig.Compression. parseFile detects
+     * gzip and zstd input by itself, this method only insists on gzip.
      * @param filePath The path to the GZIP XML file.
-     * @return Always returns false as this is a placeholder.
+     * @return true if parsing is successful, false otherwise.
      */
     public boolean parseGZIPFile(String filePath) {
-        System.out.println("parseGZIPFile: This is a placeholder for GZIP file parsing.");
-        return false;
+        MemoryBufferConfig plain = bufferConfig;
+        MemoryBufferConfig gzip = new MemoryBufferConfig(plain.getChunkSize(), plain.getChunkCountInBlock(),
+                plain.getBackend());
+        gzip.setCacheBudgetBytes(plain.getCacheBudgetBytes());
+        gzip.setPrefetchDepth(plain.getPrefetchDepth());
+        gzip.setCompression(MemoryBufferConfig.Compression.GZIP);
+        bufferConfig = gzip;
+        try {
+            return parseFile(filePath);
+        } finally {
+            bufferConfig = plain;
+        }
     }
 
     public VTDNav getNav() {
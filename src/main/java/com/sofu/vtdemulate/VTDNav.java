@@ -1,25 +1,36 @@
 package com.sofu.vtdemulate;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Stack;
 
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
 public class VTDNav {
 	private StaxXmlAdapter adapter;
 	private XmlElement currentTagPosition; // Current position in the XML tree
 	private Stack<XmlElement> positionStack; // Stack for push/pop operations
+	// Compact model: integer cursor over the adapter's NodeTable
+	private NodeTable table;
+	private int cursor = NodeTable.NONE;
+	private int[] cursorStack = new int[16];
+	private int cursorStackSize = 0;
+	// Own decoder of a cloned cursor (lazy value mode); null uses the adapter's
+	private ValueDecoder valueDecoder;
 
 	public static final int PARENT = 0;
 	public static final int FIRST_CHILD = 1;
 	public static final int NEXT_SIBLING = 2;
 
-	private static Set<String> topNodes = new HashSet<>();
-
-	static {
-		topNodes.add("bulkCmConfigDataFile");
-		topNodes.add("configData");
-		topNodes.add("SubNetwork");
-	}
+	// How long navigation waits for the parser to complete an element
+	private static final int PARSE_TIMEOUT_MILLIS = 10000;
 
 	public VTDNav() {
 		this.positionStack = new Stack<>();
@@ -28,41 +39,66 @@ public class VTDNav {
 	public VTDNav(StaxXmlAdapter adapter) {
 		this(); // Call default constructor to initialize stack
 		this.adapter = adapter;
-		// Wait up to 1 second for adapter.getTagPositions() to become non-null
+		// Wait up to 2 seconds for the first root element to be parsed
 		if (adapter != null) {
-			waitForTagPositionsNotNull(adapter, 2000);
+			adapter.awaitFirstRootElement(2000);
+			if (adapter.isCompactMode()) {
+				this.table = adapter.getNodeTable();
+				if (table != null && table.size() > 0) {
+					this.cursor = 0;
+				}
+				return;
+			}
 			// Initialize currentTagPosition to the first root node if available
 			if (adapter.getFirstRootElement() != null) {
 				this.currentTagPosition = adapter.getFirstRootElement();
-				System.out.println("currentTagPosition=" + this.currentTagPosition);
+				log.debug("currentTagPosition={}", this.currentTagPosition);
 			}
 		}
 	}
 
 	/**
-	 * Waits until adapter.getTagPositions() is not null or timeout is reached.
+	 * Returns an independent cursor over the same parsed document, positioned at
+	 * the current element with an empty position stack. The document is shared
+	 * read-only, so each thread can navigate its own clone without locking; the
+	 * first call switches the adapter to concurrent reads (see
+	 * StaxXmlAdapter.enableConcurrentReads). In lazy value mode the clone gets its
+	 * own decode cache.
 	 * 
-	 * @param adapter       The StaxXmlAdapter instance
-	 * @param timeoutMillis Maximum wait time in milliseconds
+	 * @throws IllegalStateException if the document is not completely parsed
 	 */
-	private static void waitForTagPositionsNotNull(StaxXmlAdapter adapter, long timeoutMillis) {
-		long start = System.currentTimeMillis();
-		while (adapter.getFirstRootElement() == null && System.currentTimeMillis() - start < timeoutMillis) {
-			try {
-				Thread.sleep(20);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				break;
-			}
-		}
-		// System.out.println("waitForTagPositionsNotNull... find " +
-		// adapter.getFirstRootElement());
+	public VTDNav cloneNav() {
+		if (adapter == null)
+			throw new IllegalStateException("No document to navigate");
+		adapter.enableConcurrentReads();
+		VTDNav clone = new VTDNav();
+		clone.adapter = adapter;
+		clone.table = table;
+		clone.cursor = cursor;
+		clone.currentTagPosition = currentTagPosition;
+		clone.valueDecoder = adapter.newValueDecoder();
+		return clone;
+	}
+
+	private ValueDecoder decoder() {
+		if (valueDecoder != null)
+			return valueDecoder;
+		return adapter == null ? null : adapter.getValueDecoder();
 	}
 
 	/**
 	 * Saves the current navigation position onto a stack.
 	 */
 	public void push() {
+		if (table != null) {
+			if (cursor != NodeTable.NONE) {
+				if (cursorStackSize == cursorStack.length) {
+					cursorStack = java.util.Arrays.copyOf(cursorStack, cursorStackSize * 2);
+				}
+				cursorStack[cursorStackSize++] = cursor;
+			}
+			return;
+		}
 		if (currentTagPosition != null) {
 			positionStack.push(currentTagPosition);
 		}
@@ -72,17 +108,42 @@ public class VTDNav {
 	 * Restores the last saved navigation position from the stack.
 	 */
 	public void pop() {
+		if (table != null) {
+			if (cursorStackSize > 0) {
+				cursor = cursorStack[--cursorStackSize];
+			} else {
+				log.warn("Position stack is empty. Cannot pop.");
+			}
+			return;
+		}
 		if (!positionStack.isEmpty()) {
 			currentTagPosition = positionStack.pop();
 		} else {
-			System.err.println("Warning: Position stack is empty. Cannot pop.");
+			log.warn("Position stack is empty. Cannot pop.");
 		}
 	}
 
+	/**
+	 * Returns the current element. In compact mode this is a detached snapshot
+	 * of the current record (see NodeTable.materialize).
+	 */
 	public XmlElement getCurrTagPosition() {
+		if (table != null) {
+			return cursor == NodeTable.NONE ? null : table.materialize(cursor);
+		}
 		return currentTagPosition;
 	}
 
+	/**
+	 * Returns the tag name of the current element, or null if none is selected.
+	 */
+	public String getCurrentTagName() {
+		if (table != null) {
+			return cursor == NodeTable.NONE ? null : table.getTagName(cursor);
+		}
+		return currentTagPosition == null ? null : currentTagPosition.getTagName();
+	}
+
 	/**
 	 * Returns the string representation of the current element. This attempts to
 	 * get the full XML fragment of the current tag.
@@ -95,29 +156,73 @@ public class VTDNav {
 	}
 
 	/**
-	 * Returns the text content of the current element. (Emulation placeholder)
+	 * Returns the text content directly under the current element (child element
+	 * text excluded). In lazy value mode the text is decoded from the buffer.
 	 * 
 	 * @return The text content of the current element, or an empty string if not
 	 *         applicable.
 	 */
 	public String getText() {
-		// A full implementation would parse the text content between start and end tags
-		// For now, it's a placeholder
-		if (currentTagPosition != null) {
-			return "Text content of " + currentTagPosition.getTagName();
+		return String.join("", getTextNodes());
+	}
+
+	/**
+	 * Returns the non-whitespace text nodes directly under the current element.
+	 * 
+	 * @throws EvictedRegionException in lazy value mode, if the subtree of the
+	 *                                current element was evicted
+	 */
+	public List<String> getTextNodes() {
+		ValueDecoder decoder = decoder();
+		if (table != null) {
+			if (cursor == NodeTable.NONE)
+				return Collections.emptyList();
+			if (decoder == null)
+				return table.getTexts(cursor);
+			List<Long> children = new ArrayList<>();
+			for (int c = table.getFirstChild(cursor); c != NodeTable.NONE; c = table.getNextSibling(c)) {
+				children.add(table.getStartOffset(c));
+				children.add(table.getEndOffset(c));
+			}
+			return decoder.texts(table.getStartOffset(cursor), table.getEndOffset(cursor), toArray(children));
+		}
+		if (currentTagPosition == null)
+			return Collections.emptyList();
+		if (decoder == null)
+			return currentTagPosition.getTextNodes();
+		// an evicted record has no children left to skip
+		checkNotEvicted();
+		List<Long> children = new ArrayList<>();
+		for (XmlElement child : currentTagPosition.getChildren()) {
+			children.add(child.getStartOffset());
+			children.add(child.getEndOffset());
+		}
+		return decoder.texts(currentTagPosition.getStartOffset(), currentTagPosition.getEndOffset(),
+				toArray(children));
+	}
+
+	private static long[] toArray(List<Long> values) {
+		long[] array = new long[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
 		}
-		return "";
+		return array;
 	}
 
 	/**
-	 * Returns the index of the current element. (Emulation placeholder) Note: A
-	 * true VTD-XML index is more complex. This is a simple representation.
+	 * Returns the index of the current element: its ordinal in document order
+	 * (0 for the root), in both element models. It plays the role of VTD-XML's
+	 * token index, though it counts elements only.
 	 * 
-	 * @return A simplified index (e.g., hash code of the TagPosition).
+	 * @return the ordinal of the current element (the NodeTable record in
+	 *         compact mode), or -1 if no element is selected
 	 */
 	public int getCurrentIndex() {
+		if (table != null) {
+			return cursor;
+		}
 		if (currentTagPosition != null) {
-			return currentTagPosition.hashCode(); // Simple placeholder for an index
+			return currentTagPosition.getOrdinal();
 		}
 		return -1;
 	}
@@ -131,9 +236,49 @@ public class VTDNav {
 	 * @return true if navigation is successful, false otherwise.
 	 */
 	public boolean toElement(String elementName) {
+		if (table != null) {
+			if (cursor == NodeTable.NONE)
+				return false;
+			checkRecordNotEvicted();
+			int nameId = table.getSymbols().lookup(elementName);
+			TagIndex index = adapter.getTagIndex();
+			int found;
+			if (nameId < 0) {
+				found = NodeTable.NONE;
+			} else if (index != null) {
+				found = index.nextOrdinal(nameId, cursor);
+				if (found >= 0 && !inSearchScope(table.getParent(cursor), table.getStartOffset(found))) {
+					found = NodeTable.NONE;
+				}
+			} else {
+				found = table.findNext(cursor, nameId);
+			}
+			if (found == NodeTable.NONE)
+				return false;
+			cursor = found;
+			waitForElementFullyParsed(false);
+			return true;
+		}
 		if (currentTagPosition == null)
 			return false;
-		XmlElement found = findNextElementDFS(currentTagPosition, elementName);
+		checkNotEvicted();
+		// Resolve the name once; the DFS compares int IDs. A name the parser has
+		// not seen yet cannot be in the parsed tree.
+		int nameId = adapter == null ? -1 : adapter.getSymbols().lookup(elementName);
+		TagIndex index = adapter == null ? null : adapter.getTagIndex();
+		XmlElement found;
+		if (nameId >= 0 && index != null && currentTagPosition.getOrdinal() >= 0) {
+			found = index.nextElement(nameId, currentTagPosition.getOrdinal());
+			XmlElement parent = currentTagPosition.getParent();
+			if (found != null && parent != null
+					&& !inSearchScope(parent.getEndOffset(), found.getStartOffset())) {
+				found = null;
+			}
+		} else if (nameId >= 0) {
+			found = findNextElementDFS(currentTagPosition, nameId);
+		} else {
+			found = findNextElementDFS(currentTagPosition, elementName);
+		}
 		if (found != null) {
 			currentTagPosition = found;
 			// Wait for full parsing if endOffset is not set
@@ -143,6 +288,19 @@ public class VTDNav {
 		return false;
 	}
 
+	/**
+	 * The search of toElement(String) covers the elements after the current one
+	 * up to the end of its parent. An element found in the tag index is in that
+	 * range if it starts before the parent ends (or the parent is still open).
+	 */
+	private boolean inSearchScope(long parentEndOffset, long candidateStartOffset) {
+		return parentEndOffset <= 0 || candidateStartOffset < parentEndOffset;
+	}
+
+	private boolean inSearchScope(int parentRec, long candidateStartOffset) {
+		return parentRec == NodeTable.NONE || inSearchScope(table.getEndOffset(parentRec), candidateStartOffset);
+	}
+
 	/**
 	 * DFS: Search all children (subtree) of the current node first, and if not
 	 * found, search only its next siblings. Does not go up to the parent for
@@ -173,6 +331,34 @@ public class VTDNav {
 		return null;
 	}
 
+	/**
+	 * Same search as findNextElementDFS(XmlElement, String) on interned name IDs.
+	 */
+	private XmlElement findNextElementDFS(XmlElement start, int nameId) {
+		// 1. Search in all children (subtree) of the current node
+		for (XmlElement child : start.getChildren()) {
+			if (child.getNameId() == nameId) {
+				return child;
+			}
+			XmlElement foundInChild = findNextElementDFS(child, nameId);
+			if (foundInChild != null)
+				return foundInChild;
+		}
+		// 2. Search in its next siblings
+		XmlElement sibling = start.getNextSibling();
+		while (sibling != null) {
+			if (sibling.getNameId() == nameId) {
+				return sibling;
+			}
+			XmlElement foundInSibling = findNextElementDFS(sibling, nameId);
+			if (foundInSibling != null)
+				return foundInSibling;
+			sibling = sibling.getNextSibling();
+		}
+		// 3. Do not search further (do not go up to parent)
+		return null;
+	}
+
 	/**
 	 * Navigates to a related element based on direction (PARENT, FIRST_CHILD,
 	 * NEXT_SIBLING).
@@ -186,6 +372,9 @@ public class VTDNav {
 	}
 	
 	private boolean toElement(int direction, boolean tryToLoadNextSibling) {
+		if (table != null) {
+			return toRecord(direction, tryToLoadNextSibling);
+		}
 		if (currentTagPosition == null) {
 			return false;
 		}
@@ -200,6 +389,7 @@ public class VTDNav {
 			}
 			break;
 		case FIRST_CHILD:
+			checkNotEvicted();
 			if (!currentTagPosition.getChildren().isEmpty()) {
 				currentTagPosition = currentTagPosition.getChildren().get(0);
 				moved = true;
@@ -209,58 +399,146 @@ public class VTDNav {
 			if (currentTagPosition.getNextSibling() != null) {
 				currentTagPosition = currentTagPosition.getNextSibling();
 				moved = true;
-			} else if (tryToLoadNextSibling && "MeContext".equals(currentTagPosition.getTagName())) {
-				int blkIdx = adapter.getBlockIndex(currentTagPosition.getEndOffset());
-				int loadedBlockEndIdx = adapter.getLoadedBlockEndIndex();
-
-				if (blkIdx == loadedBlockEndIdx) {
-					// This block is last block in loaded block. Some sibling isn't loaded at this
-					// time.
-					tryToFindNextSibling = true;
-					System.out.println("This block is last block in loaded block. offset=" + loadedBlockEndIdx);
-				}
+			} else if (tryToLoadNextSibling && adapter != null) {
+				XmlElement parent = currentTagPosition.getParent();
+				// While the parent is still open, a sibling may not be loaded at this time.
+				tryToFindNextSibling = parent != null && parent.getEndOffset() <= 0;
 			}
 			break;
 		}
 
-		if (moved && !topNodes.contains(currentTagPosition.getTagName())) {
+		if (moved && !currentTagPosition.isRecordContainer()) {
 			// Wait for full parsing if endOffset is not set
 			waitForElementFullyParsed(currentTagPosition, false);
 		} else if(tryToFindNextSibling) {
-			waitForElementFullyParsed(currentTagPosition, tryToFindNextSibling);
+			XmlElement parent = currentTagPosition.getParent();
+			do {
+				waitForElementFullyParsed(currentTagPosition, tryToFindNextSibling);
+			} while (currentTagPosition.getNextSibling() == null && parent != null && parent.getEndOffset() <= 0
+					&& adapter.isRunning());
 			return toElement(direction, false);
 		}
 
 		return moved;
 	}
 
+	/**
+	 * Throws if the current element's subtree was released by the adapter's
+	 * eviction policy, so that callers cannot mistake it for an empty element.
+	 */
+	private void checkNotEvicted() {
+		if (currentTagPosition.isEvicted()) {
+			throw new EvictedRegionException("Subtree of " + currentTagPosition.getTagName() + " at offset "
+					+ currentTagPosition.getStartOffset() + " was evicted");
+		}
+	}
+
+	private void checkRecordNotEvicted() {
+		if (table.isEvicted(cursor)) {
+			throw new EvictedRegionException("Subtree of " + table.getTagName(cursor) + " at offset "
+					+ table.getStartOffset(cursor) + " was evicted");
+		}
+	}
+
+	/**
+	 * Integer-cursor counterpart of toElement(int, boolean) for the compact model.
+	 */
+	private boolean toRecord(int direction, boolean tryToLoadNextSibling) {
+		if (cursor == NodeTable.NONE) {
+			return false;
+		}
+		int target = NodeTable.NONE;
+		boolean tryToFindNextSibling = false;
+
+		switch (direction) {
+		case PARENT:
+			target = table.getParent(cursor);
+			break;
+		case FIRST_CHILD:
+			checkRecordNotEvicted();
+			target = table.getFirstChild(cursor);
+			break;
+		case NEXT_SIBLING:
+			target = table.getNextSibling(cursor);
+			if (target == NodeTable.NONE && tryToLoadNextSibling && adapter != null) {
+				int parent = table.getParent(cursor);
+				// While the parent is still open, a sibling may not be loaded at this time.
+				tryToFindNextSibling = parent != NodeTable.NONE && table.getEndOffset(parent) <= 0;
+			}
+			break;
+		}
+
+		if (target != NodeTable.NONE) {
+			cursor = target;
+			if (!table.isContainer(cursor)) {
+				waitForElementFullyParsed(false);
+			}
+			return true;
+		}
+		if (tryToFindNextSibling) {
+			int parent = table.getParent(cursor);
+			do {
+				waitForElementFullyParsed(true);
+			} while (table.getNextSibling(cursor) == NodeTable.NONE && parent != NodeTable.NONE
+					&& table.getEndOffset(parent) <= 0 && adapter.isRunning());
+			return toRecord(direction, false);
+		}
+		return false;
+	}
+
+	/**
+	 * Compact-model variant of waitForElementFullyParsed for the current record.
+	 */
+	private void waitForElementFullyParsed(boolean forceSearch) {
+		if (cursor == NodeTable.NONE || adapter == null || !adapter.isRunning())
+			return;
+		if (forceSearch) {
+			adapter.resumeParsingAndWait(PARSE_TIMEOUT_MILLIS);
+			return;
+		}
+		long start = System.currentTimeMillis();
+		long timeout = PARSE_TIMEOUT_MILLIS;
+		// A container's end tag may be far away: stop once records show up below it
+		while (table.getEndOffset(cursor) <= 0 && !table.isContainer(cursor) && adapter.isRunning()) {
+			adapter.tryResumeParsingAndWait(2000);
+			if (System.currentTimeMillis() - start > timeout) {
+				throw new ParseTimeoutException(
+						"Element not fully parsed within " + timeout + "ms: " + table.getTagName(cursor));
+			}
+		}
+	}
+
 	/**
 	 * Waits until the given element's endOffset is set (>0), triggering/resuming
-	 * parsing if needed. Times out after 10 seconds to avoid infinite wait.
+	 * parsing if needed. Each resume blocks until the parser signals the next
+	 * block boundary.
+	 * 
+	 * @throws ParseTimeoutException if the element is not complete after 10
+	 *                               seconds
 	 */
 	private void waitForElementFullyParsed(XmlElement element, boolean forceSearch) {
 		if (element == null || adapter == null || !adapter.isRunning())
 			return;
 
 		if (forceSearch) {
-			System.out.println("Find next element if exists... " + adapter.isRunning());
-			adapter.resumeParsingAndWait(2000);
+			log.debug("Find next element if exists... running={}", adapter.isRunning());
+			adapter.resumeParsingAndWait(PARSE_TIMEOUT_MILLIS);
 			return;
 		}
 
 		long start = System.currentTimeMillis();
-		long timeout = 10000; // 10 seconds
+		long timeout = PARSE_TIMEOUT_MILLIS;
 		// Wait until endOffset is set or timeout
-		while (element.getEndOffset() <= 0) {
-			System.out.println("Found incompleted element... " + element);
-			adapter.resumeParsingAndWait(2000);
+		// A container's end tag may be far away: stop once records show up below it
+		while (element.getEndOffset() <= 0 && !element.isRecordContainer() && adapter.isRunning()) {
+			log.debug("Found incompleted element... {}", element);
+			adapter.tryResumeParsingAndWait(2000);
 
 			if (System.currentTimeMillis() - start > timeout) {
-				System.err.println("Timeout waiting for element to be fully parsed.");
-				break;
+				throw new ParseTimeoutException("Element not fully parsed within " + timeout + "ms: " + element);
 			}
 		}
-		System.out.println("After waiting... " + element);
+		log.debug("After waiting... {}", element);
 	}
 
 	/**
@@ -271,18 +549,100 @@ public class VTDNav {
 	 * @return The attribute value, or null if not found or no element is selected.
 	 */
 	public String getAttrVal(String attributeName) {
+		ValueDecoder decoder = decoder();
+		if (table != null) {
+			if (cursor == NodeTable.NONE || attributeName == null)
+				return null;
+			return decoder != null ? decoder.attribute(table.getStartOffset(cursor), attributeName)
+					: table.getAttribute(cursor, attributeName);
+		}
 		if (currentTagPosition == null || attributeName == null)
 			return null;
+		if (decoder != null)
+			return decoder.attribute(currentTagPosition.getStartOffset(), attributeName);
 		return currentTagPosition.getAttributes().get(attributeName);
 	}
 
 	/**
-	 * Returns the XML fragment of the current element.
+	 * Returns the XML fragment of the current element. The fragment of a record
+	 * container (e.g. SubNetwork) is only available once the parse has completed.
 	 * 
 	 * @return The XML fragment as a String, or null if no element is selected.
+	 * @throws IllegalStateException if the element's end has not been parsed
 	 */
 	public String getElementFragment() {
-		return null;
+		ByteBuffer fragment = getElementFragmentBuffer();
+		return fragment == null ? null : StandardCharsets.UTF_8.decode(fragment).toString();
+	}
+
+	/**
+	 * Returns the bytes of the current element as a read-only buffer. The buffer
+	 * is a zero-copy view of the chunk when the element lies within one chunk.
+	 * 
+	 * @return The fragment bytes, or null if no element is selected.
+	 */
+	public ByteBuffer getElementFragmentBuffer() {
+		long[] range = currentFragmentRange();
+		if (range == null)
+			return null;
+		try {
+			return adapter.getMemoryBuffer().getByteBuffer(range[0], range[1] - 1);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Streams the bytes of the current element to out chunk by chunk, without
+	 * materializing the fragment. Suited to large subtrees.
+	 * 
+	 * @return false if no element is selected.
+	 */
+	public boolean writeFragment(OutputStream out) throws IOException {
+		long[] range = currentFragmentRange();
+		if (range == null)
+			return false;
+		adapter.getMemoryBuffer().writeTo(range[0], range[1] - 1, out);
+		return true;
+	}
+
+	/**
+	 * Returns {start, end (exclusive)} of the current element once it is fully
+	 * parsed, or null if no element is selected. Throws IllegalStateException
+	 * if the offsets are not byte offsets (see StaxXmlAdapter.isByteOffsets),
+	 * or if the element's end is not parsed: navigation does not wait for the
+	 * end tag of a record container, which may be the rest of the file.
+	 */
+	private long[] currentFragmentRange() {
+		if (adapter == null || adapter.getMemoryBuffer() == null)
+			return null;
+		if (!adapter.isByteOffsets())
+			throw new IllegalStateException("Fragments need byte offsets, which this document's encoding does not have");
+		long start;
+		long end;
+		boolean container;
+		if (table != null) {
+			if (cursor == NodeTable.NONE)
+				return null;
+			waitForElementFullyParsed(false);
+			start = table.getStartOffset(cursor);
+			end = table.getEndOffset(cursor);
+			container = table.isContainer(cursor);
+		} else {
+			if (currentTagPosition == null)
+				return null;
+			waitForElementFullyParsed(currentTagPosition, false);
+			start = currentTagPosition.getStartOffset();
+			end = currentTagPosition.getEndOffset();
+			container = currentTagPosition.isRecordContainer();
+		}
+		if (end <= start) {
+			if (container)
+				throw new IllegalStateException("The fragment of record container " + getCurrentTagName()
+						+ " at offset " + start + " is only available after the parse completes");
+			throw new IllegalStateException("Element end not parsed at offset " + start + ", the parse has ended");
+		}
+		return new long[] { start, end };
 	}
 
 	/**
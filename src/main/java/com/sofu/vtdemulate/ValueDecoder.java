@@ -0,0 +1,360 @@
+package com.sofu.vtdemulate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decodes attribute values and text nodes of an element on demand from the
+ * bytes in MemoryBufferInputStream. Used in lazy value mode, where the parser
+ * only records element offsets.
+ *
+ * Attribute maps are kept in a small LRU cache keyed by the element start
+ * offset, so repeated getAttrVal calls on the same element decode once.
+ */
+final class ValueDecoder {
+	private static final int WINDOW = 4096;
+
+	private final MemoryBufferInputStream buffer;
+	private final int cacheSize;
+	private final Map<Long, Map<String, String>> attributeCache;
+	private final ReentrantLock lock = new ReentrantLock(); // held while reading the buffer
+
+	ValueDecoder(MemoryBufferInputStream buffer, int cacheSize) {
+		this.buffer = buffer;
+		this.cacheSize = cacheSize;
+		this.attributeCache = new LinkedHashMap<Long, Map<String, String>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Map<String, String>> eldest) {
+				return size() > ValueDecoder.this.cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the attributes of the element starting at startOffset (local names,
+	 * namespace declarations excluded, like the eager parser).
+	 */
+	Map<String, String> attributes(long startOffset) {
+		lock.lock();
+		try {
+			if (cacheSize > 0) {
+				Map<String, String> cached = attributeCache.get(startOffset);
+				if (cached != null) {
+					return cached;
+				}
+			}
+			Map<String, String> attributes = Collections.unmodifiableMap(parseStartTag(startOffset));
+			if (cacheSize > 0) {
+				attributeCache.put(startOffset, attributes);
+			}
+			return attributes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	String attribute(long startOffset, String name) {
+		return attributes(startOffset).get(name);
+	}
+
+	/**
+	 * Returns the non-whitespace text nodes directly under the element in
+	 * [startOffset, endOffset). childOffsets holds start/end pairs of known
+	 * children, which are skipped without scanning; other nested elements are
+	 * skipped by depth.
+	 */
+	List<String> texts(long startOffset, long endOffset, long[] childOffsets) {
+		lock.lock();
+		try {
+			Cursor in = new Cursor(endOffset > 0 ? endOffset : buffer.size());
+			List<String> texts = new ArrayList<>();
+			long p = skipTag(in, startOffset);
+			if (in.at(p - 2) == '/') {
+				return texts; // empty element
+			}
+			TextBuilder text = new TextBuilder();
+			int child = 0;
+			int depth = 0;
+			while (true) {
+				while (childOffsets != null && child < childOffsets.length && childOffsets[child] < p) {
+					child += 2;
+				}
+				if (childOffsets != null && child < childOffsets.length && childOffsets[child] == p) {
+					text.flush(texts);
+					p = childOffsets[child + 1];
+					child += 2;
+					continue;
+				}
+				int c = in.at(p);
+				if (c < 0) {
+					break;
+				}
+				if (c != '<') {
+					if (depth == 0) {
+						text.raw.write(c);
+					}
+					p++;
+					continue;
+				}
+				if (in.startsWith(p, "<![CDATA[")) {
+					long end = in.indexOf(p + 9, "]]>");
+					if (depth == 0) {
+						text.appendLiteral(in.bytes(p + 9, end));
+					}
+					p = end + 3;
+				} else if (in.startsWith(p, "<!--")) {
+					text.flush(texts);
+					p = in.indexOf(p + 4, "-->") + 3;
+				} else if (in.startsWith(p, "<?")) {
+					text.flush(texts);
+					p = in.indexOf(p + 2, "?>") + 2;
+				} else if (in.at(p + 1) == '/') {
+					if (depth == 0) {
+						break;
+					}
+					depth--;
+					p = in.indexOf(p, ">") + 1;
+				} else {
+					text.flush(texts);
+					p = skipTag(in, p);
+					if (in.at(p - 2) != '/') {
+						depth++;
+					}
+				}
+			}
+			text.flush(texts);
+			return texts;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Map<String, String> parseStartTag(long startOffset) {
+		Cursor in = new Cursor(buffer.size());
+		Map<String, String> attributes = new LinkedHashMap<>();
+		long p = startOffset;
+		if (in.at(p) != '<') {
+			throw new IllegalStateException("No start tag at offset " + startOffset);
+		}
+		p++;
+		while (!isNameEnd(in.at(p))) {
+			p++;
+		}
+		while (true) {
+			while (isSpace(in.at(p))) {
+				p++;
+			}
+			int c = in.at(p);
+			if (c == '>' || c == '/' || c < 0) {
+				return attributes;
+			}
+			long nameStart = p;
+			while (in.at(p) != '=' && !isNameEnd(in.at(p))) {
+				p++;
+			}
+			String name = new String(in.bytes(nameStart, p), StandardCharsets.UTF_8);
+			while (in.at(p) != '\'' && in.at(p) != '"') {
+				if (in.at(p) < 0) {
+					return attributes;
+				}
+				p++;
+			}
+			int quote = in.at(p);
+			long valueStart = p + 1;
+			p = valueStart;
+			while (in.at(p) != quote) {
+				if (in.at(p) < 0) {
+					return attributes;
+				}
+				p++;
+			}
+			String value = new String(in.bytes(valueStart, p), StandardCharsets.UTF_8);
+			p++;
+			if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+				continue;
+			}
+			int colon = name.indexOf(':');
+			attributes.put(colon < 0 ? name : name.substring(colon + 1), unescape(normalizeAttribute(value)));
+		}
+	}
+
+	/**
+	 * Returns the offset just past the '>' of the tag starting at p, ignoring '>'
+	 * inside quoted attribute values.
+	 */
+	private static long skipTag(Cursor in, long p) {
+		int quote = 0;
+		for (int c = in.at(p); c >= 0; c = in.at(++p)) {
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return p + 1;
+			}
+		}
+		return p;
+	}
+
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	private static boolean isNameEnd(int c) {
+		return c < 0 || isSpace(c) || c == '>' || c == '/';
+	}
+
+	private static String normalizeAttribute(String value) {
+		return value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0 ? value
+				: value.replace("\r\n", " ").replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	static String unescape(String s) {
+		int amp = s.indexOf('&');
+		if (amp < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(s.length());
+		int i = 0;
+		while (amp >= 0) {
+			sb.append(s, i, amp);
+			int semi = s.indexOf(';', amp);
+			if (semi < 0) {
+				i = amp;
+				break;
+			}
+			String entity = s.substring(amp + 1, semi);
+			switch (entity) {
+			case "lt":
+				sb.append('<');
+				break;
+			case "gt":
+				sb.append('>');
+				break;
+			case "amp":
+				sb.append('&');
+				break;
+			case "quot":
+				sb.append('"');
+				break;
+			case "apos":
+				sb.append('\'');
+				break;
+			default:
+				if (entity.startsWith("#x")) {
+					sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+				} else if (entity.startsWith("#")) {
+					sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+				} else {
+					sb.append('&').append(entity).append(';');
+				}
+			}
+			i = semi + 1;
+			amp = s.indexOf('&', i);
+		}
+		sb.append(s, i, s.length());
+		return sb.toString();
+	}
+
+	/**
+	 * Collects one text node: raw (escaped) bytes plus literal CDATA content.
+	 */
+	private static final class TextBuilder {
+		final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		final StringBuilder text = new StringBuilder();
+
+		void appendLiteral(byte[] bytes) {
+			flushRaw();
+			text.append(new String(bytes, StandardCharsets.UTF_8));
+		}
+
+		private void flushRaw() {
+			if (raw.size() > 0) {
+				String s = new String(raw.toByteArray(), StandardCharsets.UTF_8);
+				if (s.indexOf('\r') >= 0) {
+					s = s.replace("\r\n", "\n").replace('\r', '\n');
+				}
+				text.append(unescape(s));
+				raw.reset();
+			}
+		}
+
+		void flush(List<String> texts) {
+			flushRaw();
+			for (int i = 0; i < text.length(); i++) {
+				if (!isSpace(text.charAt(i))) {
+					texts.add(text.toString());
+					break;
+				}
+			}
+			text.setLength(0);
+		}
+	}
+
+	/**
+	 * Random-access byte reader over a window of MemoryBufferInputStream.
+	 */
+	private final class Cursor {
+		private final long limit;
+		private byte[] window = new byte[0];
+		private long windowStart;
+
+		Cursor(long limit) {
+			this.limit = limit;
+		}
+
+		int at(long p) {
+			if (p < 0 || p >= limit) {
+				return -1;
+			}
+			if (p < windowStart || p >= windowStart + window.length) {
+				windowStart = p;
+				window = read(p, Math.min(p + WINDOW, limit));
+			}
+			return window[(int) (p - windowStart)] & 0xFF;
+		}
+
+		byte[] bytes(long from, long to) {
+			if (to <= from) {
+				return new byte[0];
+			}
+			return read(from, to);
+		}
+
+		private byte[] read(long from, long to) {
+			try {
+				return buffer.getByte(from, to - 1);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		boolean startsWith(long p, String s) {
+			for (int i = 0; i < s.length(); i++) {
+				if (at(p + i) != s.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		long indexOf(long p, String s) {
+			while (at(p) >= 0 && !startsWith(p, s)) {
+				p++;
+			}
+			return p;
+		}
+	}
+}
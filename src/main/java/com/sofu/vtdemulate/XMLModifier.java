@@ -1,29 +1,280 @@
 package com.sofu.vtdemulate;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
+/**
+ * Records edits as byte ranges of the original document and writes the
+ * modified document in one sequential pass (like VTD-XML's XMLModifier): the
+ * unchanged spans between edits are copied chunk by chunk from the buffer and
+ * the edits are spliced in. Memory use is proportional to the number of edits,
+ * not to the document. When writing to a file, unchanged spans of an
+ * uncompressed document are moved with FileChannel.transferTo and only the
+ * edits pass through the heap.
+ *
+ * Element offsets are those of the parse (start at '<', end just after the end
+ * tag); the document is written as UTF-8. Edits need byte offsets, so a
+ * document in an encoding without them (see StaxXmlAdapter.isByteOffsets) is
+ * rejected with a ModifyException rather than written corrupted. Edits must not overlap, except that
+ * any number of insertions may share an offset; they are written in the order
+ * they were made.
+ */
 public class XMLModifier {
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final class Edit {
+        final long start;
+        final long end; // exclusive; equal to start for an insertion
+        final byte[] bytes;
+        final int seq;
+
+        Edit(long start, long end, byte[] bytes, int seq) {
+            this.start = start;
+            this.end = end;
+            this.bytes = bytes;
+            this.seq = seq;
+        }
+    }
+
+    // insertions before replacements at the same offset, then in call order
+    private static final Comparator<Edit> ORDER = Comparator.<Edit>comparingLong(e -> e.start)
+            .thenComparingInt(e -> e.end > e.start ? 1 : 0).thenComparingInt(e -> e.seq);
+
     private final StaxXmlAdapter adapter;
+    private final List<Edit> edits = new ArrayList<>();
 
     public XMLModifier(StaxXmlAdapter adapter) {
         this.adapter = adapter;
     }
 
     /**
-     * Update the attribute of the given node and ensure tagPositions reflects the change.
+     * Replaces the value of an existing attribute of the element. Does nothing if
+     * the start tag has no such attribute. The element's attribute map, if it
+     * holds the attribute, is updated too, and a MutableXmlElement records the
+     * change so that XmlElement.write shows it as well.
      */
-    public void updateAttribute(MutableXmlElement element, String name, String value) {
-        if(element.getAttributes().containsKey(name)) {
-            element.putAttribute(name, value);
+    public void updateAttribute(XmlElement element, String name, String value) {
+        StartTag tag = startTag(element);
+        int i = tag.indexOf(name);
+        if (i < 0)
+            return;
+        addEdit(tag.valueStart(i), tag.valueEnd(i), escape(value));
+        if (element.getAttributes().containsKey(name)) {
+            element.getAttributes().put(name, value);
+        }
+        if (element instanceof MutableXmlElement) {
+            ((MutableXmlElement) element).putAttribute(name, value);
         }
     }
 
     /**
-     * Delete the given node from the adapter's tagPositions list.
+     * Adds an attribute at the end of the element's start tag.
+     */
+    public void insertAttribute(XmlElement element, String name, String value) {
+        long at = startTag(element).tagEnd;
+        addEdit(at, at, " " + name + "=\"" + escape(value) + "\"");
+    }
+
+    /**
+     * Deletes the element and removes it from its parent in the parsed tree.
      */
     public void delete(XmlElement element) {
+        requireComplete(element);
+        addEdit(element.getStartOffset(), element.getEndOffset(), "");
         if(element.getParent() != null) {
             element.getParent().removeChild(element);
         }
     }
-} 
\ No newline at end of file
+
+    /**
+     * Inserts text (written as is, not escaped) just before the element's start
+     * tag.
+     */
+    public void insertBeforeElement(XmlElement element, String xml) {
+        addEdit(element.getStartOffset(), element.getStartOffset(), xml);
+    }
+
+    /**
+     * Inserts text (written as is, not escaped) just after the element's end tag.
+     */
+    public void insertAfterElement(XmlElement element, String xml) {
+        requireComplete(element);
+        addEdit(element.getEndOffset(), element.getEndOffset(), xml);
+    }
+
+    /**
+     * Replaces the bytes from start (inclusive) to end (exclusive) with text
+     * written as is. start == end inserts.
+     */
+    public void replace(long start, long end, String xml) {
+        if (start < 0 || end < start)
+            throw new IllegalArgumentException("Invalid range " + start + "-" + end);
+        addEdit(start, end, xml);
+    }
+
+    public int getEditCount() {
+        return edits.size();
+    }
+
+    /**
+     * Discards all recorded edits.
+     */
+    public void reset() {
+        edits.clear();
+    }
+
+    /**
+     * Writes the modified document to out. out is flushed, not closed. A
+     * FileOutputStream is written through its channel (see
+     * output(WritableByteChannel)).
+     * 
+     * @throws ModifyException if two edits overlap
+     */
+    public void output(OutputStream out) throws IOException {
+        if (out instanceof FileOutputStream) {
+            output(((FileOutputStream) out).getChannel());
+            return;
+        }
+        List<Edit> sorted = sortedEdits();
+        MemoryBufferInputStream memoryBuffer = adapter.getMemoryBuffer();
+        OutputStream buffered = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+        long cur = 0;
+        for (Edit edit : sorted) {
+            if (edit.start > cur) {
+                memoryBuffer.writeTo(cur, edit.start - 1, buffered);
+            }
+            buffered.write(edit.bytes);
+            cur = edit.end;
+        }
+        if (cur < memoryBuffer.size()) {
+            memoryBuffer.writeTo(cur, Long.MAX_VALUE, buffered);
+        }
+        buffered.flush();
+    }
+
+    /**
+     * Writes the modified document to a channel. Unchanged spans are
+     * transferred from the file (MemoryBufferInputStream.transferTo); the edits
+     * between them are gathered in a heap buffer. The channel is not closed.
+     * 
+     * @throws ModifyException if two edits overlap
+     */
+    public void output(WritableByteChannel channel) throws IOException {
+        List<Edit> sorted = sortedEdits();
+        MemoryBufferInputStream memoryBuffer = adapter.getMemoryBuffer();
+        ByteBuffer pending = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        long cur = 0;
+        for (Edit edit : sorted) {
+            if (edit.start > cur) {
+                drain(pending, channel);
+                memoryBuffer.transferTo(cur, edit.start - 1, channel);
+            }
+            if (edit.bytes.length > pending.remaining()) {
+                drain(pending, channel);
+            }
+            if (edit.bytes.length > pending.remaining()) {
+                writeFully(ByteBuffer.wrap(edit.bytes), channel);
+            } else {
+                pending.put(edit.bytes);
+            }
+            cur = edit.end;
+        }
+        drain(pending, channel);
+        if (cur < memoryBuffer.size()) {
+            memoryBuffer.transferTo(cur, Long.MAX_VALUE, channel);
+        }
+    }
+
+    /**
+     * Writes the modified document to a file, which must not be the parsed file.
+     */
+    public void output(Path path) throws IOException {
+        String source = adapter.getFilePath();
+        if (source != null && Files.exists(path) && Files.isSameFile(path, new File(source).toPath()))
+            throw new IllegalArgumentException("Cannot write over the parsed file " + source);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            output(channel);
+        }
+    }
+
+    public void output(String fileName) throws IOException {
+        output(new File(fileName).toPath());
+    }
+
+    /**
+     * Returns the edits in output order.
+     * 
+     * @throws ModifyException if two edits overlap
+     */
+    private List<Edit> sortedEdits() {
+        List<Edit> sorted = new ArrayList<>(edits);
+        sorted.sort(ORDER);
+        long cur = 0;
+        for (Edit edit : sorted) {
+            if (edit.start < cur)
+                throw new ModifyException("Edit at " + edit.start + "-" + edit.end + " overlaps an edit ending at " + cur);
+            cur = edit.end;
+        }
+        return sorted;
+    }
+
+    private static void drain(ByteBuffer pending, WritableByteChannel channel) throws IOException {
+        ((Buffer) pending).flip();
+        writeFully(pending, channel);
+        ((Buffer) pending).clear();
+    }
+
+    private static void writeFully(ByteBuffer data, WritableByteChannel channel) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private void addEdit(long start, long end, String text) {
+        if (!adapter.isByteOffsets())
+            throw new ModifyException("Edits need byte offsets, which this document's encoding does not have");
+        edits.add(new Edit(start, end, text.getBytes(StandardCharsets.UTF_8), edits.size()));
+    }
+
+    private static void requireComplete(XmlElement element) {
+        if (element.getEndOffset() <= element.getStartOffset())
+            throw new ModifyException("Element end not parsed yet at offset " + element.getStartOffset());
+    }
+
+    /**
+     * Scans the element's start tag. The start tag is complete even while the
+     * element's content is still being parsed.
+     */
+    private StartTag startTag(XmlElement element) {
+        MemoryBufferInputStream memoryBuffer = adapter.getMemoryBuffer();
+        long limit = element.getEndOffset() > element.getStartOffset() ? element.getEndOffset() : memoryBuffer.size();
+        try {
+            return StartTag.scan(memoryBuffer, element.getStartOffset(), limit);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String escape(String s) {
+        if (s == null)
+            return "";
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'",
+                "&apos;");
+    }
+}
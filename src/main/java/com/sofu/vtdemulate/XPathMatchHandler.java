@@ -0,0 +1,21 @@
+package com.sofu.vtdemulate;
+
+/**
+ * Receives the matches of a streaming XPath expression registered with
+ * StaxXmlAdapter.addStreamingXPath.
+ */
+@FunctionalInterface
+public interface XPathMatchHandler {
+	/**
+	 * Called on the parser thread when the END_ELEMENT of a matching element is
+	 * read, before the element can be evicted.
+	 * 
+	 * @param xpath   the registered expression
+	 * @param element the matching element with its subtree (in compact mode a
+	 *                detached snapshot of the element alone, see
+	 *                NodeTable.materialize)
+	 * @param value   the attribute value for paths ending in {@code @name},
+	 *                otherwise the text directly under the element
+	 */
+	void onMatch(String xpath, XmlElement element, String value);
+}
@@ -0,0 +1,11 @@
+package com.sofu.vtdemulate;
+
+/**
+ * Thrown by AutoPilot.selectXPath when an expression is malformed or uses XPath
+ * features outside the supported subset.
+ */
+public class XPathParseException extends RuntimeException {
+	public XPathParseException(String message) {
+		super(message);
+	}
+}
@@ -26,12 +26,33 @@ public abstract class XmlElement {
 	private long endOffset;
 
 	private String tagName;
+	/**
+	 * ID of tagName in the document's SymbolTable, or -1 if not interned.
+	 */
+	private int nameId = -1;
+	/**
+	 * Position of the element in document order, or -1 if not assigned.
+	 */
+	private int ordinal = -1;
 	private XmlElement parent;
 	private List<XmlElement> children = new ArrayList<>();
 	/**
 	 * Reference to the next sibling child (set by parent when addChild is called)
 	 */
 	private XmlElement nextSibling;
+	/**
+	 * True if a record of the eviction policy was parsed below this element.
+	 */
+	private boolean recordContainer;
+	/**
+	 * True if this record's subtree was released by the eviction policy.
+	 */
+	private boolean evicted;
+	/**
+	 * True if this element or one of its descendants has pending changes. write()
+	 * copies unmodified subtrees as one span.
+	 */
+	private boolean subtreeModified;
 	private Map<String, String> attributes = new HashMap<>();
 	private List<String> textNodes = new ArrayList<>();
 
@@ -49,6 +70,18 @@ public abstract class XmlElement {
 			prev.setNextSibling(child);
 		}
 		this.children.add(child);
+		if (child.isSubtreeModified()) {
+			markModified();
+		}
+	}
+
+	/**
+	 * Flags this element and its ancestors as having pending changes.
+	 */
+	protected void markModified() {
+		for (XmlElement e = this; e != null && !e.isSubtreeModified(); e = e.getParent()) {
+			e.setSubtreeModified(true);
+		}
 	}
 
 	/**
@@ -66,6 +99,10 @@ public abstract class XmlElement {
 
 	/**
 	 * Recursively writes this element and its children to the output stream.
+	 * Unmodified subtrees are copied from the buffer as single spans (straight
+	 * from the file when out is a FileOutputStream, see
+	 * MemoryBufferInputStream.writeTo); only changed elements are rebuilt on
+	 * the heap.
 	 * 
 	 * @param out          OutputStream to write to
 	 * @param memoryBuffer MemoryBufferInputStream for reading bytes
@@ -76,12 +113,18 @@ public abstract class XmlElement {
 	}
 
 	/**
-	 * Helper for write(). Returns the last written offset.
+	 * Helper for write(). The element covers startOffset to endOffset
+	 * (exclusive, just after its end tag); the protected write methods get
+	 * inclusive ranges. Returns the end offset.
 	 */
 	protected long writeInner(OutputStream out, MemoryBufferInputStream memoryBuffer) throws IOException {
+		if (!subtreeModified) {
+			memoryBuffer.writeTo(getStartOffset(), getEndOffset() - 1, out);
+			return getEndOffset();
+		}
 		// Write from start to first child
 		if (children.isEmpty()) {
-			writePrefixTextAndTail(out, memoryBuffer, getStartOffset(), getEndOffset());
+			writePrefixTextAndTail(out, memoryBuffer, getStartOffset(), getEndOffset() - 1);
 			return getEndOffset();
 		}
 		long lastEndOffset = getStartOffset();
@@ -90,16 +133,15 @@ public abstract class XmlElement {
 			if (!printPrefix) {
 				writePrefix(out, memoryBuffer, getStartOffset(), child.getStartOffset() - 1);
 				printPrefix = true;
-			} else if(lastEndOffset + 1 < child.getStartOffset()) {
+			} else if(lastEndOffset < child.getStartOffset()) {
 				// After second of children.
 				// write space or enter keyword for formatting.
-				byte[] bytes = memoryBuffer.getByte(lastEndOffset + 1, child.getStartOffset() - 1);
-				out.write(bytes);
+				memoryBuffer.writeTo(lastEndOffset, child.getStartOffset() - 1, out);
 			}
 			lastEndOffset = child.writeInner(out, memoryBuffer);
 		}
 		if (lastEndOffset < getEndOffset()) {
-			writeTail(out, memoryBuffer, lastEndOffset + 1, getEndOffset());
+			writeTail(out, memoryBuffer, lastEndOffset, getEndOffset() - 1);
 		}
 		return getEndOffset();
 	}
@@ -111,21 +153,18 @@ public abstract class XmlElement {
 	 */
 	protected void writePrefix(OutputStream out, MemoryBufferInputStream memoryBuffer, long startOffset,
 			long endOffset) throws IOException {
-		byte[] bytes = memoryBuffer.getByte(startOffset, endOffset);
-		out.write(bytes);
+		memoryBuffer.writeTo(startOffset, endOffset, out);
 	}
 	
 	protected void writeTail(OutputStream out, MemoryBufferInputStream memoryBuffer, long startOffset,
 			long endOffset) throws IOException {
-		byte[] bytes = memoryBuffer.getByte(startOffset, endOffset);
-		out.write(bytes);
+		memoryBuffer.writeTo(startOffset, endOffset, out);
 	}
 	
 	
 	protected void writePrefixTextAndTail(OutputStream out, MemoryBufferInputStream memoryBuffer, long startOffset,
 			long endOffset) throws IOException {
-		byte[] bytes = memoryBuffer.getByte(startOffset, endOffset);
-		out.write(bytes);
+		memoryBuffer.writeTo(startOffset, endOffset, out);
 	}
 
 	@Override
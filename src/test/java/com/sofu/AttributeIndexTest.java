@@ -0,0 +1,83 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.AttributeIndex;
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+
+public class AttributeIndexTest {
+	private static final int ME_CONTEXTS = 500;
+
+	@Test
+	public void testIndexIsBuiltWhileParsingAndPersisted() throws Exception {
+		File file = CmFile.meContexts(ME_CONTEXTS).write("attribute-index");
+		File indexFile = AttributeIndex.indexFile(file);
+		indexFile.deleteOnExit();
+		for (boolean compact : new boolean[] { false, true }) {
+			StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+					new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+			adapter.setCompactMode(compact);
+			adapter.setAttributeIndex(new AttributeIndex().index("MeContext", "id").index("ManagedElement", "id"));
+			adapter.parseXml(false);
+
+			AttributeIndex index = adapter.getAttributeIndex();
+			assertEquals(ME_CONTEXTS, index.size("MeContext", "id"));
+			assertEquals(ME_CONTEXTS, index.findAll("ManagedElement", "id", "1").size());
+			assertNull(index.find("MeContext", "id", "missing"));
+			assertMeContext(file, index, 321);
+		}
+
+		// a later run reads the element without parsing
+		AttributeIndex loaded = AttributeIndex.load(file);
+		assertNotNull(loaded);
+		assertMeContext(file, loaded, 7);
+		assertMeContext(file, loaded, ME_CONTEXTS - 1);
+
+		// the saved index no longer applies once the file changes
+		assertTrue(file.setLastModified(file.lastModified() - 60_000));
+		assertNull(AttributeIndex.load(file));
+	}
+
+	@Test
+	public void testIndexOfUtf16DocumentIsNotSaved() throws Exception {
+		File file = File.createTempFile("attribute-index-utf16", ".xml");
+		file.deleteOnExit();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_16)) {
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-16\"?>\n<SubNetwork id=\"sn\">\n");
+			for (int i = 0; i < 20; i++) {
+				w.write(" <MeContext id=\"me" + i + "\"/>\n");
+			}
+			w.write("</SubNetwork>\n");
+		}
+		File indexFile = AttributeIndex.indexFile(file);
+		indexFile.deleteOnExit();
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath());
+		adapter.setAttributeIndex(new AttributeIndex().index("MeContext", "id"));
+		adapter.parseXml(false);
+		assertFalse(adapter.isByteOffsets());
+		// character offsets would read the wrong bytes in a later run
+		assertFalse(indexFile.exists());
+		assertNull(AttributeIndex.load(file));
+	}
+
+	private static void assertMeContext(File file, AttributeIndex index, int i) throws Exception {
+		long[] range = index.find("MeContext", "id", "me" + i);
+		assertNotNull(range);
+		String xml = new String(AttributeIndex.read(file, range), StandardCharsets.UTF_8);
+		assertEquals("<MeContext id=\"me" + i + "\"><ManagedElement id=\"1\" userLabel=\"node" + i
+				+ "\"/></MeContext>", xml);
+	}
+}
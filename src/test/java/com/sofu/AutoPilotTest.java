@@ -0,0 +1,147 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.AutoPilot;
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.RecordEvictionPolicy;
+import com.sofu.vtdemulate.VTDGen;
+import com.sofu.vtdemulate.VTDNav;
+import com.sofu.vtdemulate.XPathParseException;
+
+public class AutoPilotTest {
+
+	@Test
+	public void testPathsAndPredicates() throws Exception {
+		File file = writeCmFile();
+		for (boolean compact : new boolean[] { false, true }) {
+			// every expression walks the document again, so nothing may be evicted
+			VTDNav nav = newNav(file, compact, EvictionPolicy.NONE);
+			assertEquals(Arrays.asList("me0_0", "me0_1", "me0_2"),
+					ids(nav, "/bulkCmConfigDataFile/configData/SubNetwork[@id='sn0']/MeContext[position() <= 3]"));
+			assertEquals(Arrays.asList("me1_199"), ids(nav, "//SubNetwork[2]/MeContext[last()]"));
+			assertEquals(Arrays.asList("me0_7", "me1_7"), ids(nav, "//MeContext[@id='me0_7' or @id='me1_7']"));
+			assertEquals(Arrays.asList("el5"), ids(nav, "//SubNetwork[1]//ManagedElement[@userLabel='label5']"));
+			assertEquals(Arrays.asList("me0_199", "me1_199"), ids(nav, "//MeContext[last()]"));
+			assertEquals(11, ids(nav, "//MeContext[contains(@id, '_19') and not(starts-with(@id, 'me1'))]").size());
+
+			assertEquals("400", eval(nav, "count(//MeContext)"));
+			assertEquals("2", eval(nav, "count(/*/configData/SubNetwork)"));
+			assertEquals("text12", eval(nav, "//MeContext[@id='me1_12']/ManagedElement/text()"));
+			assertEquals("label3", eval(nav, "//SubNetwork[@id='sn1']/MeContext[4]/ManagedElement/@userLabel"));
+			assertNull(eval(nav, "//MeContext[@id='missing']"));
+			assertEquals("bulkCmConfigDataFile", nav.getCurrentTagName());
+
+			// relative paths start at the current element
+			assertTrue(nav.toElement("SubNetwork"));
+			assertTrue(nav.toElement(VTDNav.NEXT_SIBLING));
+			assertEquals(Arrays.asList("me1_0"), ids(nav, "MeContext[1]"));
+			assertEquals("200", eval(nav, "count(MeContext/ManagedElement)"));
+			assertEquals("sn1", nav.getAttrVal("id"));
+		}
+	}
+
+	@Test
+	public void testIndexIsElementOrdinal() throws Exception {
+		File file = writeCmFile();
+		List<List<Integer>> indexes = new ArrayList<>();
+		for (boolean compact : new boolean[] { false, true }) {
+			VTDNav nav = newNav(file, compact, EvictionPolicy.NONE);
+			AutoPilot ap = new AutoPilot(nav);
+			ap.selectXPath("//MeContext[@id='me0_3' or @id='me1_0']/ManagedElement");
+			List<Integer> found = new ArrayList<>();
+			int i;
+			while ((i = ap.evalXPath()) != -1) {
+				assertEquals(i, nav.getCurrentIndex());
+				found.add(i);
+			}
+			indexes.add(found);
+		}
+		// root, configData, SubNetwork, then MeContext and ManagedElement pairs
+		assertEquals(Arrays.asList(3 + 3 * 2 + 1, 3 + 200 * 2 + 1 + 1), indexes.get(0));
+		assertEquals(indexes.get(0), indexes.get(1));
+	}
+
+	@Test
+	public void testIterationLeavesNavOnMatch() throws Exception {
+		// a single pass works with the default MeContext eviction
+		VTDNav nav = newNav(writeCmFile(), false, RecordEvictionPolicy.byTag("MeContext"));
+		AutoPilot ap = new AutoPilot(nav);
+		ap.selectXPath("//ManagedElement[@id='el42']");
+		int matches = 0;
+		while (ap.evalXPath() != -1) {
+			assertEquals("ManagedElement", nav.getCurrentTagName());
+			assertEquals("text42", nav.getText());
+			matches++;
+		}
+		assertEquals(2, matches);
+		assertEquals(-1, ap.evalXPath());
+		assertEquals("bulkCmConfigDataFile", nav.getCurrentTagName());
+	}
+
+	@Test
+	public void testChildStepAfterNestedDescendants() throws Exception {
+		File file = CmFile.write("autopilot-nested",
+				"<r><a id=\"outer\"><a id=\"inner\"><b id=\"1\"/></a><b id=\"2\"/></a></r>");
+		for (boolean compact : new boolean[] { false, true }) {
+			VTDNav nav = newNav(file, compact, EvictionPolicy.NONE);
+			// matches come per descendant a: the outer a's b before the inner a's
+			assertEquals(Arrays.asList("2", "1"), ids(nav, "//a/b"));
+			assertEquals(Arrays.asList("1", "2"), ids(nav, "//b"));
+		}
+	}
+
+	@Test
+	public void testUnsupportedExpressions() {
+		for (String xpath : new String[] { "", "/a[", "/a/following-sibling::b", "//a[b]", "count(/a",
+				"/a[@x='1']][", "//a[1][last()]" }) {
+			try {
+				new AutoPilot().selectXPath(xpath);
+				fail("expected XPathParseException for " + xpath);
+			} catch (XPathParseException expected) {
+			}
+		}
+	}
+
+	private static List<String> ids(VTDNav nav, String xpath) {
+		AutoPilot ap = new AutoPilot(nav);
+		ap.selectXPath(xpath);
+		List<String> ids = new ArrayList<>();
+		while (ap.evalXPath() != -1) {
+			ids.add(nav.getAttrVal("id"));
+		}
+		return ids;
+	}
+
+	private static String eval(VTDNav nav, String xpath) {
+		AutoPilot ap = new AutoPilot(nav);
+		ap.selectXPath(xpath);
+		return ap.evalXPathToString();
+	}
+
+	private static VTDNav newNav(File file, boolean compact, EvictionPolicy policy) {
+		VTDGen gen = new VTDGen();
+		// 4KB chunks, 2 chunks per block: evaluation has to resume the parser
+		gen.setBufferConfig(new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+		gen.setCompactMode(compact);
+		gen.setEvictionPolicy(policy);
+		assertTrue(gen.parseFile(file.getPath()));
+		return gen.getNav();
+	}
+
+	private static File writeCmFile() throws Exception {
+		return CmFile.meContexts(200).subNetworks(2).children((s, i) -> "<ManagedElement id=\"el" + i
+				+ "\" userLabel=\"label" + i + "\">text" + i + "</ManagedElement>").write("autopilot");
+	}
+}
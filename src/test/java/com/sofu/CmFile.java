@@ -0,0 +1,138 @@
+package com.sofu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.function.IntFunction;
+
+/**
+ * Synthetic 3GPP bulk CM documents for the tests:
+ * bulkCmConfigDataFile/configData/SubNetwork/MeContext, one record per line.
+ * By default every MeContext holds an empty
+ * {@code <ManagedElement id="1" userLabel="node<i>"/>}.
+ *
+ * <pre>
+ * File file = CmFile.meContexts(500).text(i -&gt; "text" + i).write("metrics");
+ * </pre>
+ */
+final class CmFile {
+	/**
+	 * Markup for the i-th MeContext of SubNetwork s.
+	 */
+	interface Markup {
+		String of(int s, int i);
+	}
+
+	private final int meContexts;
+	private int subNetworks = 1;
+	private boolean namespaces;
+	private IntFunction<String> text;
+	private Markup children;
+	private Markup records;
+
+	private CmFile(int meContexts) {
+		this.meContexts = meContexts;
+	}
+
+	/**
+	 * Starts a document with the given number of MeContexts per SubNetwork.
+	 */
+	static CmFile meContexts(int meContexts) {
+		return new CmFile(meContexts);
+	}
+
+	/**
+	 * SubNetworks sn0, sn1, ... (default 1). With more than one, MeContext ids
+	 * are me&lt;s&gt;_&lt;i&gt; instead of me&lt;i&gt;.
+	 */
+	CmFile subNetworks(int subNetworks) {
+		this.subNetworks = subNetworks;
+		return this;
+	}
+
+	/**
+	 * Text content of each ManagedElement, as escaped XML.
+	 */
+	CmFile text(IntFunction<String> text) {
+		this.text = text;
+		return this;
+	}
+
+	/**
+	 * Content of each MeContext, replacing the ManagedElement.
+	 */
+	CmFile children(Markup children) {
+		this.children = children;
+		return this;
+	}
+
+	/**
+	 * Markup of each whole MeContext line, for records that do not fit the
+	 * common shape; ids are up to the caller.
+	 */
+	CmFile records(Markup records) {
+		this.records = records;
+		return this;
+	}
+
+	/**
+	 * Prefixes SubNetwork and MeContext with xn: and declares the namespaces of
+	 * a vendor export.
+	 */
+	CmFile namespaces() {
+		this.namespaces = true;
+		return this;
+	}
+
+	String xml() {
+		String xn = namespaces ? "xn:" : "";
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<bulkCmConfigDataFile");
+		if (namespaces) {
+			sb.append(" xmlns=\"configData.xsd\" xmlns:xn=\"genericNrm.xsd\""
+					+ " xmlns:es=\"EricssonSpecificAttributes.xsd\"");
+		}
+		sb.append(">\n <configData dnPrefix=\"x\">\n");
+		for (int s = 0; s < subNetworks; s++) {
+			sb.append("  <").append(xn).append("SubNetwork id=\"sn").append(s).append("\">\n");
+			for (int i = 0; i < meContexts; i++) {
+				if (records != null) {
+					sb.append(records.of(s, i)).append('\n');
+					continue;
+				}
+				String id = subNetworks == 1 ? "me" + i : "me" + s + "_" + i;
+				sb.append("   <").append(xn).append("MeContext id=\"").append(id).append("\">");
+				if (children != null) {
+					sb.append(children.of(s, i));
+				} else {
+					sb.append("<ManagedElement id=\"1\" userLabel=\"node").append(i).append('"');
+					if (text == null)
+						sb.append("/>");
+					else
+						sb.append('>').append(text.apply(i)).append("</ManagedElement>");
+				}
+				sb.append("</").append(xn).append("MeContext>\n");
+			}
+			sb.append("  </").append(xn).append("SubNetwork>\n");
+		}
+		return sb.append(" </configData>\n</bulkCmConfigDataFile>\n").toString();
+	}
+
+	byte[] bytes() {
+		return xml().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the document to a temporary file, deleted on exit.
+	 */
+	File write(String prefix) throws IOException {
+		return write(prefix, xml());
+	}
+
+	static File write(String prefix, String xml) throws IOException {
+		File file = File.createTempFile(prefix, ".xml");
+		file.deleteOnExit();
+		Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
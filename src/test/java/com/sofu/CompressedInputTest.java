@@ -0,0 +1,129 @@
+package com.sofu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.MemoryBufferInputStream;
+import com.sofu.vtdemulate.NodeTable;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDGen;
+import com.sofu.vtdemulate.VTDNav;
+
+public class CompressedInputTest {
+	private static final int ME_CONTEXTS = 400;
+
+	@Test
+	public void testCompressedInputParsesLikePlainInput() throws Exception {
+		byte[] xml = CmFile.meContexts(ME_CONTEXTS).bytes();
+		File plain = write(xml, ".xml", null);
+		String expected = dump(plain);
+		// single gzip member, several members, zstd frames
+		File[] compressed = { write(xml, ".xml.gz", "gzip"), write(xml, ".xml.gz", "gzip-members"),
+				write(xml, ".xml.zst", "zstd") };
+		for (File file : compressed) {
+			assertEquals(expected, dump(file));
+
+			MemoryBufferInputStream in = new MemoryBufferInputStream(file.getPath(),
+					new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+			assertTrue(in.isCompressed());
+			// random access in both directions, far outside the resident chunks
+			Random random = new Random(7);
+			for (int i = 0; i < 50; i++) {
+				int from = random.nextInt(xml.length - 100);
+				int to = from + random.nextInt(5000);
+				to = Math.min(to, xml.length - 1);
+				assertArrayEquals(Arrays.copyOfRange(xml, from, to + 1), in.getByte(from, to));
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			in.writeTo(0, Long.MAX_VALUE, out);
+			assertArrayEquals(xml, out.toByteArray());
+			assertEquals(xml.length, in.size());
+			in.close();
+
+			// the size is unknown until the end is decoded
+			in = new MemoryBufferInputStream(file.getPath(),
+					new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+			assertEquals(xml[0], in.read());
+			assertEquals(xml.length - 1, in.skip(Long.MAX_VALUE));
+			assertEquals(-1, in.read());
+			in.close();
+		}
+	}
+
+	@Test
+	public void testParseGZIPFile() throws Exception {
+		File file = write(CmFile.meContexts(ME_CONTEXTS).bytes(), ".xml.gz", "gzip");
+		VTDGen gen = new VTDGen();
+		gen.setBufferConfig(new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+		assertTrue(gen.parseGZIPFile(file.getPath()));
+		VTDNav nav = gen.getNav();
+		assertTrue(nav.toElement("SubNetwork"));
+		assertTrue(nav.toElement(VTDNav.FIRST_CHILD));
+		assertEquals("<MeContext id=\"me0\"><ManagedElement id=\"1\" userLabel=\"node0\"/></MeContext>",
+				nav.getElementFragment());
+	}
+
+	private static String dump(File file) throws Exception {
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+				new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+		adapter.setCompactMode(true);
+		adapter.setEvictionPolicy(EvictionPolicy.NONE);
+		adapter.parseXml(false);
+		NodeTable table = adapter.getNodeTable();
+		StringBuilder sb = new StringBuilder();
+		for (int rec = 0; rec < table.size(); rec++) {
+			sb.append(table.getTagName(rec)).append(' ').append(table.getStartOffset(rec)).append('-')
+					.append(table.getEndOffset(rec)).append(' ').append(table.getAttribute(rec, "id")).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static File write(byte[] xml, String suffix, String format) throws Exception {
+		File file = File.createTempFile("compressed", suffix);
+		file.deleteOnExit();
+		if (format == null) {
+			Files.write(file.toPath(), xml);
+			return file;
+		}
+		try (OutputStream out = new FileOutputStream(file)) {
+			int step = format.equals("gzip") ? xml.length : 5000;
+			for (int from = 0; from < xml.length; from += step) {
+				int len = Math.min(step, xml.length - from);
+				// every part is a gzip member or zstd frame of its own
+				OutputStream part = format.equals("zstd") ? new ZstdOutputStream(new NonClosing(out))
+						: new GZIPOutputStream(new NonClosing(out));
+				part.write(xml, from, len);
+				part.close();
+			}
+		}
+		return file;
+	}
+
+	private static final class NonClosing extends FilterOutputStream {
+		NonClosing(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
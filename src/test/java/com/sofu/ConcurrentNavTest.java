@@ -0,0 +1,132 @@
+package com.sofu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.MemoryBufferInputStream;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDNav;
+
+public class ConcurrentNavTest {
+	private static final int ME_CONTEXTS = 500;
+	private static final int THREADS = 8;
+
+	@Test
+	public void testObjectModeClones() throws Exception {
+		assertClonesAgree(false, false);
+	}
+
+	@Test
+	public void testCompactModeClones() throws Exception {
+		assertClonesAgree(true, false);
+	}
+
+	@Test
+	public void testLazyValueClones() throws Exception {
+		assertClonesAgree(true, true);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testCloneBeforeParseCompletes() throws Exception {
+		StaxXmlAdapter adapter = new StaxXmlAdapter(writeCmFile().getPath(),
+				new MemoryBufferConfig(1024, 2, MemoryBufferConfig.Backend.HEAP));
+		new VTDNav(adapter).cloneNav();
+	}
+
+	@Test
+	public void testConcurrentByteReads() throws Exception {
+		File file = writeCmFile();
+		byte[] content = Files.readAllBytes(file.toPath());
+		for (MemoryBufferConfig.Backend backend : MemoryBufferConfig.Backend.values()) {
+			if (backend != MemoryBufferConfig.Backend.HEAP && backend != MemoryBufferConfig.Backend.MAPPED)
+				continue;
+			try (MemoryBufferInputStream in = new MemoryBufferInputStream(file.getPath(),
+					new MemoryBufferConfig(1024, 2, backend))) {
+				in.setConcurrentReads(true);
+				ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+				try {
+					List<Future<?>> futures = new ArrayList<>();
+					for (int t = 0; t < THREADS; t++) {
+						final int seed = t;
+						futures.add(pool.submit(() -> {
+							for (int i = 0; i < 200; i++) {
+								int start = (seed * 7919 + i * 104729) % content.length;
+								int end = Math.min(content.length - 1, start + (i * 37) % 3000);
+								byte[] expected = Arrays.copyOfRange(content, start, end + 1);
+								assertArrayEquals(backend.name(), expected, in.getByte(start, end));
+								byte[] buffered = new byte[end - start + 1];
+								in.getByteBuffer(start, end).get(buffered);
+								assertArrayEquals(backend.name(), expected, buffered);
+							}
+							return null;
+						}));
+					}
+					for (Future<?> f : futures)
+						f.get();
+				} finally {
+					pool.shutdown();
+				}
+			}
+		}
+	}
+
+	private void assertClonesAgree(boolean compact, boolean lazy) throws Exception {
+		StaxXmlAdapter adapter = new StaxXmlAdapter(writeCmFile().getPath(),
+				new MemoryBufferConfig(1024, 2, MemoryBufferConfig.Backend.HEAP));
+		adapter.setEvictionPolicy(EvictionPolicy.NONE);
+		adapter.setCompactMode(compact);
+		adapter.setLazyValues(lazy);
+		adapter.setTagIndex(true);
+		adapter.parseXml(false);
+		assertTrue(adapter.isParsingComplete());
+		List<String> expected = labels(new VTDNav(adapter));
+		assertEquals(ME_CONTEXTS, expected.size());
+
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<List<String>>> futures = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				VTDNav clone = new VTDNav(adapter).cloneNav();
+				futures.add(pool.submit(() -> labels(clone)));
+			}
+			for (Future<List<String>> f : futures)
+				assertEquals(expected, f.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static List<String> labels(VTDNav nav) {
+		List<String> labels = new ArrayList<>();
+		nav.push();
+		if (nav.toElement("MeContext")) {
+			do {
+				nav.push();
+				String id = nav.getAttrVal("id");
+				if (nav.toElement(VTDNav.FIRST_CHILD))
+					labels.add(id + "/" + nav.getAttrVal("userLabel") + "/" + nav.getText());
+				nav.pop();
+			} while (nav.toElement(VTDNav.NEXT_SIBLING));
+		}
+		nav.pop();
+		return labels;
+	}
+
+	private static File writeCmFile() throws Exception {
+		return CmFile.meContexts(ME_CONTEXTS).text(i -> "text" + i).write("concurrent");
+	}
+}
@@ -0,0 +1,179 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.EvictedRegionException;
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.NodeTable;
+import com.sofu.vtdemulate.RecordEvictionPolicy;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDNav;
+
+public class EvictionPolicyTest {
+	private static final int RECORDS = 2000;
+
+	@Test
+	public void testRecordMatching() {
+		assertTrue(RecordEvictionPolicy.byTag("MeContext", "measInfo").isRecord("measInfo", 5, null));
+		assertFalse(RecordEvictionPolicy.byTag("MeContext").isRecord("SubNetwork", 2, null));
+		assertTrue(RecordEvictionPolicy.byDepth(2).isRecord("x", 2, null));
+		assertFalse(RecordEvictionPolicy.byDepth(2).isRecord("x", 3, null));
+		RecordEvictionPolicy byPath = RecordEvictionPolicy.byPath("/measCollecFile/*/measInfo");
+		assertTrue(byPath.isRecord("measInfo", 2, Arrays.asList("measCollecFile", "measData", "measInfo")));
+		assertFalse(byPath.isRecord("measInfo", 3, Arrays.asList("measCollecFile", "a", "b", "measInfo")));
+		// default retention: one block (chunkCountInBlock chunks) behind the parser
+		assertEquals(2 * 1000, RecordEvictionPolicy.byTag("x").evictionBoundary(5500, 1000, 3));
+		assertEquals(5000, RecordEvictionPolicy.byTag("x").retainBytes(500).evictionBoundary(5500, 1000, 3));
+	}
+
+	@Test
+	public void testPathPolicyReleasesRecordsOfOtherFeeds() throws Exception {
+		File file = writePmFile();
+		StaxXmlAdapter adapter = newAdapter(file, RecordEvictionPolicy.byPath("/measCollecFile/measData/measInfo"));
+		VTDNav nav = new VTDNav(adapter);
+		assertTrue(nav.toElement("measInfo"));
+		nav.push();
+		int count = 0;
+		do {
+			assertEquals("m" + count, nav.getAttrVal("measInfoId"));
+			count++;
+		} while (nav.toElement(VTDNav.NEXT_SIBLING));
+		assertEquals(RECORDS, count);
+		assertTrue(adapter.getEvictedRecordCount() > RECORDS / 2);
+
+		// the first record's subtree is gone, but its bytes are still readable
+		nav.pop();
+		assertTrue(nav.getElementFragment().startsWith("<measInfo measInfoId=\"m0\">"));
+		try {
+			nav.toElement(VTDNav.FIRST_CHILD);
+			fail("expected EvictedRegionException");
+		} catch (EvictedRegionException expected) {
+		}
+		// measData was recognised as a container and is still navigable
+		assertTrue(nav.toElement(VTDNav.PARENT));
+		assertEquals("measData", nav.getCurrentTagName());
+		assertTrue(nav.getCurrTagPosition().isRecordContainer());
+		assertTrue(nav.getCurrTagPosition().getChildren().size() < RECORDS / 2);
+	}
+
+	@Test
+	public void testCompactModeReleasesRecordValues() throws Exception {
+		File file = writePmFile();
+		StaxXmlAdapter adapter = newAdapter(file, RecordEvictionPolicy.byPath("/measCollecFile/measData/measInfo"),
+				true);
+		VTDNav nav = new VTDNav(adapter);
+		assertTrue(nav.toElement("measInfo"));
+		nav.push();
+		int count = 0;
+		do {
+			assertEquals("m" + count, nav.getAttrVal("measInfoId"));
+			count++;
+		} while (nav.toElement(VTDNav.NEXT_SIBLING));
+		assertEquals(RECORDS, count);
+		assertTrue(adapter.getEvictedRecordCount() > RECORDS / 2);
+
+		// the first record keeps its own values, its descendants' are released
+		nav.pop();
+		NodeTable table = adapter.getNodeTable();
+		int first = nav.getCurrentIndex();
+		assertTrue(table.isEvicted(first));
+		assertEquals("measType", table.getTagName(first + 1));
+		try {
+			table.getTexts(first + 1);
+			fail("expected EvictedRegionException");
+		} catch (EvictedRegionException expected) {
+		}
+		try {
+			nav.toElement(VTDNav.FIRST_CHILD);
+			fail("expected EvictedRegionException");
+		} catch (EvictedRegionException expected) {
+		}
+		// the last records are still complete
+		int last = table.size() - 4;
+		assertEquals("measInfo", table.getTagName(last));
+		assertFalse(table.isEvicted(last));
+		assertEquals("cell" + (RECORDS - 1), table.getAttribute(last + 2, "measObjLdn"));
+	}
+
+	@Test
+	public void testLazyTextOfEvictedRecord() throws Exception {
+		File file = writePmFile();
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+				new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+		adapter.setEvictionPolicy(RecordEvictionPolicy.byPath("/measCollecFile/measData/measInfo"));
+		adapter.setLazyValues(true);
+		assertTrue(adapter.startParsing());
+		VTDNav nav = new VTDNav(adapter);
+		assertTrue(nav.toElement("measInfo"));
+		nav.push();
+		while (nav.toElement(VTDNav.NEXT_SIBLING)) {
+		}
+		assertTrue(adapter.getEvictedRecordCount() > RECORDS / 2);
+
+		// the start tag is still decoded, the text would include the released children
+		nav.pop();
+		assertEquals("m0", nav.getAttrVal("measInfoId"));
+		try {
+			nav.getText();
+			fail("expected EvictedRegionException");
+		} catch (EvictedRegionException expected) {
+		}
+	}
+
+	@Test
+	public void testNoEvictionKeepsWholeTree() throws Exception {
+		File file = writePmFile();
+		StaxXmlAdapter adapter = newAdapter(file, EvictionPolicy.NONE);
+		VTDNav nav = new VTDNav(adapter);
+		assertTrue(nav.toElement("measInfo"));
+		int count = 1;
+		while (nav.toElement(VTDNav.NEXT_SIBLING)) {
+			count++;
+		}
+		assertEquals(RECORDS, count);
+		assertEquals(0, adapter.getEvictedRecordCount());
+		assertTrue(nav.toElement(VTDNav.PARENT));
+		assertEquals(RECORDS, nav.getCurrTagPosition().getChildren().size());
+	}
+
+	private static StaxXmlAdapter newAdapter(File file, EvictionPolicy policy) {
+		return newAdapter(file, policy, false);
+	}
+
+	private static StaxXmlAdapter newAdapter(File file, EvictionPolicy policy, boolean compact) {
+		// 4KB chunks, 2 chunks per block: the parser pauses and evicts often
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+				new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+		adapter.setEvictionPolicy(policy);
+		adapter.setCompactMode(compact);
+		assertTrue(adapter.startParsing());
+		return adapter;
+	}
+
+	private static File writePmFile() throws Exception {
+		File file = File.createTempFile("eviction", ".xml");
+		file.deleteOnExit();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			w.write("<measCollecFile>\n <fileHeader vendor=\"x\"/>\n <measData>\n");
+			for (int i = 0; i < RECORDS; i++) {
+				w.write("  <measInfo measInfoId=\"m" + i + "\"><measType p=\"1\">pmCount</measType>"
+						+ "<measValue measObjLdn=\"cell" + i + "\"><r p=\"1\">" + i + "</r></measValue></measInfo>\n");
+			}
+			w.write(" </measData>\n</measCollecFile>\n");
+		}
+		return file;
+	}
+}
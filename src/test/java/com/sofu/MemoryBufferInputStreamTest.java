@@ -1,11 +1,19 @@
 package com.sofu;
 
+import com.sofu.vtdemulate.MemoryBufferConfig;
 import com.sofu.vtdemulate.MemoryBufferInputStream;
 import org.junit.Test;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -96,4 +104,232 @@ public class MemoryBufferInputStreamTest {
             System.out.println("simple.xml and simple_modify.xml are identical.");
         }
     }
-} 
\ No newline at end of file
+
+    @Test
+    public void testMappedBackendMatchesHeapBackend() throws IOException {
+        byte[] content = new byte[10_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 100 == 0 ? '<' : 'a' + i % 26);
+        }
+        File file = File.createTempFile("mbis-mapped", ".xml");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        // small chunks so ranges cross chunk and window boundaries
+        MemoryBufferConfig heap = new MemoryBufferConfig(1000, 3, MemoryBufferConfig.Backend.HEAP);
+        MemoryBufferConfig mapped = new MemoryBufferConfig(1000, 3, MemoryBufferConfig.Backend.MAPPED);
+        try (MemoryBufferInputStream h = new MemoryBufferInputStream(file.getPath(), heap);
+             MemoryBufferInputStream m = new MemoryBufferInputStream(file.getPath(), mapped)) {
+            long[][] ranges = {{0, 99}, {950, 2050}, {7999, 8000}, {9500, 20000}};
+            for (long[] r : ranges) {
+                byte[] expected = Arrays.copyOfRange(content, (int) r[0], (int) Math.min(r[1] + 1, content.length));
+                assertArrayEquals(expected, h.getByte(r[0], r[1]));
+                assertArrayEquals(expected, m.getByte(r[0], r[1]));
+            }
+            for (int i = 0; i < content.length; i++) {
+                assertEquals(content[i] & 0xFF, m.read());
+            }
+            assertEquals(-1, m.read());
+            // the last window (chunks 7~9) stays resident after sequential reading
+            assertEquals(9000, m.findPrevGt(9050));
+            assertEquals(7900, m.findPrevGt(7999));
+        }
+    }
+
+    @Test
+    public void testBulkReadAndSkipAcrossChunks() throws IOException {
+        byte[] content = new byte[5_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File file = File.createTempFile("mbis-bulk", ".xml");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        MemoryBufferConfig config = new MemoryBufferConfig(700, 2, MemoryBufferConfig.Backend.HEAP);
+        try (MemoryBufferInputStream mbis = new MemoryBufferInputStream(file.getPath(), config)) {
+            byte[] head = new byte[1500];
+            assertEquals(1500, mbis.read(head, 0, head.length));
+            assertArrayEquals(Arrays.copyOf(content, 1500), head);
+            assertEquals(600, mbis.available()); // rest of chunk 2 (1400~2099)
+
+            assertEquals(50, mbis.skip(50));
+            assertEquals(1550, mbis.getPosition());
+            assertEquals(2000, mbis.skip(2000)); // jumps over chunks without reading them
+            assertEquals(3550, mbis.getPosition());
+            assertEquals(content[3550] & 0xFF, mbis.read());
+
+            byte[] tail = new byte[4096];
+            int n = mbis.read(tail, 10, 4000);
+            assertEquals(5000 - 3551, n);
+            assertArrayEquals(Arrays.copyOfRange(content, 3551, 5000), Arrays.copyOfRange(tail, 10, 10 + n));
+            assertEquals(-1, mbis.read(tail, 0, 10));
+            assertEquals(0, mbis.available());
+        }
+    }
+
+    @Test
+    public void testPinnedChunkSurvivesRandomAccess() throws IOException {
+        byte[] content = new byte[4_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        File file = writeTempFile("mbis-pin", content);
+        MemoryBufferConfig config = new MemoryBufferConfig(500, 2, MemoryBufferConfig.Backend.HEAP);
+        config.setCacheBudgetBytes(1000); // two chunk slots
+        try (MemoryBufferInputStream mbis = new MemoryBufferInputStream(file.getPath(), config)) {
+            mbis.getByte(0, 10);
+            assertTrue(mbis.isChunkResident(0));
+            mbis.pinChunk(0);
+            assertArrayEquals(Arrays.copyOfRange(content, 1000, 1100), mbis.getByte(1000, 1099));
+            assertArrayEquals(Arrays.copyOfRange(content, 2000, 2100), mbis.getByte(2000, 2099));
+            // chunk 4 had to evict chunk 2, the pinned chunk 0 stays
+            assertTrue(mbis.isChunkResident(0));
+            assertFalse(mbis.isChunkResident(2));
+            assertTrue(mbis.isChunkResident(4));
+            mbis.unpinChunk(0);
+            assertArrayEquals(Arrays.copyOfRange(content, 1000, 3100), mbis.getByte(1000, 3099));
+            assertFalse(mbis.isChunkResident(0));
+        }
+    }
+
+    @Test
+    public void testStreamAndRandomAccessShareCache() throws IOException {
+        byte[] content = new byte[6_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        File file = writeTempFile("mbis-cache", content);
+        MemoryBufferConfig config = new MemoryBufferConfig(1000, 2, MemoryBufferConfig.Backend.HEAP);
+        config.setCacheBudgetBytes(4000); // four chunk slots
+        try (MemoryBufferInputStream mbis = new MemoryBufferInputStream(file.getPath(), config)) {
+            assertEquals(4000, mbis.getCacheBudgetBytes());
+            mbis.getByte(100, 199); // miss: chunk 0 is loaded
+            byte[] buf = new byte[1000];
+            for (int i = 0; i < 6; i++) {
+                assertEquals(1000, mbis.read(buf, 0, buf.length));
+                // interleaved fragment extraction keeps hitting chunk 0
+                assertArrayEquals(Arrays.copyOfRange(content, 100, 200), mbis.getByte(100, 199));
+            }
+            assertEquals(6, mbis.getCacheMissCount()); // chunk 0, then the stream loading chunks 1 to 5
+            assertEquals(7, mbis.getCacheHitCount()); // six extractions plus the stream reusing chunk 0
+            assertTrue(mbis.isChunkResident(0));
+            assertEquals(2, mbis.getCacheEvictionCount()); // chunks 1 and 2 aged out for 4 and 5
+            assertTrue(mbis.getCachedBytes() <= 4000);
+        }
+    }
+
+    @Test
+    public void testPrefetchedStreamMatchesFile() throws IOException {
+        byte[] content = new byte[20_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 241);
+        }
+        File file = writeTempFile("mbis-prefetch", content);
+        for (MemoryBufferConfig.Backend backend : MemoryBufferConfig.Backend.values()) {
+            MemoryBufferConfig config = new MemoryBufferConfig(1000, 4, backend);
+            config.setPrefetchDepth(3);
+            try (MemoryBufferInputStream mbis = new MemoryBufferInputStream(file.getPath(), config)) {
+                assertTrue(mbis.isPrefetching());
+                byte[] buf = new byte[2500];
+                assertEquals(2500, mbis.read(buf, 0, buf.length));
+                assertArrayEquals(Arrays.copyOf(content, 2500), buf);
+                assertEquals(9000, mbis.skip(9000)); // read-ahead restarts at chunk 11
+                byte[] rest = new byte[content.length];
+                int total = 0;
+                int n;
+                while ((n = mbis.read(rest, total, rest.length - total)) > 0) {
+                    total += n;
+                }
+                assertEquals(content.length - 11500, total);
+                assertArrayEquals(Arrays.copyOfRange(content, 11500, content.length), Arrays.copyOf(rest, total));
+                assertTrue(mbis.getStreamStallNanos() >= 0);
+                System.out.println(backend + ": stream stalls=" + mbis.getStreamStallCount() + ", stall time="
+                        + mbis.getStreamStallNanos() / 1000 + "us");
+            }
+        }
+    }
+
+    @Test
+    public void testPrefetchRunsOnExecutor() throws Exception {
+        byte[] content = new byte[20_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 239);
+        }
+        File file = writeTempFile("mbis-prefetch-executor", content);
+        MemoryBufferConfig config = new MemoryBufferConfig(1000, 4, MemoryBufferConfig.Backend.HEAP);
+        config.setPrefetchDepth(3);
+        ExecutorService pool = Executors.newCachedThreadPool();
+        AtomicInteger tasks = new AtomicInteger();
+        try (MemoryBufferInputStream mbis = new MemoryBufferInputStream(file.getPath(), config)) {
+            mbis.setPrefetchExecutor(task -> {
+                tasks.incrementAndGet();
+                pool.execute(task);
+            });
+            byte[] buf = new byte[content.length];
+            assertEquals(2500, mbis.read(buf, 0, 2500));
+            assertEquals(9000, mbis.skip(9000));
+            int total = 2500;
+            int n;
+            while ((n = mbis.read(buf, total, buf.length - total)) > 0) {
+                total += n;
+            }
+            assertEquals(content.length - 9000, total);
+            assertArrayEquals(Arrays.copyOfRange(content, 11500, content.length),
+                    Arrays.copyOfRange(buf, 2500, total));
+            assertTrue(tasks.get() >= 1);
+            // the read-ahead task ends at the end of the document
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(2, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testByteBufferViewsAndWriteTo() throws IOException {
+        byte[] content = new byte[5000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 199);
+        }
+        File file = writeTempFile("mbis-view", content);
+        for (MemoryBufferConfig.Backend backend : MemoryBufferConfig.Backend.values()) {
+            try (MemoryBufferInputStream mbis = new MemoryBufferInputStream(file.getPath(),
+                    new MemoryBufferConfig(1000, 2, backend))) {
+                ByteBuffer inside = mbis.getByteBuffer(1100, 1199); // within chunk 1
+                assertTrue(inside.isReadOnly());
+                assertEquals(100, inside.remaining());
+                assertEquals(ByteBuffer.wrap(content, 1100, 100), inside);
+                ByteBuffer spanning = mbis.getByteBuffer(900, 3099);
+                assertEquals(ByteBuffer.wrap(content, 900, 2200), spanning);
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                mbis.writeTo(10, 4999, out);
+                assertArrayEquals(Arrays.copyOfRange(content, 10, 5000), out.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testSkipPastTheEnd() throws IOException {
+        File file = writeTempFile("mbis-skip", "<a>0123456789</a>\n".getBytes("UTF-8"));
+        MemoryBufferConfig config = new MemoryBufferConfig(4, 2, MemoryBufferConfig.Backend.HEAP);
+        try (MemoryBufferInputStream mbis = new MemoryBufferInputStream(file.getPath(), config)) {
+            assertEquals('<', mbis.read());
+            assertEquals(17, mbis.skip(Long.MAX_VALUE));
+            assertEquals(-1, mbis.read());
+            assertEquals(0, mbis.skip(1));
+        }
+    }
+
+    private static File writeTempFile(String prefix, byte[] content) throws IOException {
+        File file = File.createTempFile(prefix, ".xml");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,159 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.MutableXmlElement;
+import com.sofu.vtdemulate.NodeTable;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.XmlElement;
+
+public class ParallelParseTest {
+	private static final int ME_CONTEXTS = 600;
+
+	@Test
+	public void testParallelParseMatchesSequential() throws Exception {
+		File file = writeCmFile(false);
+		for (boolean compact : new boolean[] { true, false }) {
+			List<String> expected = dump(parse(file, compact, 1));
+			assertTrue(expected.size() > ME_CONTEXTS * 3);
+			assertEquals(expected, dump(parse(file, compact, 4)));
+		}
+	}
+
+	@Test
+	public void testParallelOffsetsAreByteOffsets() throws Exception {
+		// every MeContext has multibyte text, so character offsets would drift
+		// further from the byte offsets with every region
+		File file = writeCmFile(false);
+		byte[] content = Files.readAllBytes(file.toPath());
+		StaxXmlAdapter adapter = parse(file, true, 4);
+		assertTrue(adapter.isByteOffsets());
+		NodeTable table = adapter.getNodeTable();
+		for (int rec = 0; rec < table.size(); rec++) {
+			String name = table.getTagName(rec);
+			int start = (int) table.getStartOffset(rec);
+			int end = (int) table.getEndOffset(rec);
+			String tag = new String(content, start, Math.min(content.length - start, 64), StandardCharsets.UTF_8);
+			assertTrue(name + " at " + start, tag.matches("(?s)<(\\w+:)?" + name + "[ />].*"));
+			assertEquals(name + " ending at " + end, '>', content[end - 1]);
+		}
+	}
+
+	@Test
+	public void testMisplacedSplitFallsBackToSequential() throws Exception {
+		// a commented-out MeContext is found as a split point, and the region
+		// starting there cannot be parsed
+		File file = writeCmFile(true);
+		List<String> expected = dump(parse(file, true, 1));
+		assertEquals(expected, dump(parse(file, true, 3)));
+	}
+
+	@Test
+	public void testElementsHandledOnceInEndTagOrder() throws Exception {
+		for (boolean commentedSplit : new boolean[] { false, true }) {
+			File file = writeCmFile(commentedSplit);
+			List<String> expected = new ArrayList<>();
+			parse(new RecordingAdapter(file, expected), false, 1);
+			List<String> handled = new ArrayList<>();
+			parse(new RecordingAdapter(file, handled), false, 4);
+			assertTrue(expected.size() > ME_CONTEXTS * 3);
+			assertEquals(expected, handled);
+		}
+	}
+
+	/**
+	 * Records the elements passed to handleXmlElement.
+	 */
+	private static class RecordingAdapter extends StaxXmlAdapter {
+		private final List<String> handled;
+
+		RecordingAdapter(File file, List<String> handled) throws Exception {
+			super(file.getPath(), new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+			this.handled = handled;
+		}
+
+		@Override
+		protected void handleXmlElement(MutableXmlElement tag) {
+			handled.add(tag.getTagName() + " " + tag.getStartOffset() + "-" + tag.getEndOffset());
+		}
+	}
+
+	private static StaxXmlAdapter parse(File file, boolean compact, int parallelism) throws Exception {
+		return parse(new StaxXmlAdapter(file.getPath(),
+				new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP)), compact, parallelism);
+	}
+
+	private static StaxXmlAdapter parse(StaxXmlAdapter adapter, boolean compact, int parallelism)
+			throws Exception {
+		adapter.setCompactMode(compact);
+		adapter.setEvictionPolicy(EvictionPolicy.NONE);
+		adapter.setParallelism(parallelism);
+		adapter.setParallelRegionSize(2048);
+		adapter.parseXml(false);
+		assertTrue(adapter.isParsingComplete());
+		return adapter;
+	}
+
+	private static List<String> dump(StaxXmlAdapter adapter) {
+		List<String> lines = new ArrayList<>();
+		NodeTable table = adapter.getNodeTable();
+		if (table != null) {
+			for (int rec = 0; rec < table.size(); rec++) {
+				StringBuilder line = new StringBuilder();
+				line.append(table.getDepth(rec)).append(' ').append(table.getTagName(rec)).append(' ')
+						.append(table.getStartOffset(rec)).append('-').append(table.getEndOffset(rec));
+				for (int i = 0; i < table.getAttributeCount(rec); i++) {
+					line.append(' ').append(table.getAttributeName(rec, i)).append('=')
+							.append(table.getAttributeValue(rec, i));
+				}
+				lines.add(line.append(' ').append(table.getTexts(rec)).toString());
+			}
+		} else {
+			for (XmlElement root : adapter.getRootElements()) {
+				dump(root, 0, lines);
+			}
+		}
+		return lines;
+	}
+
+	private static void dump(XmlElement e, int depth, List<String> lines) {
+		StringBuilder line = new StringBuilder();
+		line.append(depth).append(' ').append(e.getTagName()).append(' ').append(e.getStartOffset()).append('-')
+				.append(e.getEndOffset()).append(' ').append(new java.util.TreeMap<>(e.getAttributes())).append(' ')
+				.append(e.getTextNodes());
+		lines.add(line.toString());
+		for (XmlElement child : e.getChildren()) {
+			dump(child, depth + 1, lines);
+		}
+	}
+
+	private static File writeCmFile(boolean commentedSplit) throws Exception {
+		String xml = CmFile.meContexts(150).subNetworks(ME_CONTEXTS / 150).namespaces().records((s, n) -> {
+			int i = s * 150 + n;
+			String record = "";
+			if (commentedSplit && i % 20 == 0) {
+				record = "   <!-- <xn:MeContext id=\"old\"> -->\n";
+			}
+			if (i % 7 == 0) {
+				return record + "   <xn:MeContext id=\"me" + i + "\" userLabel=\"\u00e9t\u00e9\"/>";
+			}
+			return record + "   <xn:MeContext id=\"me" + i + "\">\n    <xn:ManagedElement id=\"1\">"
+					+ "<xn:attributes><xn:userLabel>n\u0153ud &amp; " + i + " \u65e5\u672c\ud83d\ude00</xn:userLabel>"
+					+ "</xn:attributes>"
+					+ "<es:vsDataType><![CDATA[<raw>" + i + "]]></es:vsDataType></xn:ManagedElement>\n"
+					+ "   </xn:MeContext>";
+		}).xml();
+		return CmFile.write("parallel", xml + "<!-- end -->\n");
+	}
+}
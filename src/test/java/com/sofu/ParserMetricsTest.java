@@ -0,0 +1,74 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.JmxParserMetrics;
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.RecordEvictionPolicy;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDNav;
+
+public class ParserMetricsTest {
+	private static final int ME_CONTEXTS = 2000;
+
+	@Test
+	public void testCountersOfPausedParse() throws Exception {
+		File file = CmFile.meContexts(ME_CONTEXTS).write("metrics");
+		JmxParserMetrics metrics = new JmxParserMetrics();
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+				new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+		adapter.setEvictionPolicy(RecordEvictionPolicy.byTag("MeContext"));
+		adapter.setMetrics(metrics);
+		assertTrue(adapter.startParsing());
+		VTDNav nav = new VTDNav(adapter);
+		assertTrue(nav.toElement("MeContext"));
+		int count = 0;
+		do {
+			count++;
+		} while (nav.toElement(VTDNav.NEXT_SIBLING));
+		assertEquals(ME_CONTEXTS, count);
+		assertTrue(!adapter.isRunning());
+
+		// root, configData, SubNetwork and two elements per MeContext
+		long elements = 3 + 2L * ME_CONTEXTS;
+		assertEquals(file.length(), metrics.getBytesRead());
+		assertEquals(elements, metrics.getElementsCreated());
+		assertEquals(adapter.getEvictedRecordCount(), metrics.getRecordsEvicted());
+		assertEquals(2 * metrics.getRecordsEvicted(), metrics.getElementsEvicted());
+		assertEquals(elements - metrics.getElementsEvicted(), metrics.getLiveNodes());
+		assertTrue(metrics.getRecordsEvicted() > 0);
+		assertTrue(metrics.getChunkLoads() >= (file.length() + 4095) / 4096);
+		assertTrue(metrics.getPauseCount() > 0);
+		assertTrue(metrics.getResumeWaitCount() > 0);
+		double ratio = metrics.getCacheHitRatio();
+		assertTrue(ratio >= 0 && ratio <= 1);
+	}
+
+	@Test
+	public void testJmxRegistration() throws Exception {
+		JmxParserMetrics metrics = new JmxParserMetrics();
+		ObjectName name = metrics.register("test");
+		try {
+			metrics.bytesRead(10);
+			metrics.chunkCacheAccess(true);
+			metrics.chunkCacheAccess(false);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(10L, server.getAttribute(name, "BytesRead"));
+			assertEquals(0.5, (Double) server.getAttribute(name, "CacheHitRatio"), 0);
+			server.invoke(name, "reset", null, null);
+			assertEquals(0L, metrics.getBytesRead());
+		} finally {
+			metrics.unregister();
+		}
+		assertTrue(!ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+}
@@ -0,0 +1,99 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.SidecarIndex;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDGen;
+import com.sofu.vtdemulate.VTDNav;
+
+public class SidecarIndexTest {
+	private static final int ME_CONTEXTS = 400;
+
+	@Test
+	public void testReopenFromSidecarMatchesParse() throws Exception {
+		File file = writeCmFile();
+		File indexFile = SidecarIndex.indexFile(file);
+		indexFile.deleteOnExit();
+
+		StaxXmlAdapter parsed = newAdapter(file);
+		parsed.setCompactMode(true);
+		parsed.setSaveSidecarIndex(true);
+		parsed.parseXml(false);
+		assertTrue(parsed.isParsingComplete());
+		assertTrue(SidecarIndex.isValid(file, indexFile));
+		List<String> expected = walk(parsed);
+		assertEquals(ME_CONTEXTS * 3, expected.size());
+
+		StaxXmlAdapter loaded = newAdapter(file);
+		assertTrue(loaded.loadSidecarIndex());
+		assertTrue(loaded.isCompactMode());
+		assertEquals(expected, walk(loaded));
+
+		// a changed file is parsed again
+		assertTrue(file.setLastModified(file.lastModified() - 60_000));
+		assertFalse(SidecarIndex.isValid(file, indexFile));
+		assertFalse(newAdapter(file).loadSidecarIndex());
+	}
+
+	@Test
+	public void testVtdGenWriteAndLoadIndex() throws Exception {
+		File file = writeCmFile();
+		File indexFile = SidecarIndex.indexFile(file);
+		indexFile.deleteOnExit();
+
+		VTDGen gen = new VTDGen();
+		gen.setCompactMode(true);
+		gen.setLazyValues(true);
+		assertTrue(gen.parseFile(file.getPath()));
+		gen.writeIndex(indexFile.getPath());
+		List<String> expected = walk(gen.getNav());
+
+		VTDGen reopened = new VTDGen();
+		reopened.setTagIndex(true);
+		assertTrue(reopened.loadIndex(file.getPath()));
+		assertEquals(expected, walk(reopened.getNav()));
+
+		// setSidecarIndex picks the sidecar up on the next parseFile
+		VTDGen sidecar = new VTDGen();
+		sidecar.setSidecarIndex(true);
+		assertTrue(sidecar.parseFile(file.getPath()));
+		assertEquals(expected, walk(sidecar.getNav()));
+	}
+
+	private static StaxXmlAdapter newAdapter(File file) {
+		return new StaxXmlAdapter(file.getPath(), new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+	}
+
+	private static List<String> walk(StaxXmlAdapter adapter) {
+		return walk(new VTDNav(adapter));
+	}
+
+	private static List<String> walk(VTDNav nav) {
+		List<String> result = new ArrayList<>();
+		assertTrue(nav.toElement("SubNetwork"));
+		assertTrue(nav.toElement(VTDNav.FIRST_CHILD));
+		do {
+			result.add(nav.getAttrVal("id"));
+			nav.push();
+			assertTrue(nav.toElement(VTDNav.FIRST_CHILD));
+			result.add(nav.getAttrVal("userLabel") + "/" + nav.getText());
+			nav.pop();
+			result.add(nav.getElementFragment());
+		} while (nav.toElement(VTDNav.NEXT_SIBLING));
+		return result;
+	}
+
+	private static File writeCmFile() throws Exception {
+		return CmFile.meContexts(ME_CONTEXTS).text(i -> "sw &amp; hw " + i).write("sidecar-index");
+	}
+}
@@ -1,6 +1,25 @@
 package com.sofu;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.ParserThreads;
 import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDNav;
 import org.junit.Test;
 
 public class StaxXmlAdapterThreadTest {
@@ -30,4 +49,103 @@ public class StaxXmlAdapterThreadTest {
             Thread.sleep(200);
         }
     }
-} 
\ No newline at end of file
+
+    @Test
+    public void testBlockTransitionsAreSignalled() throws Exception {
+        File file = File.createTempFile("adapter-blocks", ".xml");
+        file.deleteOnExit();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write("<root>\n");
+            for (int i = 0; i < 5000; i++) {
+                w.write("  <MeContext id=\"me" + i + "\"><ManagedElement id=\"me" + i + "\"/></MeContext>\n");
+            }
+            w.write("</root>\n");
+        }
+        // 4KB chunks, 2 chunks per block: the parser pauses at every chunk
+        MemoryBufferConfig config = new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP);
+        StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(), config);
+        assertTrue(adapter.startParsing());
+        assertNotNull(adapter.awaitFirstRootElement(2000));
+
+        int transitions = 0;
+        long start = System.nanoTime();
+        while (adapter.isRunning()) {
+            adapter.resumeParsingAndWait(2000);
+            transitions++;
+        }
+        long avgMillis = (System.nanoTime() - start) / 1_000_000 / transitions;
+        System.out.println(transitions + " block transitions, avg " + avgMillis + "ms");
+        assertTrue(transitions > 20);
+        // sleep polling needed at least 20ms per transition
+        assertTrue("avg transition " + avgMillis + "ms", avgMillis < 20);
+        assertFalse(adapter.isPaused());
+    }
+
+    @Test
+    public void testStopParsingEndsThePausedParser() throws Exception {
+        File file = File.createTempFile("adapter-stop", ".xml");
+        file.deleteOnExit();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write("<root>\n");
+            for (int i = 0; i < 5000; i++) {
+                w.write("  <MeContext id=\"me" + i + "\"><ManagedElement id=\"me" + i + "\"/></MeContext>\n");
+            }
+            w.write("</root>\n");
+        }
+        StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+                new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+        assertTrue(adapter.startParsing());
+        assertTrue(adapter.isPaused());
+
+        assertTrue(adapter.stopParsing());
+        assertFalse(adapter.isRunning());
+        assertFalse(adapter.isPaused());
+        assertFalse(adapter.isParsingComplete());
+        // a stopped parser does not come back to life
+        assertTrue(adapter.tryResumeParsingAndWait(100));
+        assertFalse(adapter.isRunning());
+    }
+
+    @Test
+    public void testDocumentsParseOnCallerExecutor() throws Exception {
+        File file = File.createTempFile("adapter-executor", ".xml");
+        file.deleteOnExit();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write("<root>\n");
+            for (int i = 0; i < 300; i++) {
+                w.write("  <MeContext id=\"me" + i + "\"><ManagedElement id=\"me" + i + "\"/></MeContext>\n");
+            }
+            w.write("</root>\n");
+        }
+        ExecutorService pool = ParserThreads.newParserExecutor();
+        AtomicInteger tasks = new AtomicInteger();
+        Executor executor = task -> {
+            tasks.incrementAndGet();
+            pool.execute(task);
+        };
+        try {
+            // every document stays paused at its first block until navigated
+            List<StaxXmlAdapter> adapters = new ArrayList<>();
+            for (int d = 0; d < 100; d++) {
+                StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+                        new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+                adapter.setExecutor(executor);
+                assertTrue(adapter.startParsing());
+                adapters.add(adapter);
+            }
+            assertEquals(100, tasks.get());
+            for (StaxXmlAdapter adapter : adapters) {
+                VTDNav nav = new VTDNav(adapter);
+                assertTrue(nav.toElement("MeContext"));
+                int count = 1;
+                while (nav.toElement(VTDNav.NEXT_SIBLING)) {
+                    count++;
+                }
+                assertEquals(300, count);
+                assertFalse(adapter.isRunning());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.RecordEvictionPolicy;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.XPathParseException;
+
+public class StreamingXPathTest {
+	private static final int RECORDS = 2000;
+
+	@Test
+	public void testMatchesAreDeliveredInOnePass() throws Exception {
+		File file = writePmFile();
+		for (boolean compact : new boolean[] { false, true }) {
+			StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+					new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+			adapter.setCompactMode(compact);
+			// release every measInfo as soon as the parser has moved on
+			adapter.setEvictionPolicy(RecordEvictionPolicy.byTag("measInfo").retainBytes(0));
+			List<String> values = new ArrayList<>();
+			List<String> high = new ArrayList<>();
+			int[] records = new int[1];
+			adapter.addStreamingXPath("//measValue[@measObjLdn='cell7']/r/text()", (xpath, e, v) -> values.add(v));
+			adapter.addStreamingXPath("/measCollecFile/measData/measInfo[position() > 1998]/@measInfoId",
+					(xpath, e, v) -> values.add(v));
+			adapter.addStreamingXPath("//r[text() > 1995]", (xpath, e, v) -> high.add(e.getTagName() + v));
+			adapter.addStreamingXPath("/*/measData/measInfo", (xpath, e, v) -> {
+				assertEquals("measInfo", e.getTagName());
+				// compact mode delivers a snapshot of the record alone
+				assertEquals(compact ? 0 : 2, e.getChildren().size());
+				records[0]++;
+			});
+			adapter.parseXml(false);
+
+			assertEquals(Arrays.asList("7", "m1998", "m1999"), values);
+			assertEquals(Arrays.asList("r1996", "r1997", "r1998", "r1999"), high);
+			assertEquals(RECORDS, records[0]);
+			if (!compact) {
+				assertTrue(adapter.getEvictedRecordCount() > RECORDS * 9 / 10);
+			}
+		}
+	}
+
+	@Test
+	public void testNonStreamableExpressionsAreRejected() throws Exception {
+		StaxXmlAdapter adapter = new StaxXmlAdapter(writePmFile().getPath());
+		for (String xpath : new String[] { "count(//a)", "a/b", "//a[last()]", "/a[text()='x']/b", "/" }) {
+			try {
+				adapter.addStreamingXPath(xpath, (x, e, v) -> {
+				});
+				fail("expected XPathParseException for " + xpath);
+			} catch (XPathParseException expected) {
+			}
+		}
+	}
+
+	private static File writePmFile() throws Exception {
+		File file = File.createTempFile("streaming", ".xml");
+		file.deleteOnExit();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			w.write("<measCollecFile>\n <fileHeader vendor=\"x\"/>\n <measData>\n");
+			for (int i = 0; i < RECORDS; i++) {
+				w.write("  <measInfo measInfoId=\"m" + i + "\"><measType p=\"1\">pmCount</measType>"
+						+ "<measValue measObjLdn=\"cell" + i + "\"><r p=\"1\">" + i + "</r></measValue></measInfo>\n");
+			}
+			w.write(" </measData>\n</measCollecFile>\n");
+		}
+		return file;
+	}
+}
@@ -0,0 +1,64 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.SymbolTable;
+import com.sofu.vtdemulate.VTDGen;
+import com.sofu.vtdemulate.VTDNav;
+import com.sofu.vtdemulate.XmlElement;
+
+public class SymbolTableTest {
+
+	@Test
+	public void testInternAssignsStableIds() {
+		SymbolTable symbols = new SymbolTable();
+		assertEquals(-1, symbols.lookup("MeContext"));
+		for (int i = 0; i < 200; i++) {
+			assertEquals(i, symbols.intern("name" + i));
+		}
+		assertEquals(7, symbols.intern(new String("name7")));
+		assertSame(symbols.name(7), symbols.canonical(new String("name7")));
+		assertEquals(200, symbols.size());
+	}
+
+	@Test
+	public void testParsedElementsShareCanonicalNames() throws Exception {
+		StringBuilder xml = new StringBuilder("<root>");
+		for (int i = 0; i < 100; i++) {
+			xml.append("<MeContext id=\"me").append(i).append("\"><ManagedElement id=\"el").append(i)
+					.append("\"/></MeContext>");
+		}
+		xml.append("</root>");
+		File file = File.createTempFile("symbols", ".xml");
+		file.deleteOnExit();
+		Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+
+		VTDGen gen = new VTDGen();
+		assertTrue(gen.parseFile(file.getPath()));
+		gen.getChildren();
+		VTDNav nav = gen.getNav();
+		assertTrue(nav.toElement("MeContext"));
+		XmlElement first = nav.getCurrTagPosition();
+		assertTrue(nav.toElement(VTDNav.NEXT_SIBLING));
+		XmlElement second = nav.getCurrTagPosition();
+		assertSame(first.getTagName(), second.getTagName());
+		assertEquals(first.getNameId(), second.getNameId());
+		String idKey = first.getAttributes().keySet().iterator().next();
+		assertSame(idKey, second.getAttributes().keySet().iterator().next());
+
+		assertTrue(nav.toElement("ManagedElement"));
+		assertEquals("el1", nav.getAttrVal("id"));
+		assertTrue(!nav.toElement("NoSuchElement"));
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath());
+		assertEquals(-1, adapter.getSymbols().lookup("ManagedElement"));
+	}
+}
@@ -0,0 +1,73 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDNav;
+
+public class TagIndexTest {
+	private static final int ME_CONTEXTS = 300;
+
+	@Test
+	public void testIndexedLookupsMatchTreeSearch() throws Exception {
+		File file = writeCmFile();
+		List<String> expected = collectCells(file, false, false, null);
+		assertEquals(2 * ME_CONTEXTS / 3 * (1 + 2 + 3), expected.size());
+		StaxXmlAdapter[] adapter = new StaxXmlAdapter[1];
+		assertEquals(expected, collectCells(file, false, true, adapter));
+		// MeContext records were evicted, and their entries with them
+		assertTrue(adapter[0].getEvictedRecordCount() > 0);
+		assertTrue(adapter[0].getIndexedElementCount() < 2 * ME_CONTEXTS * 5);
+		assertEquals(expected, collectCells(file, true, false, null));
+		assertEquals(expected, collectCells(file, true, true, null));
+	}
+
+	private List<String> collectCells(File file, boolean compact, boolean indexed, StaxXmlAdapter[] out) {
+		// 4KB chunks, 2 chunks per block: the parser pauses and evicts often
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+				new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+		adapter.setCompactMode(compact);
+		adapter.setTagIndex(indexed);
+		assertTrue(adapter.startParsing());
+		if (out != null) {
+			out[0] = adapter;
+		}
+		VTDNav nav = new VTDNav(adapter);
+		List<String> cells = new ArrayList<>();
+		assertTrue(nav.toElement("SubNetwork"));
+		do {
+			nav.push();
+			assertTrue(nav.toElement("MeContext"));
+			do {
+				nav.push();
+				// stops at the last cell: the next one is in another MeContext,
+				// outside the search scope
+				while (nav.toElement("EUtranCellFDD")) {
+					cells.add(nav.getAttrVal("id"));
+				}
+				nav.pop();
+			} while (nav.toElement(VTDNav.NEXT_SIBLING));
+			nav.pop();
+		} while (nav.toElement(VTDNav.NEXT_SIBLING));
+		return cells;
+	}
+
+	private static File writeCmFile() throws Exception {
+		return CmFile.meContexts(ME_CONTEXTS).subNetworks(2).children((s, i) -> {
+			StringBuilder cells = new StringBuilder("<ManagedElement id=\"1\"><ENodeBFunction id=\"1\">");
+			for (int c = 0; c < 1 + i % 3; c++) {
+				cells.append("<EUtranCellFDD id=\"" + s + "_" + i + "_" + c + "\"><attributes earfcndl=\"100\"/>"
+						+ "</EUtranCellFDD>");
+			}
+			return cells.append("</ENodeBFunction></ManagedElement>").toString();
+		}).write("tag-index");
+	}
+}
@@ -8,13 +8,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.MemoryBufferConfig;
 import com.sofu.vtdemulate.MemoryBufferInputStream;
 import com.sofu.vtdemulate.MutableXmlElement;
+import com.sofu.vtdemulate.StaxXmlAdapter;
 import com.sofu.vtdemulate.XmlElement;
 
 public class TagPositionWriteTest {
@@ -77,4 +82,71 @@ public class TagPositionWriteTest {
         // 4. Delete the copy (uncomment after verification)
         new File(COPY).delete();
     }
-} 
\ No newline at end of file
+
+    @Test
+    public void testWriteParsedTreeWithModifiedElement() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n<root>\n");
+        for (int i = 0; i < 500; i++) {
+            sb.append(" <MeContext id=\"me").append(i).append("\"><ManagedElement id=\"1\"/></MeContext>\n");
+        }
+        sb.append("</root>\n");
+        String xml = sb.toString();
+        File src = File.createTempFile("write-src", ".xml");
+        File copy = File.createTempFile("write-copy", ".xml");
+        src.deleteOnExit();
+        copy.deleteOnExit();
+        Files.write(src.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        StaxXmlAdapter adapter = new StaxXmlAdapter(src.getPath(),
+                new MemoryBufferConfig(1024, 2, MemoryBufferConfig.Backend.HEAP));
+        adapter.setEvictionPolicy(EvictionPolicy.NONE);
+        adapter.parseXml(false);
+        MutableXmlElement root = adapter.getFirstRootElement();
+        String expected = xml.substring(xml.indexOf("<root>"), xml.lastIndexOf('\n'));
+
+        // unmodified: one span, transferred from the file
+        try (OutputStream out = new FileOutputStream(copy)) {
+            root.write(out, adapter.getMemoryBuffer());
+        }
+        assertEquals(expected, new String(Files.readAllBytes(copy.toPath()), StandardCharsets.UTF_8));
+
+        ((MutableXmlElement) root.getChildren().get(7)).putAttribute("x", "1");
+        try (OutputStream out = new FileOutputStream(copy)) {
+            root.write(out, adapter.getMemoryBuffer());
+        }
+        assertEquals(expected.replace("<MeContext id=\"me7\">", "<MeContext id=\"me7\" x=\"1\">"),
+                new String(Files.readAllBytes(copy.toPath()), StandardCharsets.UTF_8));
+        adapter.getMemoryBuffer().close();
+    }
+
+    @Test
+    public void testByteLevelEditsOfMutableElement() throws Exception {
+        String xml = "<root>\n <MeContext userid=\"u1\" xn:id='me1' note=\"n\"><userLabel>old</userLabel><empty/>"
+                + "<a>x</a><ManagedElement id=\"1\"/></MeContext>\n</root>\n";
+        File src = File.createTempFile("edit-src", ".xml");
+        File copy = File.createTempFile("edit-copy", ".xml");
+        src.deleteOnExit();
+        copy.deleteOnExit();
+        Files.write(src.toPath(), xml.replace("<root>", "<root xmlns:xn=\"urn:x\">").getBytes(StandardCharsets.UTF_8));
+        StaxXmlAdapter adapter = new StaxXmlAdapter(src.getPath());
+        adapter.setEvictionPolicy(EvictionPolicy.NONE);
+        adapter.parseXml(false);
+        MutableXmlElement root = adapter.getFirstRootElement();
+        MutableXmlElement me = (MutableXmlElement) root.getChildren().get(0);
+        // "id" must not hit "userid", and matches the prefixed xn:id by local name
+        me.putAttribute("id", "me\"1");
+        me.removeAttribute("note");
+        me.putAttribute("added", "v");
+        ((MutableXmlElement) me.getChildren().get(0)).setTextNode(0, "new<");
+        ((MutableXmlElement) me.getChildren().get(1)).addTextNode("t");
+        ((MutableXmlElement) me.getChildren().get(2)).addTextNode("y");
+        ((MutableXmlElement) me.getChildren().get(3)).putAttribute("extra", "1");
+        try (OutputStream out = new FileOutputStream(copy)) {
+            root.write(out, adapter.getMemoryBuffer());
+        }
+        String expected = "<root xmlns:xn=\"urn:x\">\n <MeContext userid=\"u1\" xn:id='me&quot;1' added=\"v\">"
+                + "<userLabel>new&lt;</userLabel><empty>t</empty><a>xy</a><ManagedElement id=\"1\" extra=\"1\"/>"
+                + "</MeContext>\n</root>";
+        assertEquals(expected, new String(Files.readAllBytes(copy.toPath()), StandardCharsets.UTF_8));
+        adapter.getMemoryBuffer().close();
+    }
+}
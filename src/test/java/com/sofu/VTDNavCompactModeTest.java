@@ -0,0 +1,71 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.VTDGen;
+import com.sofu.vtdemulate.VTDNav;
+
+public class VTDNavCompactModeTest {
+
+	@Test
+	public void testCompactModeMatchesObjectMode() throws Exception {
+		File file = File.createTempFile("compact-mode", ".xml");
+		file.deleteOnExit();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			w.write("<bulkCmConfigDataFile>\n <configData dnPrefix=\"x\">\n");
+			for (int s = 0; s < 2; s++) {
+				w.write("  <SubNetwork id=\"sn" + s + "\">\n");
+				for (int i = 0; i < 400; i++) {
+					w.write("   <MeContext id=\"me" + s + "_" + i + "\"><ManagedElement id=\"el" + i
+							+ "\" userLabel=\"label" + i + "\">text" + i + "</ManagedElement></MeContext>\n");
+				}
+				w.write("  </SubNetwork>\n");
+			}
+			w.write(" </configData>\n</bulkCmConfigDataFile>\n");
+		}
+
+		List<String> objectIds = collectMeContexts(file.getPath(), false);
+		List<String> compactIds = collectMeContexts(file.getPath(), true);
+		assertEquals(800, objectIds.size());
+		assertEquals(objectIds, compactIds);
+	}
+
+	private List<String> collectMeContexts(String path, boolean compact) {
+		VTDGen gen = new VTDGen();
+		// 4KB chunks, 2 chunks per block: navigation has to resume the parser
+		gen.setBufferConfig(new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+		gen.setCompactMode(compact);
+		assertTrue(gen.parseFile(path));
+		VTDNav nav = gen.getNav();
+
+		List<String> ids = new ArrayList<>();
+		assertEquals("bulkCmConfigDataFile", nav.getCurrentTagName());
+		assertTrue(nav.toElement(VTDNav.FIRST_CHILD));
+		assertTrue(nav.toElement(VTDNav.FIRST_CHILD));
+		do {
+			assertEquals("SubNetwork", nav.getCurrentTagName());
+			assertTrue(nav.toElement(VTDNav.FIRST_CHILD));
+			do {
+				nav.push();
+				assertTrue(nav.toElement("ManagedElement"));
+				ids.add(nav.getCurrentTagName() + ":" + nav.getAttrVal("id") + "/" + nav.getAttrVal("userLabel"));
+				nav.pop();
+				ids.set(ids.size() - 1, nav.getAttrVal("id") + "=" + ids.get(ids.size() - 1));
+			} while (nav.toElement(VTDNav.NEXT_SIBLING));
+			nav.toElement(VTDNav.PARENT);
+		} while (nav.toElement(VTDNav.NEXT_SIBLING));
+		return ids;
+	}
+}
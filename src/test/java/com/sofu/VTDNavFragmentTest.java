@@ -0,0 +1,129 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDGen;
+import com.sofu.vtdemulate.VTDNav;
+
+public class VTDNavFragmentTest {
+
+	@Test
+	public void testFragmentsMatchFileBytes() throws Exception {
+		assertFragmentsMatch("", "");
+	}
+
+	@Test
+	public void testFragmentsAfterMultibyteCharacters() throws Exception {
+		// 2-, 3- and 4-byte characters before every fragment and inside it
+		assertFragmentsMatch("<!-- r\u00e9seau \u65e5\u672c -->\n", " \u00fc\ud83d\ude00");
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFragmentsNeedByteOffsets() throws Exception {
+		File file = File.createTempFile("fragment-utf16", ".xml");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "<?xml version=\"1.0\" encoding=\"UTF-16\"?><root><a>x</a></root>"
+				.getBytes(StandardCharsets.UTF_16));
+		VTDGen gen = new VTDGen();
+		assertTrue(gen.parseFile(file.getPath()));
+		VTDNav nav = gen.getNav();
+		assertTrue(nav.toElement("a"));
+		nav.getElementFragment();
+	}
+
+	@Test
+	public void testContainerFragmentAfterParse() throws Exception {
+		File file = writeFragmentFile("", "");
+		for (boolean compact : new boolean[] { false, true }) {
+			VTDGen gen = new VTDGen();
+			gen.setBufferConfig(new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+			gen.setCompactMode(compact);
+			assertTrue(gen.parseFile(file.getPath()));
+			VTDNav nav = gen.getNav();
+			assertTrue(nav.toElement("SubNetwork"));
+			// the parser is paused within the first blocks, far from </SubNetwork>
+			try {
+				nav.getElementFragment();
+				fail("expected IllegalStateException");
+			} catch (IllegalStateException expected) {
+				assertTrue(expected.getMessage(), expected.getMessage().contains("SubNetwork"));
+			}
+		}
+		for (boolean compact : new boolean[] { false, true }) {
+			StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath());
+			adapter.setCompactMode(compact);
+			adapter.setEvictionPolicy(EvictionPolicy.NONE);
+			adapter.parseXml(false);
+			VTDNav nav = new VTDNav(adapter);
+			assertTrue(nav.toElement("SubNetwork"));
+			String fragment = nav.getElementFragment();
+			assertTrue(fragment.startsWith("<SubNetwork id=\"sn\">"));
+			assertTrue(fragment.endsWith("</SubNetwork>"));
+			adapter.getMemoryBuffer().close();
+		}
+	}
+
+	private void assertFragmentsMatch(String head, String text) throws Exception {
+		File file = writeFragmentFile(head, text);
+		String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+
+		for (boolean compact : new boolean[] { false, true }) {
+			VTDGen gen = new VTDGen();
+			// 4KB chunks: MeContext fragments regularly straddle a chunk boundary
+			gen.setBufferConfig(new MemoryBufferConfig(4096, 2, MemoryBufferConfig.Backend.HEAP));
+			gen.setCompactMode(compact);
+			assertTrue(gen.parseFile(file.getPath()));
+			VTDNav nav = gen.getNav();
+			assertTrue(nav.toElement("MeContext"));
+			int count = 0;
+			do {
+				String id = nav.getAttrVal("id");
+				int start = content.indexOf("<MeContext id=\"" + id + "\"");
+				String expected = content.substring(start, content.indexOf("</MeContext>", start) + 12);
+				assertEquals(expected, nav.getElementFragment());
+
+				ByteBuffer view = nav.getElementFragmentBuffer();
+				assertTrue(view.isReadOnly());
+				assertEquals(expected, StandardCharsets.UTF_8.decode(view).toString());
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				assertTrue(nav.writeFragment(out));
+				assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+				nav.push();
+				assertTrue(nav.toElement(VTDNav.FIRST_CHILD));
+				assertEquals("text " + count + " & more" + text, nav.getText());
+				nav.pop();
+				count++;
+			} while (nav.toElement(VTDNav.NEXT_SIBLING));
+			assertEquals(300, count);
+		}
+	}
+
+	private static File writeFragmentFile(String head, String text) throws Exception {
+		StringBuilder xml = new StringBuilder("<bulkCmConfigDataFile>\n <configData>\n  <SubNetwork id=\"sn\">\n");
+		for (int i = 0; i < 300; i++) {
+			xml.append(head).append("   <MeContext id=\"me").append(i).append("\"><ManagedElement id=\"el").append(i)
+					.append("\">text ").append(i).append(" &amp; more").append(text)
+					.append("</ManagedElement></MeContext>\n");
+		}
+		xml.append("  </SubNetwork>\n </configData>\n</bulkCmConfigDataFile>\n");
+		File file = File.createTempFile("fragment", ".xml");
+		file.deleteOnExit();
+		Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
@@ -0,0 +1,106 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDGen;
+import com.sofu.vtdemulate.VTDNav;
+
+public class VTDNavLazyValuesTest {
+	private static final String[] ATTRIBUTES = { "id", "userLabel", "note", "q", "missing" };
+
+	@Test
+	public void testLazyValuesMatchEagerValues() throws Exception {
+		File file = File.createTempFile("lazy-values", ".xml");
+		file.deleteOnExit();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			w.write("<root xmlns=\"urn:a\" xmlns:xn=\"urn:b\" id=\"r\">\n");
+			for (int i = 0; i < 50; i++) {
+				w.write(" <item xn:id=\"i" + i + "\" userLabel='single \"quoted\"' note=\"a &lt;b&gt; &amp; &#65;&#x42;\">\n");
+				w.write("  head &amp; text <!-- comment --> after comment\n");
+				w.write("  <leaf q=\"x > y\">leaf <![CDATA[<raw> & text]]> tail</leaf>\n");
+				w.write("  <empty id=\"e" + i + "\"/>\n");
+				w.write("  middle\n  <xn:leaf>prefixed</xn:leaf>\n");
+				w.write(" </item>\n");
+			}
+			w.write("</root>\n");
+		}
+
+		List<String> eager = walk(file.getPath(), false, false);
+		assertEquals(1 + 50 * 4, eager.size());
+		assertEquals(eager, walk(file.getPath(), true, false));
+		assertEquals(eager, walk(file.getPath(), true, true));
+	}
+
+	@Test
+	public void testLazyValuesAfterMultibyteCharacters() throws Exception {
+		File file = File.createTempFile("lazy-utf8", ".xml");
+		file.deleteOnExit();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			// BOM, then 2-, 3- and 4-byte characters before and inside the elements
+			w.write("\uFEFF<root id=\"r\u00e9\">\u00e9\u00e9\u00e9\n");
+			for (int i = 0; i < 50; i++) {
+				w.write(" <item id=\"\u65e5\u672c" + i + "\" note=\"\ud83d\ude00\">caf\u00e9 " + i + "\n");
+				w.write("  <leaf q=\"\u00fc\">\u4e2d\u6587 <![CDATA[\u00df]]></leaf>\n");
+				w.write(" </item>\n");
+			}
+			w.write("</root>\n");
+		}
+
+		List<String> eager = walk(file.getPath(), false, false);
+		assertEquals(1 + 50 * 2, eager.size());
+		assertEquals(eager, walk(file.getPath(), true, false));
+		assertEquals(eager, walk(file.getPath(), true, true));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testLazyValuesNeedUtf8() throws Exception {
+		File file = File.createTempFile("lazy-latin1", ".xml");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><root a=\"\u00e9\"/>"
+				.getBytes(StandardCharsets.ISO_8859_1));
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath());
+		adapter.setLazyValues(true);
+		adapter.parseXml(false);
+	}
+
+	private List<String> walk(String path, boolean lazy, boolean compact) {
+		VTDGen gen = new VTDGen();
+		gen.setLazyValues(lazy);
+		gen.setCompactMode(compact);
+		assertTrue(gen.parseFile(path));
+		gen.getChildren(); // wait until the small file is parsed
+		VTDNav nav = gen.getNav();
+		List<String> out = new ArrayList<>();
+		visit(nav, out);
+		return out;
+	}
+
+	private void visit(VTDNav nav, List<String> out) {
+		StringBuilder sb = new StringBuilder(nav.getCurrentTagName());
+		for (String name : ATTRIBUTES) {
+			sb.append(' ').append(name).append('=').append(nav.getAttrVal(name));
+		}
+		sb.append(" texts=").append(nav.getTextNodes());
+		out.add(sb.toString());
+		if (nav.toElement(VTDNav.FIRST_CHILD)) {
+			do {
+				visit(nav, out);
+			} while (nav.toElement(VTDNav.NEXT_SIBLING));
+			nav.toElement(VTDNav.PARENT);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.sofu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.sofu.vtdemulate.EvictionPolicy;
+import com.sofu.vtdemulate.MemoryBufferConfig;
+import com.sofu.vtdemulate.ModifyException;
+import com.sofu.vtdemulate.StaxXmlAdapter;
+import com.sofu.vtdemulate.VTDNav;
+import com.sofu.vtdemulate.XMLModifier;
+import com.sofu.vtdemulate.XmlElement;
+
+public class XMLModifierTest {
+	private static final int ME_CONTEXTS = 300;
+
+	@Test
+	public void testOutputSplicesEditsIntoOriginalBytes() throws Exception {
+		String xml = cmXml();
+		for (boolean compact : new boolean[] { false, true }) {
+			StaxXmlAdapter adapter = parse(xml, compact);
+			VTDNav nav = new VTDNav(adapter);
+			XMLModifier modifier = new XMLModifier(adapter);
+			assertTrue(nav.toElement("MeContext"));
+			String expected = xml;
+			do {
+				XmlElement me = nav.getCurrTagPosition();
+				String id = nav.getAttrVal("id");
+				if (id.equals("me3")) {
+					modifier.delete(me);
+					expected = expected.replace("<MeContext id=\"me3\"><ManagedElement id=\"1\" userLabel=\"node3\"/></MeContext>", "");
+				} else if (id.equals("me7")) {
+					modifier.updateAttribute(me, "id", "me7&x");
+					modifier.insertAttribute(me, "state", "new");
+					expected = expected.replace("<MeContext id=\"me7\">", "<MeContext id=\"me7&amp;x\" state=\"new\">");
+				} else if (id.equals("me250")) {
+					modifier.insertBeforeElement(me, "<!-- a -->");
+					modifier.insertAfterElement(me, "<MeContext id=\"added\"/>");
+					nav.push();
+					assertTrue(nav.toElement(VTDNav.FIRST_CHILD));
+					// prefixed attribute, matched by its local name, and an empty element
+					modifier.updateAttribute(nav.getCurrTagPosition(), "userLabel", "renamed");
+					modifier.insertAttribute(nav.getCurrTagPosition(), "extra", "1");
+					nav.pop();
+					expected = expected.replace(
+							"<MeContext id=\"me250\"><ManagedElement id=\"1\" xn:userLabel=\"node250\"/></MeContext>",
+							"<!-- a --><MeContext id=\"me250\"><ManagedElement id=\"1\" xn:userLabel=\"renamed\" extra=\"1\"/></MeContext><MeContext id=\"added\"/>");
+				}
+			} while (nav.toElement(VTDNav.NEXT_SIBLING));
+			assertEquals(7, modifier.getEditCount());
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			modifier.output(out);
+			assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+			File copy = File.createTempFile("modified", ".xml");
+			copy.deleteOnExit();
+			modifier.output(copy.toPath());
+			assertEquals(expected, new String(Files.readAllBytes(copy.toPath()), StandardCharsets.UTF_8));
+			try (FileOutputStream fileOut = new FileOutputStream(copy)) {
+				fileOut.write("<!-- header -->".getBytes(StandardCharsets.UTF_8));
+				modifier.output(fileOut);
+			}
+			assertEquals("<!-- header -->" + expected,
+					new String(Files.readAllBytes(copy.toPath()), StandardCharsets.UTF_8));
+
+			// deleting an element again overlaps the first deletion
+			nav = new VTDNav(adapter);
+			assertTrue(nav.toElement("MeContext"));
+			for (int i = 0; i < 3; i++) {
+				nav.toElement(VTDNav.NEXT_SIBLING);
+			}
+			modifier.delete(nav.getCurrTagPosition());
+			try {
+				modifier.output(new ByteArrayOutputStream());
+				fail("overlapping edits must be rejected");
+			} catch (ModifyException e) {
+				// expected
+			}
+			modifier.reset();
+			out.reset();
+			modifier.output(out);
+			assertEquals(xml, new String(out.toByteArray(), StandardCharsets.UTF_8));
+			adapter.getMemoryBuffer().close();
+		}
+	}
+
+	@Test
+	public void testWriteShowsUpdatedAttribute() throws Exception {
+		StaxXmlAdapter adapter = parse(cmXml(), false);
+		VTDNav nav = new VTDNav(adapter);
+		assertTrue(nav.toElement("MeContext"));
+		assertTrue(nav.toElement(VTDNav.NEXT_SIBLING));
+		XmlElement me = nav.getCurrTagPosition();
+		new XMLModifier(adapter).updateAttribute(me, "id", "m1");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		me.write(out, adapter.getMemoryBuffer());
+		assertEquals("<MeContext id=\"m1\"><ManagedElement id=\"1\" userLabel=\"node1\"/></MeContext>",
+				new String(out.toByteArray(), StandardCharsets.UTF_8));
+		adapter.getMemoryBuffer().close();
+	}
+
+	@Test
+	public void testEditsAfterMultibyteCharacters() throws Exception {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<r>\u00e9\u00e9\u00e9<a id=\"\u65e5\">\ud83d\ude00</a>"
+				+ "<b id=\"x\"/></r>\n";
+		for (boolean compact : new boolean[] { false, true }) {
+			StaxXmlAdapter adapter = parse(xml, compact);
+			VTDNav nav = new VTDNav(adapter);
+			XMLModifier modifier = new XMLModifier(adapter);
+			assertTrue(nav.toElement("a"));
+			modifier.insertBeforeElement(nav.getCurrTagPosition(), "<!--X-->");
+			modifier.updateAttribute(nav.getCurrTagPosition(), "id", "\u00fc");
+			assertTrue(nav.toElement(VTDNav.NEXT_SIBLING));
+			modifier.insertAttribute(nav.getCurrTagPosition(), "n", "1");
+			modifier.insertAfterElement(nav.getCurrTagPosition(), "<c/>");
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			modifier.output(out);
+			assertEquals(xml.replace("<a id=\"\u65e5\">", "<!--X--><a id=\"\u00fc\">").replace("<b id=\"x\"/>",
+					"<b id=\"x\" n=\"1\"/><c/>"), new String(out.toByteArray(), StandardCharsets.UTF_8));
+			adapter.getMemoryBuffer().close();
+		}
+	}
+
+	@Test(expected = ModifyException.class)
+	public void testEditsNeedByteOffsets() throws Exception {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-16\"?>\n<r>\u00e9<a id=\"1\"/></r>\n";
+		StaxXmlAdapter adapter = parse(xml.getBytes(StandardCharsets.UTF_16), false);
+		VTDNav nav = new VTDNav(adapter);
+		assertTrue(nav.toElement("a"));
+		new XMLModifier(adapter).insertBeforeElement(nav.getCurrTagPosition(), "<!--X-->");
+	}
+
+	private static StaxXmlAdapter parse(String xml, boolean compact) throws Exception {
+		return parse(xml.getBytes(StandardCharsets.UTF_8), compact);
+	}
+
+	private static StaxXmlAdapter parse(byte[] xml, boolean compact) throws Exception {
+		File file = File.createTempFile("modifier", ".xml");
+		file.deleteOnExit();
+		Files.write(file.toPath(), xml);
+		// small chunks so unchanged spans cross chunk boundaries
+		StaxXmlAdapter adapter = new StaxXmlAdapter(file.getPath(),
+				new MemoryBufferConfig(1024, 2, MemoryBufferConfig.Backend.HEAP));
+		adapter.setCompactMode(compact);
+		adapter.setEvictionPolicy(EvictionPolicy.NONE);
+		adapter.parseXml(false);
+		return adapter;
+	}
+
+	private static String cmXml() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<bulkCmConfigDataFile xmlns:xn=\"urn:x\">\n");
+		sb.append(" <configData>\n  <SubNetwork id=\"sn\">\n");
+		for (int i = 0; i < ME_CONTEXTS; i++) {
+			sb.append("<MeContext id=\"me").append(i).append("\"><ManagedElement id=\"1\" ")
+					.append(i == 250 ? "xn:" : "").append("userLabel=\"node").append(i).append("\"/></MeContext>\n");
+		}
+		sb.append("  </SubNetwork>\n </configData>\n</bulkCmConfigDataFile>\n");
+		return sb.toString();
+	}
+}